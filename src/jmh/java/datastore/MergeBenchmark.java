@@ -0,0 +1,98 @@
+package datastore;
+
+import graveldb.datastore.merge.MergeEntry;
+import graveldb.datastore.merge.MergeIterator;
+import graveldb.datastore.sparseindex.SparseIndex;
+import graveldb.datastore.sstable.SSTable;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merge throughput against the number of tables merged. The same keys are spread over more tables
+ * for a higher table count, a tenth of them is written to a second table as well, so the amount of
+ * data merged stays about the same and only the width of the merge changes. The bytes counter gives
+ * the merge rate, divide bytes/s by 2^20 for MB/s.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class MergeBenchmark {
+
+    private static final Logger log = LoggerFactory.getLogger(MergeBenchmark.class);
+
+    private static final String DATA_DIR = "./mergebenchdata/";
+    static final int NUM_ITEMS = 500000;
+
+    @Param({"2", "4", "8", "16", "32"})
+    int tableCount;
+
+    List<SSTable> tables;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long bytes;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        log.info("writing {} sstables", tableCount);
+        tables = new ArrayList<>();
+        for (int t = 0; t < tableCount; t++) {
+            String dir = DATA_DIR + tableCount + "/" + t + "/";
+            SSTable ssTable = new SSTable(dir + t + "_ssfile.data");
+            SparseIndex sparseIndex = new SparseIndex(dir + t + "_index.data");
+            try (SparseIndex.SparseIndexWriter indexWriter = sparseIndex.getWriter();
+                 SSTable.SSTableWriter writer = ssTable.getWriter(indexWriter)) {
+                for (int i = 0; i < NUM_ITEMS; i++) {
+                    boolean owner = i % tableCount == t;
+                    boolean overlap = i % 10 == 0 && (i + 1) % tableCount == t;
+                    if (!owner && !overlap) continue;
+                    byte[] key = String.format("key-%08d", i).getBytes(StandardCharsets.UTF_8);
+                    writer.write(key, ("value-" + i + "-" + t).getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            tables.add(ssTable);
+        }
+    }
+
+    @Benchmark
+    public void merge(Counters counters, Blackhole bh) {
+        List<SSTable.EntryIterator> sources = new ArrayList<>();
+        for (SSTable table : tables) sources.add(table.entries());
+        try {
+            MergeIterator merged = new MergeIterator(sources);
+            while (merged.hasNext()) {
+                MergeEntry entry = merged.next();
+                counters.bytes += entry.key().length + entry.value().length;
+                bh.consume(entry);
+            }
+        } finally {
+            for (SSTable.EntryIterator source : sources) source.close();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        for (SSTable table : tables) table.close();
+        if (!deleteDirectory(new File(DATA_DIR))) throw new RuntimeException("not able to delete files from folder");
+    }
+
+    boolean deleteDirectory(File directoryToBeDeleted) {
+        File[] allContents = directoryToBeDeleted.listFiles();
+        if (allContents != null) {
+            for (File file : allContents) {
+                deleteDirectory(file);
+            }
+        }
+        return directoryToBeDeleted.delete();
+    }
+}
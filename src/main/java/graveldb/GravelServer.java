@@ -2,8 +2,7 @@ package graveldb;
 
 import graveldb.datastore.KeyValueStore;
 import graveldb.datastore.lsmtree.LSMTree;
-import graveldb.parser.Request;
-import graveldb.wal.WalRecovery;
+import graveldb.datastore.lsmtree.LSMTreeConfig;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.*;
 import io.netty.channel.nio.NioEventLoopGroup;
@@ -18,8 +17,12 @@ public class GravelServer {
     private static final Logger logger = LoggerFactory.getLogger(GravelServer.class);
 
     public GravelServer(int port) {
+        this(port, new LSMTreeConfig());
+    }
+
+    public GravelServer(int port, LSMTreeConfig config) {
         this.port = port;
-        this.store = new LSMTree();
+        this.store = new LSMTree(config);
     }
 
     public void start() {
@@ -33,17 +36,10 @@ public class GravelServer {
                     .childHandler(new ChannelInitializer<SocketChannel>() {
                         @Override
                         protected void initChannel(SocketChannel ch) {
-                            ch.pipeline().addLast(new RedisServerHandler(store));
+                            ch.pipeline().addLast(new RespDecoder(), new RedisServerHandler(store));
                         }
                     });
 
-            try {
-                recover();
-            } catch (Exception e) {
-                logger.error("WAL Recovery Failed.",e);
-                throw new RuntimeException("WAL Recovery Failed.");
-            }
-
             ChannelFuture future = bootstrap.bind(port).sync();
             if (future.isSuccess()) {
                 logger.info("Server started on port {}", port);
@@ -57,17 +53,4 @@ public class GravelServer {
             throw new RuntimeException("error in establishing connection, port - "+port);
         }
     }
-
-    private void recover() {
-        WalRecovery walRecovery = new WalRecovery();
-        for (Request request : walRecovery) {
-            switch (request.command()) {
-                case SET -> store.put(request.key(), request.value());
-                case DEL -> store.delete(request.key());
-                default -> logger.error("invalid command");
-            }
-        }
-        walRecovery.deleteFiles();
-        logger.info("Recovery complete.");
-    }
 }
@@ -1,14 +1,41 @@
 package graveldb;
 
+import graveldb.datastore.compaction.LeveledCompactionStrategy;
+import graveldb.datastore.compaction.TieredCompactionStrategy;
+import graveldb.datastore.compression.BlockCodec;
+import graveldb.datastore.compression.BlockCodecs;
+import graveldb.datastore.lsmtree.LSMTreeConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Arrays;
+
 public class Main {
 
     private static final Logger logger = LoggerFactory.getLogger(Main.class);
 
     public static void main(String[] args) {
-        try {new GravelServer(6371).start();}
+        LSMTreeConfig config = new LSMTreeConfig();
+        for (String arg : args) {
+            if (arg.startsWith("--memtable-mb=")) {
+                config.memtableBytes(Long.parseLong(arg.substring("--memtable-mb=".length())) * 1024 * 1024);
+                continue;
+            }
+            // one codec for every level, or a list by level where the last one goes for the levels below
+            if (arg.startsWith("--compression=")) {
+                config.blockCodecs(Arrays.stream(arg.substring("--compression=".length()).split(","))
+                        .map(BlockCodecs::forName)
+                        .toArray(BlockCodec[]::new));
+                continue;
+            }
+            switch (arg) {
+                case "--compaction=leveled" -> config.compactionStrategy(new LeveledCompactionStrategy());
+                case "--compaction=tiered" -> config.compactionStrategy(new TieredCompactionStrategy());
+                default -> logger.warn("unknown argument {}", arg);
+            }
+        }
+
+        try {new GravelServer(6371, config).start();}
         catch (Exception e) {logger.error("error during db start {}",e.getMessage(), e);}
     }
 }
\ No newline at end of file
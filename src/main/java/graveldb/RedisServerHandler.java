@@ -1,72 +1,294 @@
 package graveldb;
 
 import graveldb.datastore.KeyValueStore;
-import graveldb.lexer.Lexer;
+import graveldb.datastore.ScanIterator;
 import graveldb.parser.Command;
 import graveldb.parser.Parser;
 import graveldb.parser.Request;
-import graveldb.wal.WriteAheadLog;
+import graveldb.util.KeyComparator;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
-import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.DecoderException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
 import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Runs the commands decoded by {@link RespDecoder}. Replies are only written to the channel while the
+ * commands of a read are processed and flushed once on read complete, so a pipelined batch of commands
+ * goes back in as few syscalls as it came in.
+ */
+public class RedisServerHandler extends SimpleChannelInboundHandler<List<byte[]>> {
+
+    private static final Logger log = LoggerFactory.getLogger(RedisServerHandler.class);
 
-public class RedisServerHandler extends SimpleChannelInboundHandler<ByteBuf> {
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+    // how often a channel paused by a write stall checks whether it may read again
+    private static final long WRITE_STALL_CHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
 
     private final KeyValueStore store;
-    private final Lexer lexer = new Lexer();
     private final Parser parser = new Parser();
+    // commands held back by a write delay or stall, run in order before anything read after them
+    private final ArrayDeque<List<byte[]>> deferred = new ArrayDeque<>();
+    // a command of the current read wrote to the store
+    private boolean wrote;
+    private boolean paused;
 
     public RedisServerHandler(KeyValueStore store) {
         this.store = store;
     }
 
     @Override
-    protected void channelRead0(ChannelHandlerContext ctx, ByteBuf msg) {
-        // Decode the incoming ByteBuf to a string
-        String input = msg.toString(StandardCharsets.UTF_8).trim();
+    protected void channelRead0(ChannelHandlerContext ctx, List<byte[]> tokens) {
+        long delay = deferred.isEmpty() ? run(ctx, tokens, false) : WRITE_STALL_CHECK_NANOS;
+        if (delay > 0) {
+            deferred.add(tokens);
+            pauseReading(ctx, delay);
+        }
+    }
 
+    /*
+     * 0 once the command ran, otherwise the nanos to wait before it is tried again. A write waits for
+     * the delay the store puts on writes unless it already has, and is not run while the store stalls
+     * writes. The event loop never sleeps or waits in the store for either.
+     */
+    private long run(ChannelHandlerContext ctx, List<byte[]> tokens, boolean delayed) {
+        ByteBuf response = ctx.alloc().buffer();
         try {
-            // Tokenize
-            List<String> tokens = lexer.tokenize(input);
-
             // Parse
             Request request = parser.parse(tokens);
+            if (isWrite(request.command()) && !delayed) {
+                long delay = store.writeDelayNanos();
+                if (delay > 0) {
+                    response.release();
+                    return delay;
+                }
+            }
 
             // process command synchronously
-            String response = processCommand(request);
-
-            // write response back to client
-            ctx.writeAndFlush(ctx.alloc().buffer().writeBytes(response.getBytes()));
+            if (!processCommand(request, response)) {
+                response.release();
+                return WRITE_STALL_CHECK_NANOS;
+            }
 
         } catch (IllegalArgumentException e) {
             // Send error response for invalid input
-            String errorResponse = "-ERR " + e.getMessage() + "\r\n";
-            ctx.writeAndFlush(ctx.alloc().buffer().writeBytes(errorResponse.getBytes()));
+            response.clear();
+            writeError(response, e.getMessage());
+        }
+        ctx.write(response);
+        return 0;
+    }
+
+    private static boolean isWrite(Command command) {
+        return command == Command.SET || command == Command.DEL || command == Command.MSET;
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        ctx.flush();
+        if (wrote && store.isWriteStalled()) pauseReading(ctx, WRITE_STALL_CHECK_NANOS);
+        wrote = false;
+    }
+
+    /*
+     * A client writing while the store delays or stalls writes is not read from until its write may
+     * run, its commands wait in the socket buffers and TCP pushes back on it instead of the event loop
+     * sleeping or blocking in the store. Commands already read are deferred and run in order once the
+     * delay or the stall is over.
+     */
+    private void pauseReading(ChannelHandlerContext ctx, long delayNanos) {
+        if (paused) return;
+        paused = true;
+        ctx.channel().config().setAutoRead(false);
+        scheduleResume(ctx, delayNanos);
+    }
+
+    private void scheduleResume(ChannelHandlerContext ctx, long delayNanos) {
+        ctx.executor().schedule(() -> resume(ctx), delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void resume(ChannelHandlerContext ctx) {
+        if (!ctx.channel().isActive()) {
+            deferred.clear();
+            return;
+        }
+        // the first deferred command has waited out its delay, the ones after it have not
+        long delay = 0;
+        boolean delayed = true;
+        while (!deferred.isEmpty() && (delay = run(ctx, deferred.peek(), delayed)) == 0) {
+            deferred.poll();
+            delayed = false;
+        }
+        ctx.flush();
+        if (deferred.isEmpty() && !store.isWriteStalled()) {
+            paused = false;
+            ctx.channel().config().setAutoRead(true);
+        } else {
+            scheduleResume(ctx, delay > 0 ? delay : WRITE_STALL_CHECK_NANOS);
+        }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        if (cause instanceof DecoderException) {
+            // the rest of the stream can not be framed any more
+            ByteBuf response = ctx.alloc().buffer();
+            writeError(response, "Protocol error: " + cause.getMessage());
+            ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        } else {
+            log.error("error on channel {}", ctx.channel(), cause);
+            ctx.close();
         }
     }
 
-    private String processCommand(Request request) throws IllegalArgumentException {
+    /*
+     * False if the command is a write the store refused because of a stall, nothing was written to
+     * the store or the response then.
+     */
+    private boolean processCommand(Request request, ByteBuf response) throws IllegalArgumentException {
         try {
-            return switch (request.command()) {
+            switch (request.command()) {
                 case Command.SET -> {
-                    store.put(request.key(), request.value());
-                    yield "+OK\r\n";
-                }
-                case Command.GET -> {
-                    String value = store.get(request.key());
-                    yield value == null ? "$-1\r\n" : "$" + value.length() + "\r\n" + value + "\r\n";
+                    if (!store.tryPut(request.key(), request.value())) return false;
+                    wrote = true;
+                    response.writeCharSequence("+OK\r\n", StandardCharsets.US_ASCII);
                 }
+                case Command.GET -> writeBulkString(response, store.get(request.key()));
                 case Command.DEL -> {
-                    store.delete(request.key());
-                    yield ":OK\r\n";
+                    // the reply is the number of keys that existed
+                    Set<byte[]> distinct = new TreeSet<>(KeyComparator.BYTE_ORDER);
+                    distinct.addAll(request.keys());
+                    List<byte[]> keys = List.copyOf(distinct);
+                    int deleted = 0;
+                    for (byte[] value : store.getAll(keys)) if (value != null) deleted++;
+                    if (!store.tryDeleteAll(keys)) return false;
+                    wrote = true;
+                    response.writeCharSequence(":" + deleted + "\r\n", StandardCharsets.US_ASCII);
+                }
+                case Command.MSET -> {
+                    if (!store.tryPutAll(request.keys(), request.values())) return false;
+                    wrote = true;
+                    response.writeCharSequence("+OK\r\n", StandardCharsets.US_ASCII);
+                }
+                case Command.MGET -> {
+                    List<byte[]> values = store.getAll(request.keys());
+                    response.writeCharSequence("*" + values.size() + "\r\n", StandardCharsets.US_ASCII);
+                    for (byte[] value : values) writeBulkString(response, value);
                 }
-            };
+                case Command.SCAN -> scan(request, response);
+            }
         } catch (Exception e) {
-            return "-ERR Failed to process command\r\n";
+            log.error("error processing command {}", request.command(), e);
+            response.clear();
+            writeError(response, "Failed to process command");
+        }
+        return true;
+    }
+
+    /*
+     * The cursor is the hex encoded key the next call starts at, "0" starts and ends the iteration.
+     * COUNT keys are looked at per call and the ones matching the pattern are returned, like redis a
+     * call may return less keys than COUNT or none. A pattern with a literal prefix only scans the
+     * range of keys starting with it. Like in redis the pattern matches bytes, ? is a single byte.
+     */
+    private void scan(Request request, ByteBuf response) {
+        String cursor = new String(request.key(), StandardCharsets.US_ASCII);
+        byte[] pattern = request.values().get(0);
+        int count = Integer.parseInt(new String(request.values().get(1), StandardCharsets.US_ASCII));
+
+        byte[] prefix = literalPrefix(pattern);
+        byte[] startKey = cursor.equals("0") ? prefix : HexFormat.of().parseHex(cursor);
+        if (KeyComparator.compare(startKey, prefix) < 0) startKey = prefix;
+        boolean prefixOnly = pattern.length == prefix.length + 1 && pattern[prefix.length] == '*';
+        Pattern matcher = prefixOnly ? null : globToRegex(latin1(pattern));
+
+        List<byte[]> keys = new ArrayList<>();
+        String nextCursor = "0";
+        try (ScanIterator scan = store.scan(startKey, prefixEnd(prefix), count + 1)) {
+            int examined = 0;
+            while (scan.hasNext()) {
+                byte[] key = scan.next().key();
+                if (examined == count) {
+                    nextCursor = HexFormat.of().formatHex(key);
+                    break;
+                }
+                examined++;
+                if (matcher == null || matcher.matcher(latin1(key)).matches()) keys.add(key);
+            }
+        }
+
+        response.writeCharSequence("*2\r\n", StandardCharsets.US_ASCII);
+        writeBulkString(response, nextCursor.getBytes(StandardCharsets.US_ASCII));
+        response.writeCharSequence("*" + keys.size() + "\r\n", StandardCharsets.US_ASCII);
+        for (byte[] key : keys) writeBulkString(response, key);
+    }
+
+    private static byte[] literalPrefix(byte[] pattern) {
+        int i = 0;
+        while (i < pattern.length && pattern[i] != '*' && pattern[i] != '?' && pattern[i] != '\\') i++;
+        return Arrays.copyOf(pattern, i);
+    }
+
+    /*
+     * Smallest key bigger than every key starting with the prefix, null when there is none.
+     */
+    private static byte[] prefixEnd(byte[] prefix) {
+        for (int i = prefix.length - 1; i >= 0; i--) {
+            if (prefix[i] != (byte) 0xFF) {
+                byte[] end = Arrays.copyOf(prefix, i + 1);
+                end[i]++;
+                return end;
+            }
         }
+        return null;
+    }
+
+    // one char per byte, so the regex of a glob matches byte by byte
+    private static String latin1(byte[] bytes) {
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    /*
+     * Glob style patterns: * matches any run of characters, ? a single one and \ escapes the next.
+     */
+    private static Pattern globToRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*') regex.append(".*");
+            else if (c == '?') regex.append('.');
+            else if (c == '\\' && i + 1 < glob.length()) regex.append(Pattern.quote(String.valueOf(glob.charAt(++i))));
+            else regex.append(Pattern.quote(String.valueOf(c)));
+        }
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+    private static void writeBulkString(ByteBuf response, byte[] bytes) {
+        if (bytes == null) {
+            response.writeCharSequence("$-1\r\n", StandardCharsets.US_ASCII);
+            return;
+        }
+        response.writeByte('$');
+        response.writeCharSequence(Integer.toString(bytes.length), StandardCharsets.US_ASCII);
+        response.writeBytes(CRLF);
+        response.writeBytes(bytes);
+        response.writeBytes(CRLF);
+    }
+
+    private static void writeError(ByteBuf response, String message) {
+        response.writeCharSequence("-ERR " + message + "\r\n", StandardCharsets.UTF_8);
     }
 }
@@ -0,0 +1,148 @@
+package graveldb;
+
+import graveldb.lexer.Lexer;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.util.ByteProcessor;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes RESP2 requests into the list of their arguments as raw bytes, one list per command.
+ *
+ * <p>Requests are arrays of bulk strings, {@code *<count>\r\n} followed by {@code $<length>\r\n<bytes>\r\n}
+ * for every argument, the way redis-cli and the client libraries send them. A single read may hold any
+ * number of pipelined commands and a command may be split over several reads, arguments that are
+ * complete are kept between reads so the buffer is never scanned twice. Inline commands (a plain line
+ * of space separated words, as sent by telnet or the python client) are accepted too.
+ *
+ * <p>One decoder per channel, it keeps the state of the command being decoded.
+ */
+public class RespDecoder extends ByteToMessageDecoder {
+
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final int MAX_BULK_LENGTH = 512 * 1024 * 1024;
+    private static final int MAX_ARGUMENT_COUNT = 1024 * 1024;
+
+    private final Lexer lexer = new Lexer();
+
+    // command being decoded, null between commands
+    private List<byte[]> args = null;
+    private int argsRemaining = 0;
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+        while (in.isReadable()) {
+            if (args == null) {
+                if (in.getByte(in.readerIndex()) != '*') {
+                    if (!decodeInline(in, out)) return;
+                    continue;
+                }
+
+                int lineEnd = findLineEnd(in);
+                if (lineEnd < 0) return;
+                long count = parseNumber(in, in.readerIndex() + 1, lineEnd);
+                in.readerIndex(lineEnd + 1);
+                // empty and null arrays carry no command
+                if (count <= 0) continue;
+                if (count > MAX_ARGUMENT_COUNT) throw new CorruptedFrameException("too many arguments: " + count);
+                args = new ArrayList<>((int) count);
+                argsRemaining = (int) count;
+            }
+
+            while (argsRemaining > 0) {
+                byte[] arg = decodeBulkString(in);
+                if (arg == null) return;
+                args.add(arg);
+                argsRemaining--;
+            }
+
+            out.add(args);
+            args = null;
+        }
+    }
+
+    /*
+     * Null if the bulk string is not complete yet, nothing is consumed in that case.
+     */
+    private byte[] decodeBulkString(ByteBuf in) {
+        if (!in.isReadable()) return null;
+        if (in.getByte(in.readerIndex()) != '$') {
+            throw new CorruptedFrameException("expected '$', got '" + (char) in.getByte(in.readerIndex()) + "'");
+        }
+
+        int lineEnd = findLineEnd(in);
+        if (lineEnd < 0) return null;
+        long length = parseNumber(in, in.readerIndex() + 1, lineEnd);
+        if (length < 0 || length > MAX_BULK_LENGTH) throw new CorruptedFrameException("invalid bulk length: " + length);
+
+        int dataStart = lineEnd + 1;
+        if (in.writerIndex() - dataStart < length + 2) return null;
+        int dataEnd = dataStart + (int) length;
+        if (in.getByte(dataEnd) != '\r' || in.getByte(dataEnd + 1) != '\n') {
+            throw new CorruptedFrameException("bulk string is not terminated by CRLF");
+        }
+
+        byte[] value = new byte[(int) length];
+        in.getBytes(dataStart, value);
+        in.readerIndex(dataEnd + 2);
+        return value;
+    }
+
+    /*
+     * False if the line is not complete yet. Blank lines are skipped.
+     */
+    private boolean decodeInline(ByteBuf in, List<Object> out) {
+        int lineEnd = findLineEnd(in);
+        if (lineEnd < 0) return false;
+
+        int length = lineEnd - in.readerIndex();
+        if (length > 0 && in.getByte(lineEnd - 1) == '\r') length--;
+        String line = in.toString(in.readerIndex(), length, StandardCharsets.UTF_8);
+        in.readerIndex(lineEnd + 1);
+
+        if (line.isBlank()) return true;
+        List<byte[]> tokens = new ArrayList<>();
+        for (String token : lexer.tokenize(line)) tokens.add(token.getBytes(StandardCharsets.UTF_8));
+        out.add(tokens);
+        return true;
+    }
+
+    /*
+     * Index of the '\n' ending the line at the reader index, -1 if it has not arrived yet.
+     */
+    private static int findLineEnd(ByteBuf in) {
+        int lineEnd = in.forEachByte(in.readerIndex(), in.readableBytes(), ByteProcessor.FIND_LF);
+        if (lineEnd < 0 && in.readableBytes() > MAX_LINE_LENGTH) {
+            throw new TooLongFrameException("line is longer than " + MAX_LINE_LENGTH + " bytes");
+        }
+        return lineEnd;
+    }
+
+    /*
+     * Parses the digits between from and the "\r\n" ending at lineEnd straight from the buffer.
+     */
+    private static long parseNumber(ByteBuf in, int from, int lineEnd) {
+        int to = lineEnd - 1;
+        if (to < from || in.getByte(to) != '\r') throw new CorruptedFrameException("line is not terminated by CRLF");
+
+        boolean negative = in.getByte(from) == '-';
+        if (negative) from++;
+        if (from == to) throw new CorruptedFrameException("number expected");
+
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            byte digit = in.getByte(i);
+            if (digit < '0' || digit > '9' || value > Integer.MAX_VALUE) {
+                throw new CorruptedFrameException("invalid number");
+            }
+            value = value * 10 + (digit - '0');
+        }
+        return negative ? -value : value;
+    }
+}
@@ -1,11 +1,109 @@
 package graveldb.datastore;
 
-import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
+/**
+ * Keys and values are byte arrays, compared and stored as they are. The String methods are
+ * conveniences that encode them as UTF-8.
+ */
 public interface KeyValueStore {
 
-    void put(String key, String value);
-    String get(String key);
-    void delete(String key);
+    void put(byte[] key, byte[] value);
+    byte[] get(byte[] key);
+    void delete(byte[] key);
+
+    /**
+     * Writes every entry as one batch, values line up with the keys and a key given twice keeps the
+     * last value.
+     */
+    default void putAll(List<byte[]> keys, List<byte[]> values) {
+        for (int i = 0; i < keys.size(); i++) put(keys.get(i), values.get(i));
+    }
+
+    /**
+     * Values in the order of the keys, null for the keys that are not present.
+     */
+    default List<byte[]> getAll(List<byte[]> keys) {
+        List<byte[]> values = new ArrayList<>(keys.size());
+        for (byte[] key : keys) values.add(get(key));
+        return values;
+    }
+
+    default void deleteAll(List<byte[]> keys) {
+        for (byte[] key : keys) delete(key);
+    }
+
+    /**
+     * Entries with startKey <= key < endKey in key order, deleted keys left out and at most limit of
+     * them. A null endKey leaves the range open. Entries are read lazily as the iterator advances.
+     */
+    ScanIterator scan(byte[] startKey, byte[] endKey, int limit);
+
+    default void put(String key, String value) {
+        put(key.getBytes(StandardCharsets.UTF_8), value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    default String get(String key) {
+        byte[] value = get(key.getBytes(StandardCharsets.UTF_8));
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+
+    default void delete(String key) {
+        delete(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    default void putAll(Map<String, String> entries) {
+        List<byte[]> keys = new ArrayList<>(entries.size());
+        List<byte[]> values = new ArrayList<>(entries.size());
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            keys.add(entry.getKey().getBytes(StandardCharsets.UTF_8));
+            values.add(entry.getValue().getBytes(StandardCharsets.UTF_8));
+        }
+        putAll(keys, values);
+    }
+
+    default ScanIterator scan(String startKey, String endKey, int limit) {
+        return scan(startKey.getBytes(StandardCharsets.UTF_8), endKey == null ? null : endKey.getBytes(StandardCharsets.UTF_8), limit);
+    }
+
+    /**
+     * True while writes wait for the store to persist the ones it already has, callers should hold
+     * back further writes until it turns false.
+     */
+    default boolean isWriteStalled() {
+        return false;
+    }
+
+    /**
+     * How long the store delays a write right now, 0 unless it is falling behind. The write methods
+     * wait it out themselves, the try methods leave it to the caller.
+     */
+    default long writeDelayNanos() {
+        return 0;
+    }
+
+    /**
+     * Writes without ever waiting: no delay and false, with nothing written, while writes are stalled.
+     */
+    default boolean tryPut(byte[] key, byte[] value) {
+        if (isWriteStalled()) return false;
+        put(key, value);
+        return true;
+    }
+
+    default boolean tryPutAll(List<byte[]> keys, List<byte[]> values) {
+        if (isWriteStalled()) return false;
+        putAll(keys, values);
+        return true;
+    }
+
+    default boolean tryDeleteAll(List<byte[]> keys) {
+        if (isWriteStalled()) return false;
+        deleteAll(keys);
+        return true;
+    }
 
 }
@@ -0,0 +1,15 @@
+package graveldb.datastore;
+
+import graveldb.datastore.lsmtree.KeyValuePair;
+
+import java.util.Iterator;
+
+/**
+ * Iterator over the result of a range scan. It holds on to the files it reads from, so it has to be
+ * closed if it is not read to the end.
+ */
+public interface ScanIterator extends Iterator<KeyValuePair>, AutoCloseable {
+
+    @Override
+    void close();
+}
@@ -1,95 +1,284 @@
 package graveldb.datastore.bloomfilter;
 
+import graveldb.datastore.cache.MetadataCache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.BitSet;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 
 import com.google.common.hash.Hashing;
 
-public class BloomFilter {
+/**
+ * Blocked bloom filter of the keys of one SSTable, sized for the number of keys the table has. The
+ * writer collects the hashes of the keys and builds the filter on close, with {@code bitsPerKey} bits
+ * per key and the number of probes that is optimal for it ({@code bitsPerKey * ln 2}). 10 bits per key
+ * give about 1% false positives.
+ *
+ * <p>A key is hashed once into 128 bits ({@link #hash}), the same hash is checked against the filter
+ * of every table. The first 64 bits pick a block of {@link #BLOCK_BITS} bits, the size of a cache
+ * line, and all probes of the key fall into that block at {@code a + i * b} (double hashing) with a
+ * and b taken from the other 64 bits, so a check touches a single cache line.
+ *
+ * <p>The file is {@code <magic:int><bit count:long><probes:int><key count:long>} padded to 64 bytes,
+ * followed by the bits as longs. It is loaded on first use with a single read into a direct buffer,
+ * off the heap, that starts on a 64 byte boundary, so every block of the bits is one cache line in
+ * memory too. The filter is reported to the {@link MetadataCache}, which may unload it again when it
+ * is not pinned.
+ *
+ * <p>Older layouts are still read: the blocked filter with a 24 byte header, whose bits are copied to
+ * an aligned buffer when it is loaded, the unblocked filter with a header of its own magic, probed
+ * with a murmur3 and a SipHash of the key, and the headerless bit set of {@link #LEGACY_BITS} bits
+ * probed with 7 hash functions.
+ */
+public class BloomFilter implements MetadataCache.Metadata {
 
     private static final Logger log = LoggerFactory.getLogger(BloomFilter.class);
 
-    private static final int HASH_FUNCTIONS = 7;
-    private static final int BLOOM_BUCKET = 5000000;
-    private BitSet bitArray;
+    public static final int DEFAULT_BITS_PER_KEY = 10;
+
+    private static final int ALIGNED_MAGIC = 0x47424C41;
+    private static final int BLOCKED_MAGIC = 0x47424C42;
+    private static final int UNBLOCKED_MAGIC = 0x47424C46;
+    private static final int HEADER_SIZE = 4 + 8 + 4 + 8;
+    private static final int CACHE_LINE = 64;
+    private static final int BLOCK_BITS = CACHE_LINE * 8;
+    private static final int BLOCK_WORDS = BLOCK_BITS / 64;
+    private static final int MAX_PROBES = 30;
+    private static final int LEGACY_HASH_FUNCTIONS = 7;
+    private static final int LEGACY_BITS = 5000000;
+
+    private enum Layout { BLOCKED, UNBLOCKED, LEGACY, EMPTY }
+
+    // bits are longs for the headed layouts and the little endian bytes of a BitSet for the legacy one
+    private record Filter(Layout layout, ByteBuffer bits, long bitCount, int probes, long keyCount) { }
+
+    /**
+     * The 128 bit hash of a key, computed once per lookup and checked against any number of filters.
+     */
+    public record KeyHash(byte[] key, long h1, long h2) { }
 
     private final String fileName;
+    private final MetadataCache cache;
+
+    private volatile Filter filter;
+    private volatile boolean pinned;
 
     public BloomFilter(String fileName) {
+        this(fileName, null);
+    }
+
+    /**
+     * @param cache accounts for the filter while it is loaded, null to keep it loaded once used
+     */
+    public BloomFilter(String fileName, MetadataCache cache) {
         this.fileName = fileName;
-        this.bitArray = new BitSet(BLOOM_BUCKET);
+        this.cache = cache;
         Path path = Path.of(fileName);
-            if (!Files.exists(path)) {
-                try {
-                    Files.createDirectories(path.getParent());
-                    Files.createFile(path);
-                }catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
-            } else generateBitArray();
-    }
-
-    public BloomFilterWriter getWriter() { return new BloomFilter.BloomFilterWriter(); }
-
-    public boolean check(String key) {
-        for (int i=0; i<HASH_FUNCTIONS; i++) {
-            int setBit = Math.abs(getKeyHashValue(key, i) % BLOOM_BUCKET);
-            if (!checkSetBit(setBit)) return false;
+        if (!Files.exists(path)) {
+            try {
+                Files.createDirectories(path.getParent());
+                Files.createFile(path);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    public static KeyHash hash(byte[] key) {
+        ByteBuffer hash = ByteBuffer.wrap(Hashing.murmur3_128().hashBytes(key).asBytes()).order(ByteOrder.LITTLE_ENDIAN);
+        return new KeyHash(key, hash.getLong(), hash.getLong());
+    }
+
+    public BloomFilterWriter getWriter() { return getWriter(DEFAULT_BITS_PER_KEY); }
+
+    public BloomFilterWriter getWriter(int bitsPerKey) { return new BloomFilterWriter(bitsPerKey); }
+
+    public boolean check(byte[] key) {
+        return check(hash(key));
+    }
+
+    public boolean check(KeyHash hash) {
+        Filter filter = filter();
+        return switch (filter.layout()) {
+            case BLOCKED -> checkBlocked(filter, hash.h1(), hash.h2());
+            case UNBLOCKED -> checkUnblocked(filter, hash.key());
+            case LEGACY -> checkLegacy(filter, hash.key());
+            case EMPTY -> false;
+        };
+    }
+
+    private static boolean checkBlocked(Filter filter, long h1, long h2) {
+        ByteBuffer bits = filter.bits();
+        int base = (int) Math.floorMod(h1, filter.bitCount() / BLOCK_BITS) * BLOCK_WORDS;
+        int a = (int) h2;
+        int b = (int) (h2 >>> 32) | 1;
+        for (int i = 0; i < filter.probes(); i++) {
+            int bit = (a + i * b) & (BLOCK_BITS - 1);
+            if ((bits.getLong((base + (bit >>> 6)) * 8) & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    private static void setBlocked(ByteBuffer bits, long blocks, int probes, long h1, long h2) {
+        int base = (int) Math.floorMod(h1, blocks) * BLOCK_WORDS;
+        int a = (int) h2;
+        int b = (int) (h2 >>> 32) | 1;
+        for (int i = 0; i < probes; i++) {
+            int bit = (a + i * b) & (BLOCK_BITS - 1);
+            int index = (base + (bit >>> 6)) * 8;
+            bits.putLong(index, bits.getLong(index) | (1L << bit));
+        }
+    }
+
+    private static boolean checkUnblocked(Filter filter, byte[] key) {
+        int h1 = Hashing.murmur3_128().hashBytes(key).asInt();
+        int h2 = Hashing.sipHash24().hashBytes(key).asInt();
+        for (int i = 0; i < filter.probes(); i++) {
+            long bit = Math.floorMod(h1 + (long) i * h2, filter.bitCount());
+            if ((filter.bits().getLong((int) (bit >>> 6) * 8) & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    private static boolean checkLegacy(Filter filter, byte[] key) {
+        int h1 = Hashing.murmur3_128().hashBytes(key).asInt();
+        int h2 = Hashing.sipHash24().hashBytes(key).asInt();
+        for (int i = 0; i < LEGACY_HASH_FUNCTIONS; i++) {
+            int bit = Math.abs((h1 + i * h2) % LEGACY_BITS);
+            // the bit set was written without its trailing zero bytes
+            if (bit >= filter.bitCount() || (filter.bits().get(bit >>> 3) & (1 << (bit & 7))) == 0) return false;
         }
         return true;
     }
 
-    private boolean checkSetBit(int setBit) {
-        if (bitArray == null) generateBitArray();
-        return bitArray.get(setBit);
+    /**
+     * Bytes the filter takes in memory, 0 while it is not loaded.
+     */
+    public long sizeInBytes() {
+        Filter filter = this.filter;
+        return filter == null ? 0 : filter.bits().capacity();
     }
 
-    private void generateBitArray() {
-        byte[] byteArray = new byte[(BLOOM_BUCKET + 7) / 8];
+    public long keyCount() { return filter().keyCount(); }
+
+    /**
+     * Distance of the bits in memory from the 64 byte boundary before them, 0 for a blocked filter.
+     */
+    public int bitsAlignmentOffset() { return filter().bits().alignmentOffset(0, CACHE_LINE); }
+
+    public void setPinned(boolean pinned) { this.pinned = pinned; }
+
+    @Override
+    public boolean isPinned() { return pinned; }
+
+    @Override
+    public synchronized void unload() {
+        filter = null;
+    }
 
-        try (RandomAccessFile fis = new RandomAccessFile(fileName, "r");) {
-            int res = fis.read(byteArray);
-            if (res >= 0) bitArray = BitSet.valueOf(byteArray);
-            else bitArray = new BitSet(BLOOM_BUCKET);
+    private Filter filter() {
+        Filter filter = this.filter;
+        if (filter != null) {
+            if (cache != null) cache.touch(this);
+            return filter;
+        }
+        return load();
+    }
+
+    private synchronized Filter load() {
+        if (filter != null) return filter;
+        try (FileChannel channel = FileChannel.open(Path.of(fileName), StandardOpenOption.READ)) {
+            ByteBuffer file = allocateAligned((int) channel.size());
+            while (file.hasRemaining()) {
+                if (channel.read(file) < 0) throw new EOFException(fileName + " is cut short");
+            }
+            filter = parse(file.flip());
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        if (cache != null) cache.loaded(this, filter.bits().capacity());
+        return filter;
+    }
+
+    private Filter parse(ByteBuffer file) {
+        int length = file.limit();
+        int magic = length >= HEADER_SIZE ? file.getInt(0) : 0;
+        if (magic == ALIGNED_MAGIC || magic == BLOCKED_MAGIC || magic == UNBLOCKED_MAGIC) {
+            long bitCount = file.getLong(4);
+            int probes = file.getInt(12);
+            long keyCount = file.getLong(16);
+            int headerSize = magic == ALIGNED_MAGIC ? CACHE_LINE : HEADER_SIZE;
+            if (length == headerSize + ((bitCount + 63) >>> 6) * 8) {
+                ByteBuffer bits = file.slice(headerSize, length - headerSize);
+                if (magic == UNBLOCKED_MAGIC) return new Filter(Layout.UNBLOCKED, bits, bitCount, probes, keyCount);
+                // the bits of the old blocked layout sit 24 bytes into the buffer, across cache lines
+                if (magic == BLOCKED_MAGIC) bits = allocateAligned(bits.capacity()).put(bits).clear();
+                return new Filter(Layout.BLOCKED, bits, bitCount, probes, keyCount);
+            }
+        }
+        // no header, or one that does not match the file
+        if (length == 0) return new Filter(Layout.EMPTY, file, 0, 0, 0);
+        log.debug("{} has no bloom filter header, reading it as a legacy filter", fileName);
+        return new Filter(Layout.LEGACY, file, length * 8L, LEGACY_HASH_FUNCTIONS, -1);
+    }
+
+    // a direct buffer of the given size starting on a cache line
+    private static ByteBuffer allocateAligned(int size) {
+        int padded = (size + CACHE_LINE - 1) & -CACHE_LINE;
+        return ByteBuffer.allocateDirect(padded + CACHE_LINE - 1).alignedSlice(CACHE_LINE).slice(0, size);
     }
 
     public class BloomFilterWriter implements AutoCloseable {
 
-        BufferedOutputStream bos;
+        private final int bitsPerKey;
+        // both halves of the hash of every key, the filter can only be sized once the keys are counted
+        private long[] hashes = new long[2048];
+        private int count = 0;
 
-        public BloomFilterWriter() {
-            try {
-                bos = new BufferedOutputStream(new FileOutputStream(fileName));
-            } catch (Exception e) {
-                throw new RuntimeException(e);
-            }
+        public BloomFilterWriter(int bitsPerKey) {
+            if (bitsPerKey < 1) throw new IllegalArgumentException("bitsPerKey must be positive");
+            this.bitsPerKey = bitsPerKey;
         }
 
-        public void write(String key) {
-            for (int i=0; i<HASH_FUNCTIONS; i++) {
-                int setBit = Math.abs(getKeyHashValue(key, i) % BLOOM_BUCKET);
-                bitArray.set(setBit);
-            }
+        public void write(byte[] key) {
+            if (2 * count == hashes.length) hashes = Arrays.copyOf(hashes, hashes.length * 2);
+            KeyHash hash = hash(key);
+            hashes[2 * count] = hash.h1();
+            hashes[2 * count + 1] = hash.h2();
+            count++;
         }
 
+        /*
+         * The filter is built in the direct buffer it is written from and stays loaded, the table is
+         * usually read right after it is written.
+         */
         @Override
         public void close() throws Exception {
-            bos.write(bitArray.toByteArray());
-            bos.flush();
-            bos.close();
-        }
-    }
+            long blocks = Math.max(1, ((long) count * bitsPerKey + BLOCK_BITS - 1) / BLOCK_BITS);
+            long bitCount = blocks * BLOCK_BITS;
+            int probes = (int) Math.max(1, Math.min(MAX_PROBES, Math.round(bitsPerKey * Math.log(2))));
 
-    public int getKeyHashValue(String key, int salt) {
-        return Hashing.murmur3_128().hashBytes(key.getBytes()).asInt() + salt * Hashing.sipHash24().hashBytes(key.getBytes()).asInt();
-    }
+            ByteBuffer file = allocateAligned((int) (CACHE_LINE + blocks * BLOCK_WORDS * 8));
+            file.putInt(ALIGNED_MAGIC).putLong(bitCount).putInt(probes).putLong(count);
+            ByteBuffer bits = file.slice(CACHE_LINE, file.capacity() - CACHE_LINE);
+            for (int k = 0; k < count; k++) setBlocked(bits, blocks, probes, hashes[2 * k], hashes[2 * k + 1]);
+            hashes = null;
 
+            try (FileChannel channel = FileChannel.open(Path.of(fileName), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                file.clear();
+                while (file.hasRemaining()) channel.write(file);
+            }
+            synchronized (BloomFilter.this) {
+                filter = new Filter(Layout.BLOCKED, bits, bitCount, probes, count);
+            }
+            if (cache != null) cache.loaded(BloomFilter.this, bits.capacity());
+        }
+    }
 }
@@ -0,0 +1,213 @@
+package graveldb.datastore.cache;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of SSTable blocks shared by every table of the tree, keyed by table id and block offset and
+ * bounded by a byte budget.
+ *
+ * <p>The cache is split in independently locked shards. Each shard runs W-TinyLFU: new blocks go into
+ * a small LRU window, blocks falling out of the window compete with the least recently used block of
+ * the main area and only get in if the frequency sketch has seen them more often. The main area is a
+ * segmented LRU, a block that is hit again while in probation moves to the protected segment. This
+ * keeps one-off reads of a compaction or a scan from flushing out the hot blocks of point lookups.
+ *
+ * <p>With off heap enabled blocks are copied into direct buffers so a large cache does not add to
+ * the heap the GC has to trace.
+ */
+public class BlockCache {
+
+    private static final int SHARD_COUNT = 16;
+    private static final int AVERAGE_BLOCK_SIZE = 4 * 1024;
+    private static final double WINDOW_RATIO = 0.01;
+    private static final double PROTECTED_RATIO = 0.8;
+
+    private final Shard[] shards;
+    private final boolean offHeap;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public record Stats(long hits, long misses, long evictions, long usedBytes, long capacityBytes) {
+        public double hitRate() {
+            long requests = hits + misses;
+            return requests == 0 ? 0 : (double) hits / requests;
+        }
+    }
+
+    private record BlockKey(long tableId, long offset) { }
+
+    private static final class Node {
+        final BlockKey key;
+        final long hash;
+        final ByteBuffer block;
+
+        Node(BlockKey key, long hash, ByteBuffer block) {
+            this.key = key;
+            this.hash = hash;
+            this.block = block;
+        }
+
+        int weight() { return block.capacity(); }
+    }
+
+    public BlockCache(long capacityBytes, boolean offHeap) {
+        this.offHeap = offHeap;
+        this.shards = new Shard[SHARD_COUNT];
+        long shardCapacity = capacityBytes / SHARD_COUNT;
+        for (int i = 0; i < SHARD_COUNT; i++) shards[i] = new Shard(shardCapacity);
+    }
+
+    /**
+     * The cached block or null, the returned buffer is a private view and may be read freely but
+     * must not be written to.
+     */
+    public ByteBuffer get(long tableId, long offset) {
+        BlockKey key = new BlockKey(tableId, offset);
+        long hash = hash(key);
+        ByteBuffer block = shardFor(hash).get(key, hash);
+        if (block == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return block.duplicate();
+    }
+
+    /**
+     * Offers the block to the cache, the content from position to limit is copied.
+     */
+    public void put(long tableId, long offset, ByteBuffer block) {
+        BlockKey key = new BlockKey(tableId, offset);
+        long hash = hash(key);
+        ByteBuffer copy = offHeap ? ByteBuffer.allocateDirect(block.remaining()) : ByteBuffer.allocate(block.remaining());
+        copy.put(block.duplicate()).flip();
+        shardFor(hash).put(new Node(key, hash, copy));
+    }
+
+    public Stats stats() {
+        long used = 0;
+        long capacity = 0;
+        for (Shard shard : shards) {
+            used += shard.usedBytes();
+            capacity += shard.capacity;
+        }
+        return new Stats(hits.sum(), misses.sum(), evictions.sum(), used, capacity);
+    }
+
+    private Shard shardFor(long hash) {
+        return shards[(int) (hash ^ (hash >>> 32)) & (SHARD_COUNT - 1)];
+    }
+
+    private static long hash(BlockKey key) {
+        long h = key.tableId() * 0x9E3779B97F4A7C15L + key.offset();
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private final class Shard {
+
+        final long capacity;
+        final long windowCapacity;
+        final long protectedCapacity;
+        final FrequencySketch sketch;
+
+        // access ordered, the first entry is the least recently used
+        final LinkedHashMap<BlockKey, Node> window = new LinkedHashMap<>(16, 0.75f, true);
+        final LinkedHashMap<BlockKey, Node> probation = new LinkedHashMap<>(16, 0.75f, true);
+        final LinkedHashMap<BlockKey, Node> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+        long windowBytes = 0;
+        long probationBytes = 0;
+        long protectedBytes = 0;
+
+        Shard(long capacity) {
+            this.capacity = capacity;
+            this.windowCapacity = Math.max(AVERAGE_BLOCK_SIZE, (long) (capacity * WINDOW_RATIO));
+            this.protectedCapacity = (long) ((capacity - windowCapacity) * PROTECTED_RATIO);
+            this.sketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE / 2, capacity / AVERAGE_BLOCK_SIZE));
+        }
+
+        synchronized ByteBuffer get(BlockKey key, long hash) {
+            sketch.increment(hash);
+
+            Node node = window.get(key);
+            if (node != null) return node.block;
+
+            node = protectedSegment.get(key);
+            if (node != null) return node.block;
+
+            node = probation.remove(key);
+            if (node == null) return null;
+            probationBytes -= node.weight();
+            protectedSegment.put(key, node);
+            protectedBytes += node.weight();
+            while (protectedBytes > protectedCapacity) {
+                Node demoted = pollLeastRecent(protectedSegment);
+                protectedBytes -= demoted.weight();
+                probation.put(demoted.key, demoted);
+                probationBytes += demoted.weight();
+            }
+            return node.block;
+        }
+
+        synchronized void put(Node node) {
+            if (node.weight() > capacity - windowCapacity) return;
+            if (window.containsKey(node.key) || probation.containsKey(node.key) || protectedSegment.containsKey(node.key)) return;
+
+            window.put(node.key, node);
+            windowBytes += node.weight();
+            while (windowBytes > windowCapacity) {
+                Node candidate = pollLeastRecent(window);
+                windowBytes -= candidate.weight();
+                admit(candidate);
+            }
+        }
+
+        /*
+         * The block leaving the window only replaces main area blocks that were used less often.
+         */
+        private void admit(Node candidate) {
+            long mainCapacity = capacity - windowCapacity;
+            while (probationBytes + protectedBytes + candidate.weight() > mainCapacity) {
+                boolean fromProbation = !probation.isEmpty();
+                Node victim = leastRecent(fromProbation ? probation : protectedSegment);
+                if (sketch.frequency(candidate.hash) <= sketch.frequency(victim.hash)) {
+                    evictions.increment();
+                    return;
+                }
+                if (fromProbation) {
+                    probation.remove(victim.key);
+                    probationBytes -= victim.weight();
+                } else {
+                    protectedSegment.remove(victim.key);
+                    protectedBytes -= victim.weight();
+                }
+                evictions.increment();
+            }
+            probation.put(candidate.key, candidate);
+            probationBytes += candidate.weight();
+        }
+
+        synchronized long usedBytes() {
+            return windowBytes + probationBytes + protectedBytes;
+        }
+
+        private Node leastRecent(LinkedHashMap<BlockKey, Node> segment) {
+            return segment.values().iterator().next();
+        }
+
+        private Node pollLeastRecent(LinkedHashMap<BlockKey, Node> segment) {
+            Iterator<Map.Entry<BlockKey, Node>> it = segment.entrySet().iterator();
+            Node node = it.next().getValue();
+            it.remove();
+            return node;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package graveldb.datastore.cache;
+
+/**
+ * Count-min sketch with 4 bit counters used by the TinyLFU admission of {@link BlockCache}. Each key
+ * maps to one counter in each of four rows, its frequency is the smallest of them. Once the number
+ * of increments reaches the sample size all counters are halved so old popularity fades out.
+ * Not thread safe, every cache shard owns one.
+ */
+class FrequencySketch {
+
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int additions = 0;
+
+    FrequencySketch(int expectedEntries) {
+        int size = Integer.highestOneBit(Math.max(expectedEntries, 64) - 1) << 1;
+        this.table = new long[size];
+        this.tableMask = size - 1;
+        this.sampleSize = 10 * size;
+    }
+
+    int frequency(long hash) {
+        int frequency = 15;
+        for (int i = 0; i < 4; i++) {
+            frequency = Math.min(frequency, (int) ((table[index(hash, i)] >>> offset(hash, i)) & 0xF));
+        }
+        return frequency;
+    }
+
+    void increment(long hash) {
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            int index = index(hash, i);
+            int offset = offset(hash, i);
+            if (((table[index] >>> offset) & 0xF) != 0xF) {
+                table[index] += 1L << offset;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) reset();
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions /= 2;
+    }
+
+    private int index(long hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h += h >>> 32;
+        return (int) h & tableMask;
+    }
+
+    // one of the 16 counters packed in a long
+    private static int offset(long hash, int row) {
+        return (int) ((hash >>> (row * 8)) & 0xF) << 2;
+    }
+}
@@ -0,0 +1,105 @@
+package graveldb.datastore.cache;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps track of the bloom filters and sparse indexes loaded into memory and bounds them by a byte
+ * budget. Metadata is loaded by its table on first use and reported here, every later use touches
+ * it. Once the loaded metadata is over the budget the least recently used metadata that is not pinned
+ * is unloaded again, its table loads it the next time it needs it. Pinned metadata, the metadata of
+ * the levels every read goes through, is never unloaded but counts against the budget.
+ *
+ * <p>A use costs a map lookup and a write of the access time, only loads take the eviction lock.
+ */
+public class MetadataCache {
+
+    /**
+     * Metadata of a table that can be dropped from memory and loaded again on demand.
+     */
+    public interface Metadata {
+
+        boolean isPinned();
+
+        /**
+         * Drops the loaded data, a reader still holding on to it may finish with it.
+         */
+        void unload();
+    }
+
+    private static final class Slot {
+        final long bytes;
+        volatile long lastAccess;
+
+        Slot(long bytes, long lastAccess) {
+            this.bytes = bytes;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    public record Stats(long loads, long evictions, long usedBytes, long capacityBytes) { }
+
+    private final long capacityBytes;
+    private final Map<Metadata, Slot> loaded = new ConcurrentHashMap<>();
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final AtomicLong clock = new AtomicLong();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param capacityBytes budget for loaded metadata, 0 keeps everything loaded once used
+     */
+    public MetadataCache(long capacityBytes) {
+        this.capacityBytes = capacityBytes;
+    }
+
+    /**
+     * Called by the metadata after loading itself.
+     */
+    public void loaded(Metadata metadata, long bytes) {
+        Slot previous = loaded.put(metadata, new Slot(bytes, clock.incrementAndGet()));
+        usedBytes.addAndGet(bytes - (previous == null ? 0 : previous.bytes));
+        loads.increment();
+        if (capacityBytes > 0 && usedBytes.get() > capacityBytes) evict();
+    }
+
+    public void touch(Metadata metadata) {
+        Slot slot = loaded.get(metadata);
+        if (slot != null) slot.lastAccess = clock.incrementAndGet();
+    }
+
+    /**
+     * Forgets metadata that is unloaded for good, the table it belongs to is deleted.
+     */
+    public void remove(Metadata metadata) {
+        Slot slot = loaded.remove(metadata);
+        if (slot != null) usedBytes.addAndGet(-slot.bytes);
+    }
+
+    private synchronized void evict() {
+        if (usedBytes.get() <= capacityBytes) return;
+
+        List<Map.Entry<Metadata, Slot>> candidates = new ArrayList<>();
+        for (Map.Entry<Metadata, Slot> entry : loaded.entrySet()) {
+            if (!entry.getKey().isPinned()) candidates.add(entry);
+        }
+        candidates.sort(Comparator.comparingLong(entry -> entry.getValue().lastAccess));
+
+        for (Map.Entry<Metadata, Slot> entry : candidates) {
+            if (usedBytes.get() <= capacityBytes) break;
+            if (!loaded.remove(entry.getKey(), entry.getValue())) continue;
+            usedBytes.addAndGet(-entry.getValue().bytes);
+            entry.getKey().unload();
+            evictions.increment();
+        }
+    }
+
+    public Stats stats() {
+        return new Stats(loads.sum(), evictions.sum(), usedBytes.get(), capacityBytes);
+    }
+}
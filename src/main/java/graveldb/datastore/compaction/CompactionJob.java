@@ -0,0 +1,78 @@
+package graveldb.datastore.compaction;
+
+import graveldb.datastore.sstable.SSTable;
+import graveldb.util.KeyComparator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One merge picked by a {@link CompactionStrategy}: the input tables of a level and the tables of the
+ * output level they overlap are merged and replaced by the output tables in the output level.
+ *
+ * @param level             level the inputs are taken from
+ * @param inputs            tables of the level, newest first
+ * @param outputLevel       level the output goes to, may be the level itself
+ * @param outputLevelInputs tables of the output level that are merged with the inputs
+ * @param dropTombstones    true if no older entry of any key in the merge can be left below the output
+ * @param targetFileSize    the output is cut into tables of about this size
+ */
+public record CompactionJob(int level, List<SSTable> inputs, int outputLevel, List<SSTable> outputLevelInputs,
+                            boolean dropTombstones, long targetFileSize) {
+
+    /**
+     * Every table of the merge, newest first.
+     */
+    public List<SSTable> sources() {
+        List<SSTable> sources = new ArrayList<>(inputs.size() + outputLevelInputs.size());
+        sources.addAll(inputs);
+        sources.addAll(outputLevelInputs);
+        return sources;
+    }
+
+    /**
+     * A single table that overlaps nothing in the next level is moved there without being rewritten.
+     */
+    public boolean isTrivialMove() {
+        return level != outputLevel && inputs.size() == 1 && outputLevelInputs.isEmpty();
+    }
+
+    /**
+     * Smallest key of any source, null if every source is empty.
+     */
+    public byte[] firstKey() {
+        byte[] first = null;
+        for (SSTable ssTable : sources()) {
+            byte[] key = ssTable.firstKey();
+            if (key != null && (first == null || KeyComparator.compare(key, first) < 0)) first = key;
+        }
+        return first;
+    }
+
+    /**
+     * Largest key of any source, null if every source is empty.
+     */
+    public byte[] lastKey() {
+        byte[] last = null;
+        for (SSTable ssTable : sources()) {
+            byte[] key = ssTable.lastKey();
+            if (key != null && (last == null || KeyComparator.compare(key, last) > 0)) last = key;
+        }
+        return last;
+    }
+
+    /**
+     * Two jobs may run at the same time unless they touch a common level in overlapping key ranges.
+     * Jobs on disjoint ranges neither share a table nor interleave their output.
+     */
+    public boolean conflictsWith(CompactionJob other) {
+        boolean sharedLevel = level == other.level || level == other.outputLevel
+                || outputLevel == other.level || outputLevel == other.outputLevel;
+        if (!sharedLevel) return false;
+
+        byte[] first = firstKey();
+        byte[] otherFirst = other.firstKey();
+        if (first == null || otherFirst == null) return false;
+        return KeyComparator.compare(first, other.lastKey()) <= 0 && KeyComparator.compare(otherFirst, lastKey()) <= 0;
+    }
+}
@@ -0,0 +1,46 @@
+package graveldb.datastore.compaction;
+
+import graveldb.datastore.sstable.SSTable;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Decides how the SSTables of the tree are arranged into levels and which of them are merged next.
+ *
+ * <p>Level 0 receives the flushed memtables, newest first. A strategy either keeps every level as a
+ * list of overlapping tables, newest first ({@link TieredCompactionStrategy}), or keeps the levels
+ * below 0 sorted by key with no two tables overlapping ({@link LeveledCompactionStrategy}), in which
+ * case a point read has to look at a single table per sorted level.
+ *
+ * <p>{@link #pick} is called by one thread at a time, with the levels of a pinned version. Jobs may
+ * run in parallel, the tables of running jobs are handed in so they are not picked twice. Only the
+ * picked jobs that are started are reported back through {@link #scheduled}.
+ */
+public interface CompactionStrategy {
+
+    int levelCount();
+
+    /**
+     * @return true if the tables of the level do not overlap and are kept in key order
+     */
+    boolean isSorted(int level);
+
+    /**
+     * Puts the tables found on disk at startup, newest first, into levels.
+     */
+    List<List<SSTable>> recover(List<SSTable> newestFirst);
+
+    /**
+     * @return the compactions due on these levels, most urgent first, none of them using a table that
+     *         is being compacted; the caller runs the ones not conflicting with running jobs
+     */
+    List<CompactionJob> pick(List<List<SSTable>> levels, Set<SSTable> compacting);
+
+    /**
+     * Called with a job returned by {@link #pick} once it runs, a picked job that is not run leaves
+     * the strategy as it was.
+     */
+    default void scheduled(CompactionJob job) {
+    }
+}
@@ -0,0 +1,186 @@
+package graveldb.datastore.compaction;
+
+import graveldb.datastore.sstable.SSTable;
+import graveldb.util.KeyComparator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Leveled compaction. Level 0 holds the flushed tables, which overlap each other. Every level below
+ * is sorted by key and no two of its tables overlap, so a point read probes at most one table per
+ * level. Level {@code n >= 1} may hold {@code levelBaseBytes * levelMultiplier^(n-1)} bytes.
+ *
+ * <p>Once level 0 has {@code l0CompactionTrigger} tables all of them are merged with the tables of
+ * level 1 they overlap. A level over its size is compacted one table at a time: the next table after
+ * the one compacted last (the compact pointer walks the key space round robin, moving only when a job
+ * is scheduled) is merged with the tables of the next level it overlaps. The output is cut into tables of {@code targetFileBytes}. The
+ * level with the highest score (size over limit, for level 0 table count over trigger) goes first.
+ */
+public class LeveledCompactionStrategy implements CompactionStrategy {
+
+    public static final int DEFAULT_LEVEL_COUNT = 7;
+    public static final int DEFAULT_L0_COMPACTION_TRIGGER = 4;
+    // sized for the default 64 MiB memtable, level 1 holds about what a full level 0 does
+    public static final long DEFAULT_LEVEL_BASE_BYTES = 256L * 1024 * 1024;
+    public static final int DEFAULT_LEVEL_MULTIPLIER = 10;
+    public static final long DEFAULT_TARGET_FILE_BYTES = 64L * 1024 * 1024;
+
+    private final int levelCount;
+    private final int l0CompactionTrigger;
+    private final long levelBaseBytes;
+    private final int levelMultiplier;
+    private final long targetFileBytes;
+
+    // largest key of the last table compacted out of each level
+    private final byte[][] compactPointers;
+
+    public LeveledCompactionStrategy() {
+        this(DEFAULT_LEVEL_COUNT, DEFAULT_L0_COMPACTION_TRIGGER, DEFAULT_LEVEL_BASE_BYTES, DEFAULT_LEVEL_MULTIPLIER, DEFAULT_TARGET_FILE_BYTES);
+    }
+
+    public LeveledCompactionStrategy(int levelCount, int l0CompactionTrigger, long levelBaseBytes, int levelMultiplier, long targetFileBytes) {
+        if (levelCount < 2) throw new IllegalArgumentException("at least two levels are needed");
+        this.levelCount = levelCount;
+        this.l0CompactionTrigger = l0CompactionTrigger;
+        this.levelBaseBytes = levelBaseBytes;
+        this.levelMultiplier = levelMultiplier;
+        this.targetFileBytes = targetFileBytes;
+        this.compactPointers = new byte[levelCount][];
+    }
+
+    @Override
+    public int levelCount() { return levelCount; }
+
+    @Override
+    public boolean isSorted(int level) { return level > 0; }
+
+    /*
+     * Levels are not stored anywhere, every table goes to level 0, where overlapping tables are
+     * allowed, and compaction sorts them into the levels again.
+     */
+    @Override
+    public List<List<SSTable>> recover(List<SSTable> newestFirst) {
+        List<List<SSTable>> levels = new ArrayList<>();
+        levels.add(new ArrayList<>(newestFirst));
+        for (int i = 1; i < levelCount; i++) levels.add(new ArrayList<>());
+        return levels;
+    }
+
+    @Override
+    public List<CompactionJob> pick(List<List<SSTable>> levels, Set<SSTable> compacting) {
+        List<Integer> due = new ArrayList<>();
+        double[] scores = new double[levelCount];
+        for (int i = 0; i < levelCount - 1; i++) {
+            scores[i] = i == 0
+                    ? levels.get(0).size() / (double) l0CompactionTrigger
+                    : levelBytes(levels.get(i)) / (double) maxBytes(i);
+            if (scores[i] >= 1) due.add(i);
+        }
+        due.sort((a, b) -> Double.compare(scores[b], scores[a]));
+
+        List<CompactionJob> jobs = new ArrayList<>();
+        for (int level : due) {
+            CompactionJob job = pick(levels, level, compacting);
+            if (job != null) jobs.add(job);
+        }
+        return jobs;
+    }
+
+    private CompactionJob pick(List<List<SSTable>> levels, int level, Set<SSTable> compacting) {
+        List<SSTable> inputs;
+        if (level == 0) {
+            // level 0 tables overlap, they all go at once
+            if (levels.get(0).stream().anyMatch(compacting::contains)) return null;
+            inputs = levels.get(0);
+        } else {
+            SSTable next = nextTable(levels.get(level), level, compacting);
+            if (next == null) return null;
+            inputs = List.of(next);
+        }
+        byte[] first = firstKey(inputs);
+        byte[] last = lastKey(inputs);
+
+        int outputLevel = level + 1;
+        List<SSTable> overlapping = overlapping(levels.get(outputLevel), first, last);
+        if (overlapping.stream().anyMatch(compacting::contains)) return null;
+
+        // every key of the merge lies in the range of inputs and overlapping tables together
+        List<SSTable> merged = new ArrayList<>(inputs);
+        merged.addAll(overlapping);
+        byte[] mergedFirst = firstKey(merged);
+        byte[] mergedLast = lastKey(merged);
+        boolean dropTombstones = true;
+        for (int i = outputLevel + 1; i < levelCount; i++) {
+            if (!overlapping(levels.get(i), mergedFirst, mergedLast).isEmpty()) dropTombstones = false;
+        }
+
+        return new CompactionJob(level, inputs, outputLevel, overlapping, dropTombstones, targetFileBytes);
+    }
+
+    /*
+     * A picked job may still conflict with a running one, the pointer only moves past tables that
+     * are really compacted, so a skipped table is picked again next time.
+     */
+    @Override
+    public void scheduled(CompactionJob job) {
+        if (job.level() > 0) compactPointers[job.level()] = lastKey(job.inputs());
+    }
+
+    private long maxBytes(int level) {
+        return (long) (levelBaseBytes * Math.pow(levelMultiplier, level - 1));
+    }
+
+    private static long levelBytes(List<SSTable> level) {
+        long size = 0;
+        for (SSTable ssTable : level) size += ssTable.getFileSize();
+        return size;
+    }
+
+    /*
+     * First table past the compact pointer that is not being compacted, wrapping around to the start of
+     * the level.
+     */
+    private SSTable nextTable(List<SSTable> level, int index, Set<SSTable> compacting) {
+        byte[] pointer = compactPointers[index];
+        int start = 0;
+        if (pointer != null) {
+            while (start < level.size() && (level.get(start).firstKey() == null || KeyComparator.compare(level.get(start).firstKey(), pointer) <= 0)) start++;
+        }
+        for (int i = 0; i < level.size(); i++) {
+            SSTable ssTable = level.get((start + i) % level.size());
+            if (!compacting.contains(ssTable)) return ssTable;
+        }
+        return null;
+    }
+
+    private static List<SSTable> overlapping(List<SSTable> level, byte[] first, byte[] last) {
+        List<SSTable> overlapping = new ArrayList<>();
+        if (first == null) return overlapping;
+        for (SSTable ssTable : level) {
+            if (ssTable.firstKey() == null) continue;
+            if (KeyComparator.compare(ssTable.lastKey(), first) < 0 || KeyComparator.compare(ssTable.firstKey(), last) > 0) continue;
+            overlapping.add(ssTable);
+        }
+        return overlapping;
+    }
+
+    private static byte[] firstKey(List<SSTable> tables) {
+        byte[] first = null;
+        for (SSTable ssTable : tables) {
+            byte[] key = ssTable.firstKey();
+            if (key != null && (first == null || KeyComparator.compare(key, first) < 0)) first = key;
+        }
+        return first;
+    }
+
+    private static byte[] lastKey(List<SSTable> tables) {
+        byte[] last = null;
+        for (SSTable ssTable : tables) {
+            byte[] key = ssTable.lastKey();
+            if (key != null && (last == null || KeyComparator.compare(key, last) > 0)) last = key;
+        }
+        return last;
+    }
+}
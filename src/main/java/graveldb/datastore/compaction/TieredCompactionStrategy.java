@@ -0,0 +1,72 @@
+package graveldb.datastore.compaction;
+
+import graveldb.datastore.sstable.SSTable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Size tiered compaction. Each tier is a list of overlapping tables, newest first. Once a tier grows
+ * past {@code TIER_SIZE * TIER_MULTIPLE^level} all of its tables are merged into one table that goes
+ * in front of the next tier, the last tier is merged into itself.
+ */
+public class TieredCompactionStrategy implements CompactionStrategy {
+
+    private static final int TIER_COUNT = 10;
+    private static final int TIER_SIZE = 5000;
+    private static final int TIER_MULTIPLE = 2;
+
+    @Override
+    public int levelCount() { return TIER_COUNT; }
+
+    @Override
+    public boolean isSorted(int level) { return false; }
+
+    /*
+     * Tiers are not stored anywhere, the tables are filled into the tiers newest first by their size.
+     */
+    @Override
+    public List<List<SSTable>> recover(List<SSTable> newestFirst) {
+        List<List<SSTable>> tieredSSTables = new ArrayList<>();
+        for (int i=0; i<TIER_COUNT; i++) tieredSSTables.add(new ArrayList<>());
+
+        // TODO: maintain metadata file to keep track of sstable tier and use this information to build
+        //       back the tier on application startup
+        int level = 0;
+        long currentSize = 0;
+        for (SSTable ssTable : newestFirst) {
+            currentSize += ssTable.getSize();
+            if (currentSize > TIER_SIZE * Math.pow(TIER_MULTIPLE, level)) level ++;
+            if (level >= TIER_COUNT) tieredSSTables.get(TIER_COUNT-1).add(ssTable);
+            else tieredSSTables.get(level).add(ssTable);
+        }
+        return tieredSSTables;
+    }
+
+    /*
+     * Oldest tier first, so a tier is merged before the tier above it pushes its output into it.
+     */
+    @Override
+    public List<CompactionJob> pick(List<List<SSTable>> levels, Set<SSTable> compacting) {
+        List<CompactionJob> jobs = new ArrayList<>();
+        for (int level = TIER_COUNT-1; level >= 0; level--) {
+            List<SSTable> tier = levels.get(level);
+            if (tier.isEmpty() || !checkCompaction(tier, level)) continue;
+            if (tier.stream().anyMatch(compacting::contains)) continue;
+
+            int outputLevel = Math.min(level + 1, TIER_COUNT - 1);
+            // the last tier is compacted into itself, nothing older is left below it
+            jobs.add(new CompactionJob(level, tier, outputLevel, List.of(), level == TIER_COUNT - 1, Long.MAX_VALUE));
+        }
+        return jobs;
+    }
+
+    private boolean checkCompaction(List<SSTable> tier, int level) {
+        long size = 0;
+        for (SSTable ssTable : tier) {
+            size += ssTable.getSize();
+        }
+        return size > TIER_SIZE * Math.pow(TIER_MULTIPLE, level);
+    }
+}
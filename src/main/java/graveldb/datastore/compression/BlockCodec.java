@@ -0,0 +1,26 @@
+package graveldb.datastore.compression;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compression of SSTable data blocks. Every stored block names the codec it was written with by its
+ * {@link #id()}, so a codec has to stay registered with {@link BlockCodecs} for as long as tables
+ * written with it exist. Codecs are shared by every writer and reader and must be thread safe.
+ */
+public interface BlockCodec {
+
+    /**
+     * Stored with every block, 0 to 15 are taken by the built in codecs.
+     */
+    byte id();
+
+    String name();
+
+    byte[] compress(byte[] raw);
+
+    /**
+     * @param compressed the compressed bytes from position to limit
+     * @param raw sized to the length of the block before compression, filled completely
+     */
+    void decompress(ByteBuffer compressed, byte[] raw);
+}
@@ -0,0 +1,64 @@
+package graveldb.datastore.compression;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The built in block codecs and the registry blocks are decoded through.
+ */
+public final class BlockCodecs {
+
+    public static final BlockCodec NONE = new NoCompression();
+    public static final BlockCodec LZ4 = new Lz4Codec();
+    public static final BlockCodec DEFLATE = new DeflateCodec(6);
+
+    private static final Map<Byte, BlockCodec> codecs = new ConcurrentHashMap<>();
+
+    static {
+        register(NONE);
+        register(LZ4);
+        register(DEFLATE);
+    }
+
+    private BlockCodecs() { }
+
+    /**
+     * Makes a codec known to readers, before any table written with it is opened.
+     */
+    public static void register(BlockCodec codec) {
+        BlockCodec registered = codecs.putIfAbsent(codec.id(), codec);
+        if (registered != null && registered != codec) throw new IllegalArgumentException("codec id " + codec.id() + " is taken by " + registered.name());
+    }
+
+    public static BlockCodec forId(byte id) {
+        BlockCodec codec = codecs.get(id);
+        if (codec == null) throw new IllegalStateException("no block codec registered with id " + id);
+        return codec;
+    }
+
+    /**
+     * The registered codec with the given name, for configuration by name.
+     */
+    public static BlockCodec forName(String name) {
+        for (BlockCodec codec : codecs.values()) {
+            if (codec.name().equals(name)) return codec;
+        }
+        throw new IllegalArgumentException("no block codec registered with name " + name);
+    }
+
+    private static final class NoCompression implements BlockCodec {
+
+        @Override
+        public byte id() { return 0; }
+
+        @Override
+        public String name() { return "none"; }
+
+        @Override
+        public byte[] compress(byte[] raw) { return raw; }
+
+        @Override
+        public void decompress(ByteBuffer compressed, byte[] raw) { compressed.get(raw); }
+    }
+}
@@ -0,0 +1,44 @@
+package graveldb.datastore.compression;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bytes through and time spent in the block codecs of one level. Blocks are counted where they are
+ * written and where they are read, a table moved down keeps counting its reads at its new level.
+ */
+public class CompressionStats {
+
+    private final LongAdder rawBytes = new LongAdder();
+    private final LongAdder storedBytes = new LongAdder();
+    private final LongAdder compressNanos = new LongAdder();
+    private final LongAdder decompressedBytes = new LongAdder();
+    private final LongAdder decompressNanos = new LongAdder();
+
+    /**
+     * @param rawBytes written bytes of data before compression
+     * @param storedBytes the bytes they took on disk
+     * @param compressNanos time spent compressing them
+     * @param decompressedBytes bytes of data decompressed for reads
+     * @param decompressNanos time spent decompressing them
+     */
+    public record Stats(long rawBytes, long storedBytes, long compressNanos, long decompressedBytes, long decompressNanos) {
+        public double ratio() {
+            return storedBytes == 0 ? 1 : (double) rawBytes / storedBytes;
+        }
+    }
+
+    public void written(long raw, long stored, long nanos) {
+        rawBytes.add(raw);
+        storedBytes.add(stored);
+        compressNanos.add(nanos);
+    }
+
+    public void read(long raw, long nanos) {
+        decompressedBytes.add(raw);
+        decompressNanos.add(nanos);
+    }
+
+    public Stats stats() {
+        return new Stats(rawBytes.sum(), storedBytes.sum(), compressNanos.sum(), decompressedBytes.sum(), decompressNanos.sum());
+    }
+}
@@ -0,0 +1,138 @@
+package graveldb.datastore.compression;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The LZ4 block format in plain Java, fast enough to sit in the flush path of the top levels.
+ *
+ * <p>A block is a run of sequences {@code <token><literal length...><literals><offset:short LE><match
+ * length...>}. The high nibble of the token is the literal count and the low nibble the match length
+ * minus 4, a nibble of 15 continues in bytes of 255 until one is smaller. The last sequence only holds
+ * literals, and the last 5 bytes of a block are always literals.
+ *
+ * <p>The compressor is greedy: a hash table of the positions of 4 byte sequences finds a candidate
+ * match, which is extended backwards over pending literals and then forwards as far as it goes.
+ */
+public class Lz4Codec implements BlockCodec {
+
+    private static final int MIN_MATCH = 4;
+    private static final int HASH_LOG = 12;
+    private static final int LAST_LITERALS = 5;
+    // a match has to start this far from the end, so the last literals fit behind it
+    private static final int MATCH_FIND_LIMIT = 12;
+    private static final int MAX_DISTANCE = 65535;
+    private static final int RUN_MASK = 15;
+
+    @Override
+    public byte id() { return 1; }
+
+    @Override
+    public String name() { return "lz4"; }
+
+    @Override
+    public byte[] compress(byte[] raw) {
+        int length = raw.length;
+        byte[] compressed = new byte[length + length / 255 + 16];
+        // positions plus one, 0 is an empty slot
+        int[] table = new int[1 << HASH_LOG];
+
+        int in = 0;
+        int anchor = 0;
+        int out = 0;
+        int matchLimit = length - LAST_LITERALS;
+        while (in < length - MATCH_FIND_LIMIT) {
+            int sequence = readInt(raw, in);
+            int hash = (sequence * -1640531535) >>> (32 - HASH_LOG);
+            int ref = table[hash] - 1;
+            table[hash] = in + 1;
+            if (ref < 0 || in - ref > MAX_DISTANCE || readInt(raw, ref) != sequence) {
+                in++;
+                continue;
+            }
+
+            while (in > anchor && ref > 0 && raw[in - 1] == raw[ref - 1]) {
+                in--;
+                ref--;
+            }
+            int matchLength = MIN_MATCH;
+            while (in + matchLength < matchLimit && raw[in + matchLength] == raw[ref + matchLength]) matchLength++;
+
+            int token = out;
+            out = writeSequence(raw, anchor, in - anchor, compressed, out);
+            compressed[out++] = (byte) (in - ref);
+            compressed[out++] = (byte) ((in - ref) >>> 8);
+            int extra = matchLength - MIN_MATCH;
+            compressed[token] |= (byte) Math.min(extra, RUN_MASK);
+            if (extra >= RUN_MASK) out = writeLength(extra - RUN_MASK, compressed, out);
+
+            in += matchLength;
+            anchor = in;
+        }
+        out = writeSequence(raw, anchor, length - anchor, compressed, out);
+        return Arrays.copyOf(compressed, out);
+    }
+
+    /*
+     * Token with the literal count, the count bytes and the literals, the match part of the token is
+     * left at 0 for the caller.
+     */
+    private static int writeSequence(byte[] raw, int from, int literals, byte[] compressed, int out) {
+        compressed[out++] = (byte) (Math.min(literals, RUN_MASK) << 4);
+        if (literals >= RUN_MASK) out = writeLength(literals - RUN_MASK, compressed, out);
+        System.arraycopy(raw, from, compressed, out, literals);
+        return out + literals;
+    }
+
+    private static int writeLength(int length, byte[] compressed, int out) {
+        while (length >= 255) {
+            compressed[out++] = (byte) 255;
+            length -= 255;
+        }
+        compressed[out++] = (byte) length;
+        return out;
+    }
+
+    private static int readInt(byte[] bytes, int i) {
+        return (bytes[i] & 0xFF) | (bytes[i + 1] & 0xFF) << 8 | (bytes[i + 2] & 0xFF) << 16 | (bytes[i + 3] & 0xFF) << 24;
+    }
+
+    @Override
+    public void decompress(ByteBuffer compressed, byte[] raw) {
+        int out = 0;
+        try {
+            while (compressed.hasRemaining()) {
+                int token = compressed.get() & 0xFF;
+                int literals = token >>> 4;
+                if (literals == RUN_MASK) literals += readLength(compressed);
+                compressed.get(raw, out, literals);
+                out += literals;
+                if (!compressed.hasRemaining()) break;
+
+                int offset = (compressed.get() & 0xFF) | (compressed.get() & 0xFF) << 8;
+                int matchLength = token & RUN_MASK;
+                if (matchLength == RUN_MASK) matchLength += readLength(compressed);
+                matchLength += MIN_MATCH;
+                int ref = out - offset;
+                if (offset == 0 || ref < 0 || out + matchLength > raw.length) throw new IllegalStateException("corrupt lz4 block at " + out);
+                // byte by byte, the match may overlap the bytes it produces
+                for (int i = 0; i < matchLength; i++) raw[out + i] = raw[ref + i];
+                out += matchLength;
+            }
+        } catch (IndexOutOfBoundsException | BufferUnderflowException e) {
+            throw new IllegalStateException("corrupt lz4 block at " + out, e);
+        }
+        if (out != raw.length) throw new IllegalStateException("lz4 block decompressed to " + out + " bytes instead of " + raw.length);
+    }
+
+    private static int readLength(ByteBuffer compressed) {
+        int length = 0;
+        int b;
+        do {
+            b = compressed.get() & 0xFF;
+            length += b;
+        } while (b == 255);
+        return length;
+    }
+}
@@ -1,3 +1,31 @@
 package graveldb.datastore.lsmtree;
 
-public record KeyValuePair(String key, String value, boolean isDeleted) {}
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * A key and its value as raw bytes, pairs are equal when their contents are.
+ */
+public record KeyValuePair(byte[] key, byte[] value, boolean isDeleted) {
+
+    public String keyString() { return new String(key, StandardCharsets.UTF_8); }
+
+    public String valueString() { return new String(value, StandardCharsets.UTF_8); }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof KeyValuePair other && isDeleted == other.isDeleted
+                && Arrays.equals(key, other.key) && Arrays.equals(value, other.value);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(Arrays.hashCode(key), Arrays.hashCode(value), isDeleted);
+    }
+
+    @Override
+    public String toString() {
+        return "KeyValuePair[key=" + keyString() + ", value=" + valueString() + ", isDeleted=" + isDeleted + "]";
+    }
+}
@@ -1,23 +1,46 @@
 package graveldb.datastore.lsmtree;
 
 import graveldb.datastore.KeyValueStore;
+import graveldb.datastore.ScanIterator;
 import graveldb.datastore.bloomfilter.BloomFilter;
+import graveldb.datastore.cache.BlockCache;
+import graveldb.datastore.cache.MetadataCache;
+import graveldb.datastore.compaction.CompactionJob;
+import graveldb.datastore.compaction.CompactionStrategy;
+import graveldb.datastore.compression.CompressionStats;
 import graveldb.datastore.memtable.ConcurrentSkipListMemtable;
 import graveldb.datastore.memtable.Memtable;
+import graveldb.datastore.merge.MergeEntry;
+import graveldb.datastore.merge.MergeIterator;
 import graveldb.datastore.sparseindex.SparseIndex;
 import graveldb.datastore.sstable.SSTable;
+import graveldb.parser.Command;
+import graveldb.util.KeyComparator;
 import graveldb.util.Pair;
+import graveldb.wal.WalDurability;
+import graveldb.wal.WalRecord;
+import graveldb.wal.WalRecovery;
 import graveldb.wal.WriteAheadLog;
+import com.google.common.util.concurrent.RateLimiter;
+import com.sun.management.HotSpotDiagnosticMXBean;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
 
@@ -30,68 +53,253 @@ public class LSMTree implements KeyValueStore {
     private static final String SSTABLE_FILE_POSTFIX = "_ssfile.data";
     private static final String SPARSE_INDEX_FILE_POSTFIX = "_index.data";
     private static final String BLOOM_FILTER_FILE_POSTFIX = "_filter.data";
-    private static final int KEY_COUNT_FOR_SPARSE_INDEX = 500;
+    private static final String MANIFEST_FILE = "MANIFEST";
 
     AtomicInteger sstableCount;
 
-    private Memtable mutMemtable;
-    private final LinkedList<Memtable> immMemtables;
-    private WriteAheadLog mutWal;
-    private final ConcurrentHashMap<Memtable, WriteAheadLog> memtableToWalfile;
+    private final AtomicReference<MemtableSlot> mutSlot;
+    private final ConcurrentHashMap<Memtable, MemtableSlot> memtableSlots;
     private final ConcurrentHashMap<SSTable, Pair<BloomFilter, SparseIndex>> ssTableToBloomAndSparse;
 
-    private static final Object memTableObject = new Object();
+    private final AtomicLong lastSequence = new AtomicLong(0);
+
+    // readers pin the current version without locking, new versions are installed under versionLock
+    private final AtomicReference<Version> currentVersion;
+    private final Object versionLock = new Object();
+    // every change to the levels is logged here before its version is installed, guarded by versionLock
+    private final Manifest manifest;
 
     ScheduledExecutorService memtableFlusher;
+    ExecutorService flushPool;
     ScheduledExecutorService tableCompactor;
-
-    private static final int TIER_COUNT = 10;
-    private static final int TIER_SIZE = 5000;
-    private static final int TIER_MULTIPLE = 2;
-
-    private final LinkedList<LinkedList<SSTable>> tieredSSTables;
+    ScheduledExecutorService walSyncer;
+    ExecutorService compactionPool;
+    ExecutorService subcompactionPool;
+
+    // compaction jobs being merged and their tables, guarded by runningCompactions
+    private final List<CompactionJob> runningCompactions = new ArrayList<>();
+    private final Set<SSTable> compactingTables = new HashSet<>();
+    private final RateLimiter compactionRateLimiter;
+
+    // compaction output is charged to the rate limiter in chunks of this many bytes
+    private static final int RATE_LIMIT_CHUNK = 64 * 1024;
+
+    // set while a flush task is queued, rotations in the meantime do not queue another one
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    // flushes in progress or waiting to be installed by their memtable, only used by memtableFlusher
+    private final Map<Memtable, Flush> flushing = new HashMap<>();
+
+    // writers over a hard write limit wait on it, notified whenever a flush or compaction is installed
+    private final Object writeStallLock = new Object();
+    private volatile boolean stopped;
+
+    // the value a delete writes, an empty value reads as a deleted key everywhere
+    private static final byte[] TOMBSTONE = new byte[0];
+
+    // delay of a write just below the hard limits, writes at the soft limits are delayed a fraction of it
+    private static final long MAX_WRITE_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final LSMTreeConfig config;
+    // every direct buffer of the JVM, memtable slabs, bloom filters and off heap cached blocks alike
+    private final BufferPoolMXBean directPool = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class).stream()
+            .filter(pool -> pool.getName().equals("direct")).findAny().orElse(null);
+    private final long directMemoryLimit;
+    private final BlockCache blockCache;
+    private final MetadataCache metadataCache;
+    // by level
+    private final List<CompressionStats> compressionStats = new ArrayList<>();
+    private final CompactionStrategy compactionStrategy;
 
     public LSMTree() {
-        this.mutMemtable = new ConcurrentSkipListMemtable();
-        this.immMemtables = new LinkedList<>();
-        this.tieredSSTables = new LinkedList<>(); for (int i=0; i<TIER_COUNT; i++) tieredSSTables.add(new LinkedList<>());
-        this.mutWal = new WriteAheadLog();
-        this.memtableToWalfile = new ConcurrentHashMap<>();
+        this(new LSMTreeConfig());
+    }
+
+    public LSMTree(LSMTreeConfig config) {
+        this.config = config;
+        this.directMemoryLimit = maxDirectMemory();
+        checkDirectMemory(config, directMemoryLimit);
+        this.blockCache = config.blockCacheBytes() > 0 ? new BlockCache(config.blockCacheBytes(), config.blockCacheOffHeap()) : null;
+        this.metadataCache = new MetadataCache(config.metadataCacheBytes());
+        this.compactionStrategy = config.compactionStrategy();
+        for (int level = 0; level < compactionStrategy.levelCount(); level++) compressionStats.add(new CompressionStats());
+        this.compactionRateLimiter = config.compactionBytesPerSecond() > 0 ? RateLimiter.create(config.compactionBytesPerSecond()) : null;
+        this.memtableSlots = new ConcurrentHashMap<>();
         this.ssTableToBloomAndSparse = new ConcurrentHashMap<>();
 
-        memtableToWalfile.put(mutMemtable, mutWal);
+        // has to run before the new WAL segment is created
+        List<Memtable> immMemtables = recoverMemtables();
 
-        fillSstableList();
+        Memtable mutMemtable = new ConcurrentSkipListMemtable(config.memtableBytes());
+        MemtableSlot slot = new MemtableSlot(mutMemtable, new WriteAheadLog(config.walDurability()));
+        memtableSlots.put(mutMemtable, slot);
+        this.mutSlot = new AtomicReference<>(slot);
 
+        this.manifest = new Manifest(Path.of(DATA_DIR, MANIFEST_FILE));
+        List<List<SSTable>> tieredSSTables = loadSsTables();
+        this.currentVersion = new AtomicReference<>(new Version(mutMemtable, immMemtables, tieredSSTables, this::releaseSsTable));
+        assignLevels(tieredSSTables);
+        // starts the log over with the state just loaded, which also drops an edit cut short by a crash
+        manifest.rewrite(manifestSnapshot(tieredSSTables));
+
+        // every rotation requests a flush, the tick only retries flushes that failed
+        flushPool = Executors.newFixedThreadPool(config.flushThreads());
         memtableFlusher = newSingleThreadScheduledExecutor();
-        memtableFlusher.scheduleAtFixedRate(this::flushMemtable, 50, 50, TimeUnit.MILLISECONDS);
+        memtableFlusher.scheduleWithFixedDelay(this::requestFlush, 1, 1, TimeUnit.SECONDS);
+        requestFlush();
 
+        compactionPool = Executors.newFixedThreadPool(config.compactionThreads());
+        subcompactionPool = Executors.newFixedThreadPool(Math.max(1, config.maxSubcompactions() - 1));
         tableCompactor = newSingleThreadScheduledExecutor();
         tableCompactor.scheduleAtFixedRate(this::compaction, 200, 200, TimeUnit.MILLISECONDS);
+
+        if (config.walDurability() == WalDurability.INTERVAL_FSYNC) {
+            walSyncer = newSingleThreadScheduledExecutor();
+            walSyncer.scheduleAtFixedRate(this::syncWal, config.walSyncIntervalMs(), config.walSyncIntervalMs(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /*
+     * Every WAL segment left by the previous run is replayed straight into an immutable memtable of its
+     * own. Segments are independent so they are rebuilt in parallel, nothing is logged again, and the
+     * segment stays on disk until its memtable goes through the regular flush.
+     */
+    private List<Memtable> recoverMemtables() {
+        long start = System.currentTimeMillis();
+        LinkedList<Memtable> immMemtables = new LinkedList<>();
+
+        List<RecoveredMemtable> recovered = new WalRecovery().getSegments().parallelStream()
+                .map(wal -> replaySegment(wal, config.memtableBytes()))
+                .filter(Objects::nonNull)
+                .sorted(Comparator.comparingLong(RecoveredMemtable::firstSequence))
+                .toList();
+
+        for (RecoveredMemtable recoveredMemtable : recovered) {
+            immMemtables.addFirst(recoveredMemtable.memtable());
+            memtableSlots.put(recoveredMemtable.memtable(), new MemtableSlot(recoveredMemtable.memtable(), recoveredMemtable.wal(), true));
+            lastSequence.accumulateAndGet(recoveredMemtable.lastSequence(), Math::max);
+        }
+
+        if (!recovered.isEmpty()) {
+            log.info("recovered {} memtables from wal in {} ms, last sequence {}", recovered.size(), System.currentTimeMillis() - start, lastSequence);
+        }
+        return immMemtables;
     }
 
-    private void fillSstableList() {
+    private static RecoveredMemtable replaySegment(WriteAheadLog wal, long memtableBytes) {
+        Memtable memtable = new ConcurrentSkipListMemtable(memtableBytes);
+        long firstSequence = Long.MAX_VALUE;
+        long lastSequence = 0;
+
+        for (WalRecord walRecord : wal) {
+            memtable.put(walRecord.key(), walRecord.command() == Command.DEL ? TOMBSTONE : walRecord.value(), walRecord.sequence());
+            firstSequence = Math.min(firstSequence, walRecord.sequence());
+            lastSequence = Math.max(lastSequence, walRecord.sequence());
+        }
+
+        // empty segments are deleted before replay, one without a single readable record is not thrown away
+        if (firstSequence == Long.MAX_VALUE) {
+            wal.setAside();
+            return null;
+        }
+        return new RecoveredMemtable(memtable, wal, firstSequence, lastSequence);
+    }
 
+    private record RecoveredMemtable(Memtable memtable, WriteAheadLog wal, long firstSequence, long lastSequence) {}
+
+    /*
+     * The manifest lists the tables of every level, only those are opened and nothing is searched for.
+     * A data directory without one, written before there was a manifest, is listed once and the
+     * strategy places its tables, from then on the manifest is kept.
+     */
+    private List<List<SSTable>> loadSsTables() {
         try {
             Files.createDirectories(Paths.get(DATA_DIR));
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
 
+        if (!manifest.exists()) return compactionStrategy.recover(scanSsTables());
+
+        Manifest.State state = manifest.replay();
+        sstableCount = new AtomicInteger((int) state.nextFileNumber());
+        deleteUnlistedTables(state);
+        lastSequence.accumulateAndGet(state.lastSequence(), Math::max);
+
+        List<List<SSTable>> levels = new ArrayList<>();
+        for (List<Manifest.Table> tables : state.levels()) {
+            List<SSTable> level = new ArrayList<>();
+            for (Manifest.Table table : tables) level.add(openSsTable(table));
+            levels.add(level);
+        }
+
+        if (!compactionStrategyName().equals(state.strategy()) || levels.size() > compactionStrategy.levelCount()) {
+            log.info("levels were laid out by {}, {} places the tables again", state.strategy(), compactionStrategyName());
+            List<SSTable> newestFirst = new ArrayList<>();
+            levels.forEach(newestFirst::addAll);
+            return compactionStrategy.recover(newestFirst);
+        }
+        while (levels.size() < compactionStrategy.levelCount()) levels.add(new ArrayList<>());
+        for (int level = 0; level < levels.size(); level++) {
+            if (compactionStrategy.isSorted(level)) levels.get(level).sort(Comparator.comparing(SSTable::firstKey, Comparator.nullsFirst(KeyComparator.BYTE_ORDER)));
+        }
+        return levels;
+    }
+
+    /*
+     * A table whose flush or compaction crashed before its edit was logged is in no level, neither is
+     * one a logged compaction deleted before its files were removed. Their file numbers would be
+     * handed out again, so their directories go before anything is written.
+     */
+    private void deleteUnlistedTables(Manifest.State state) {
+        Set<Integer> listed = new HashSet<>();
+        for (List<Manifest.Table> tables : state.levels()) {
+            for (Manifest.Table table : tables) listed.add(table.fileNumber());
+        }
+        File[] ssTableDirs = new File(DATA_DIR).listFiles(file -> file.isDirectory() && file.getName().startsWith("sstable_"));
+        if (ssTableDirs == null) return;
+        for (File ssTableDir : ssTableDirs) {
+            String[] nameParts = ssTableDir.getName().split("_");
+            if (listed.contains(Integer.parseInt(nameParts[nameParts.length - 1]))) continue;
+            log.info("deleting {}, it is not in the manifest", ssTableDir.getName());
+            if (!deleteTableDirectory(ssTableDir)) log.warn("not all files of {} could be deleted", ssTableDir.getName());
+        }
+    }
+
+    private SSTable openSsTable(Manifest.Table table) {
+        String ssTableFilePath = ssTableFilePath(table.fileNumber(), SSTABLE_FILE_POSTFIX);
+        if (!Files.exists(Path.of(ssTableFilePath))) throw new RuntimeException("sstable " + table.fileNumber() + " of the manifest not found");
+
+        SSTable ssTable = new SSTable(ssTableFilePath, config.sstableReadMode(), blockCache);
+        ssTable.setKeyRange(table.firstKey(), table.lastKey());
+        ssTableToBloomAndSparse.put(ssTable, new Pair<>(
+                new BloomFilter(ssTableFilePath(table.fileNumber(), BLOOM_FILTER_FILE_POSTFIX), metadataCache),
+                new SparseIndex(ssTableFilePath(table.fileNumber(), SPARSE_INDEX_FILE_POSTFIX), metadataCache)));
+        return ssTable;
+    }
+
+    /*
+     * Every table directory found, newest first.
+     */
+    private List<SSTable> scanSsTables() {
+        List<SSTable> ssTables = new ArrayList<>();
+
         File directory = new File(DATA_DIR);
-        File[] ssTableDirs = directory.listFiles();
+        File[] ssTableDirs = directory.listFiles(file -> file.isDirectory() && file.getName().startsWith("sstable_"));
         sstableCount = new AtomicInteger(0);
-        if (ssTableDirs == null) return;
-        if (ssTableDirs.length == 0) return;
+        if (ssTableDirs == null) return ssTables;
+        if (ssTableDirs.length == 0) return ssTables;
 
         log.info("{} sstables found in the directory", ssTableDirs.length);
 
-        Arrays.sort(ssTableDirs, Comparator.comparingLong(File::lastModified));
+        // newest first, the same order flush and compaction keep the tiers in
+        Arrays.sort(ssTableDirs, Comparator.comparingLong(File::lastModified).reversed());
 
-        String[] toGetMaxSsTableCount = ssTableDirs[0].getName().split("_");
-        sstableCount = new AtomicInteger(Integer.parseInt(toGetMaxSsTableCount[toGetMaxSsTableCount.length-1]));
-        int level = 0;
-        long currentSize = 0;
+        int maxSsTableCount = 0;
+        for (File ssTableDir : ssTableDirs) {
+            String[] toGetMaxSsTableCount = ssTableDir.getName().split("_");
+            maxSsTableCount = Math.max(maxSsTableCount, Integer.parseInt(toGetMaxSsTableCount[toGetMaxSsTableCount.length-1]));
+        }
+        sstableCount = new AtomicInteger(maxSsTableCount);
 
         for (File ssTableDir : ssTableDirs){
             File[] ssTableFiles = ssTableDir.listFiles();
@@ -108,320 +316,1002 @@ public class LSMTree implements KeyValueStore {
                     .filter(file -> file.getName().contains(SPARSE_INDEX_FILE_POSTFIX)).findAny()
                     .orElseThrow(() -> new RuntimeException("sparse index not found")).getAbsolutePath();
             Pair<BloomFilter, SparseIndex> bloomAndSparse = new Pair<>(
-                    new BloomFilter(bloomFilterFileName),
-                    new SparseIndex(sparseIndexFileName)
+                    new BloomFilter(bloomFilterFileName, metadataCache),
+                    new SparseIndex(sparseIndexFileName, metadataCache)
             );
-            SSTable ssTable = new SSTable(ssTableFileName);
-
-            // TODO: maintain metadata file to keep track of sstable tier and use this information to build
-            //       back the tier on application startup
-            currentSize += ssTable.getSize();
-            if (currentSize > TIER_SIZE * Math.pow(TIER_MULTIPLE, level)) level ++;
-            if (level >= TIER_COUNT) tieredSSTables.get(TIER_COUNT-1).add(ssTable);
-            else tieredSSTables.get(level).add(ssTable);
+            SSTable ssTable = new SSTable(ssTableFileName, config.sstableReadMode(), blockCache);
+            ssTables.add(ssTable);
 
             ssTableToBloomAndSparse.put(ssTable,bloomAndSparse);
         }
+        return ssTables;
+    }
+
+    private String compactionStrategyName() {
+        return compactionStrategy.getClass().getSimpleName();
+    }
+
+    // caller holds versionLock
+    private void logAndInstall(Manifest.Edit edit, Version version) {
+        manifest.append(edit);
+        installVersion(version);
+        if (manifest.size() > Manifest.MAX_SIZE) manifest.rewrite(manifestSnapshot(version.tiers()));
+        synchronized (writeStallLock) {
+            writeStallLock.notifyAll();
+        }
+    }
+
+    private Manifest.Edit manifestEdit(List<Manifest.Table> added, List<Manifest.Table> deleted) {
+        return new Manifest.Edit(null, sstableCount.get(), lastSequence.get(), added, deleted);
+    }
+
+    private Manifest.Edit manifestSnapshot(List<List<SSTable>> levels) {
+        List<Manifest.Table> tables = new ArrayList<>();
+        for (int level = 0; level < levels.size(); level++) tables.addAll(manifestTables(level, levels.get(level)));
+        return new Manifest.Edit(compactionStrategyName(), sstableCount.get(), lastSequence.get(), tables, List.of());
+    }
+
+    private static List<Manifest.Table> manifestTables(int level, List<SSTable> ssTables) {
+        List<Manifest.Table> tables = new ArrayList<>(ssTables.size());
+        for (SSTable ssTable : ssTables) tables.add(new Manifest.Table(level, fileNumber(ssTable), ssTable.firstKey(), ssTable.lastKey()));
+        return tables;
+    }
+
+    // tables live in <data dir>/sstable_<n>/<n>_ssfile.data
+    private static int fileNumber(SSTable ssTable) {
+        String name = Path.of(ssTable.getFileName()).getFileName().toString();
+        return Integer.parseInt(name.substring(0, name.length() - SSTABLE_FILE_POSTFIX.length()));
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value) {
+        write(Command.SET, key, value, true);
+    }
+
+    @Override
+    public boolean tryPut(byte[] key, byte[] value) {
+        return write(Command.SET, key, value, false);
+    }
+
+    /*
+     * Writers do not lock each other out, the memtable is concurrent and a write that races another
+     * write of the same key in the same memtable is resolved by its sequence number, as in WAL replay.
+     * Across memtables the newer memtable wins for every read, whatever the sequences, a writer that
+     * entered the sealed slot may take its sequence after writes already went to the next one.
+     * Concurrent writers still pile up into the same group commit of the WAL. Unthrottled writes skip
+     * the delay and are refused during a stall, false then and nothing is written.
+     */
+    private boolean write(Command command, byte[] key, byte[] value, boolean throttle) {
+        if (throttle) throttleWrite();
+        else if (isWriteStalled()) return false;
+        MemtableSlot slot = enterMutSlot();
+        try {
+            long sequence = lastSequence.incrementAndGet();
+            CompletableFuture<Void> commit = slot.wal().append(sequence, command, key, value);
+            slot.memtable().put(key, value == null ? TOMBSTONE : value, sequence);
+            slot.wal().commit(commit);
+        } finally {
+            if (slot.exit()) drained(slot);
+        }
+
+        if (slot.memtable().canFlush() && slot.seal()) rotate(slot);
+        return true;
+    }
+
+    @Override
+    public void putAll(List<byte[]> keys, List<byte[]> values) {
+        writeBatch(Command.SET, keys, values, true);
+    }
+
+    @Override
+    public boolean tryPutAll(List<byte[]> keys, List<byte[]> values) {
+        return writeBatch(Command.SET, keys, values, false);
     }
 
     @Override
-    public void put(String key, String value) {
-        synchronized (memTableObject) {
-            mutWal.append("SET", key, value);
-            mutMemtable.put(key, value);
-
-            if (!mutMemtable.canFlush()) return;
-
-            synchronized (immMemtables) {
-                immMemtables.addFirst(mutMemtable);
-                mutMemtable = new ConcurrentSkipListMemtable();
-                mutWal = new WriteAheadLog();
-                memtableToWalfile.put(mutMemtable, mutWal);
+    public void deleteAll(List<byte[]> keys) {
+        writeBatch(Command.DEL, keys, null, true);
+    }
+
+    @Override
+    public boolean tryDeleteAll(List<byte[]> keys) {
+        return writeBatch(Command.DEL, keys, null, false);
+    }
+
+    /*
+     * The batch takes a range of sequence numbers, goes to the WAL as a single record and into the
+     * memtable in one pass, all of it lands in the same memtable. Values are null for DEL.
+     */
+    private boolean writeBatch(Command command, List<byte[]> keys, List<byte[]> values, boolean throttle) {
+        if (keys.isEmpty()) return true;
+
+        if (throttle) throttleWrite();
+        else if (isWriteStalled()) return false;
+        MemtableSlot slot = enterMutSlot();
+        try {
+            long firstSequence = lastSequence.getAndAdd(keys.size()) + 1;
+            List<WalRecord> records = new ArrayList<>(keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                records.add(new WalRecord(firstSequence + i, command, keys.get(i), values == null ? null : values.get(i)));
+            }
+
+            CompletableFuture<Void> commit = slot.wal().append(records);
+            for (WalRecord walRecord : records) {
+                slot.memtable().put(walRecord.key(), walRecord.value() == null ? TOMBSTONE : walRecord.value(), walRecord.sequence());
+            }
+            slot.wal().commit(commit);
+        } finally {
+            if (slot.exit()) drained(slot);
+        }
+
+        if (slot.memtable().canFlush() && slot.seal()) rotate(slot);
+        return true;
+    }
+
+    /*
+     * Backpressure for when flushes or compactions fall behind the writes. Past a soft limit on the
+     * immutable memtables or the level 0 tables every write is delayed, the longer the closer the tree
+     * is to the hard limit, and at the hard limit writes wait until a flush or compaction brings the
+     * tree back under it.
+     */
+    private void throttleWrite() {
+        double pressure = writePressure(currentVersion.get());
+        if (pressure <= 0) return;
+        if (pressure < 1) {
+            LockSupport.parkNanos((long) (pressure * MAX_WRITE_DELAY_NANOS));
+            return;
+        }
+
+        synchronized (writeStallLock) {
+            while (!stopped && writePressure(currentVersion.get()) >= 1) {
+                try {
+                    writeStallLock.wait(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
             }
         }
     }
 
+    /*
+     * 0 below the soft limits up to 1 at the hard limits, for whichever limit the tree is closer to.
+     * Only the sizes of the version are read, it does not have to be pinned for that.
+     */
+    private double writePressure(Version version) {
+        return Math.max(
+                pressure(version.immutables().size(), config.slowdownImmutableMemtables(), config.maxImmutableMemtables()),
+                pressure(version.tiers().get(0).size(), config.l0SlowdownTables(), config.l0StopTables()));
+    }
+
+    private static double pressure(int count, int soft, int hard) {
+        if (count < soft) return 0;
+        if (count >= hard) return 1;
+        return (count - soft + 1) / (double) (hard - soft + 1);
+    }
+
     @Override
-    public String get(String key) {
-        String value = null;
+    public boolean isWriteStalled() {
+        return writePressure(currentVersion.get()) >= 1;
+    }
+
+    @Override
+    public long writeDelayNanos() {
+        return (long) (Math.min(writePressure(currentVersion.get()), 1) * MAX_WRITE_DELAY_NANOS);
+    }
+
+    /*
+     * Memtables, up to maxImmutableMemtables of them waiting for their flush besides the mutable one,
+     * bloom filters, up to the metadata cache budget, and an off heap block cache live in direct
+     * memory. The tree still opens when all of them together could exceed what the JVM allows, most
+     * trees never fill them all, the actual use is checked again on every memtable rotation.
+     */
+    private static void checkDirectMemory(LSMTreeConfig config, long limit) {
+        long memtables = config.memtableBytes() * (config.maxImmutableMemtables() + 1);
+        long filters = config.metadataCacheBytes();
+        long blockCache = config.blockCacheOffHeap() ? config.blockCacheBytes() : 0;
+        if (memtables + filters + blockCache > limit) {
+            log.warn("memtables ({} bytes with maxImmutableMemtables waiting), bloom filters ({} bytes of metadata cache) and the "
+                    + "off heap block cache ({} bytes) can take more than the {} bytes of direct memory, lower them or raise "
+                    + "-XX:MaxDirectMemorySize", memtables, filters, blockCache, limit);
+        }
+    }
+
+    private void warnOnDirectMemory() {
+        if (directPool == null) return;
+        long used = directPool.getMemoryUsed();
+        if (used > directMemoryLimit / 10 * 9) {
+            log.warn("{} of {} bytes of direct memory in use, {} immutable memtables wait for their flush",
+                    used, directMemoryLimit, currentVersion.get().immutables().size());
+        }
+    }
+
+    // without -XX:MaxDirectMemorySize the JVM allows as much direct memory as heap
+    private static long maxDirectMemory() {
+        HotSpotDiagnosticMXBean diagnostics = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+        long max = diagnostics == null ? 0 : Long.parseLong(diagnostics.getVMOption("MaxDirectMemorySize").getValue());
+        return max > 0 ? max : Runtime.getRuntime().maxMemory();
+    }
+
+    /*
+     * Only writers arriving while the full slot is being replaced have to wait, for as long as it
+     * takes to create the next WAL segment.
+     */
+    private MemtableSlot enterMutSlot() {
+        while (true) {
+            MemtableSlot slot = mutSlot.get();
+            if (slot.tryEnter()) return slot;
+            Thread.onSpinWait();
+        }
+    }
+
+    private void rotate(MemtableSlot sealed) {
+        Memtable newMemtable = new ConcurrentSkipListMemtable(config.memtableBytes());
+        MemtableSlot slot = new MemtableSlot(newMemtable, new WriteAheadLog(config.walDurability()));
+        memtableSlots.put(newMemtable, slot);
+        // readers have to see the new memtable before anyone can write to it
+        synchronized (versionLock) {
+            installVersion(currentVersion.get().withMutable(newMemtable));
+        }
+        mutSlot.set(slot);
+        warnOnDirectMemory();
+        // writers still inside the sealed slot may append to its WAL, the last of them to leave syncs it
+        if (sealed.isDrained()) drained(sealed);
+        else requestFlush();
+    }
+
+    /*
+     * Nothing is appended to the WAL of a sealed slot once its writers are gone. With interval fsync
+     * its tail is synced now, the syncer only syncs the WAL of the mutable memtable.
+     */
+    private void drained(MemtableSlot sealed) {
+        if (walSyncer != null) {
+            try {
+                walSyncer.execute(sealed.wal()::sync);
+            } catch (RejectedExecutionException e) {
+                log.info("wal syncer is shut down");
+            }
+        }
+        requestFlush();
+    }
 
-        synchronized (memTableObject) {
-            value = mutMemtable.get(key);
+    private void syncWal() {
+        mutSlot.get().wal().sync();
+    }
+
+    @Override
+    public byte[] get(byte[] key) {
+        Version version = acquireVersion();
+        try {
+            byte[] value = getFromMemtables(version, key);
             if (value != null) {
-                if (value.isEmpty()) return null;
+                if (value.length == 0) return null;
                 else return value;
             }
+
+            value = getFromSstable(version, key);
+
+            if (value == null || value.length == 0) return null;
+            else return value;
+        } finally {
+            version.unref();
+        }
+    }
+
+    /*
+     * Empty value for a deleted key, null if no memtable has the key.
+     */
+    private static byte[] getFromMemtables(Version version, byte[] key) {
+        byte[] value = version.mutable().get(key);
+        if (value != null) return value;
+
+        for (Memtable table : version.immutables()) {
+            value = table.get(key);
+            if (value != null) return value;
+        }
+        return null;
+    }
+
+    /*
+     * All keys are read from the same version. The keys the memtables do not have are probed table by
+     * table in key order, so keys falling into the same block of a table share one block read.
+     */
+    @Override
+    public List<byte[]> getAll(List<byte[]> keys) {
+        Version version = acquireVersion();
+        try {
+            Map<byte[], byte[]> found = new TreeMap<>(KeyComparator.BYTE_ORDER);
+            // hashed once, the hash is checked against the filter of every table
+            List<BloomFilter.KeyHash> pending = new ArrayList<>();
+            Set<byte[]> sortedKeys = new TreeSet<>(KeyComparator.BYTE_ORDER);
+            sortedKeys.addAll(keys);
+            for (byte[] key : sortedKeys) {
+                byte[] value = getFromMemtables(version, key);
+                if (value != null) found.put(key, value);
+                else pending.add(BloomFilter.hash(key));
+            }
+
+            for (int level = 0; level < version.tiers().size(); level++) {
+                for (SSTable sstable : version.tiers().get(level)) {
+                    if (pending.isEmpty()) break;
+                    if (!inRange(sstable, pending.get(0).key(), pending.get(pending.size() - 1).key())) continue;
+                    Pair<BloomFilter, SparseIndex> pair = ssTableToBloomAndSparse.get(sstable);
+
+                    List<byte[]> probeKeys = new ArrayList<>();
+                    List<SparseIndex.Entry> probeEntries = new ArrayList<>();
+                    for (BloomFilter.KeyHash hash : pending) {
+                        byte[] key = hash.key();
+                        if (!inRange(sstable, key, key)) continue;
+                        if (!pair.ele1().check(hash)) continue;
+                        SparseIndex.Entry indexEntry = pair.ele2().floor(key);
+                        if (indexEntry == null) continue;
+                        probeKeys.add(key);
+                        probeEntries.add(indexEntry);
+                    }
+                    if (probeKeys.isEmpty()) continue;
+
+                    KeyValuePair[] kvps = sstable.get(probeKeys, probeEntries);
+                    Set<byte[]> resolved = new TreeSet<>(KeyComparator.BYTE_ORDER);
+                    for (KeyValuePair kvp : kvps) {
+                        if (kvp == null) continue;
+                        found.put(kvp.key(), kvp.isDeleted() ? TOMBSTONE : kvp.value());
+                        resolved.add(kvp.key());
+                    }
+                    pending.removeIf(hash -> resolved.contains(hash.key()));
+                }
+            }
+
+            List<byte[]> values = new ArrayList<>(keys.size());
+            for (byte[] key : keys) {
+                byte[] value = found.get(key);
+                values.add(value == null || value.length == 0 ? null : value);
+            }
+            return values;
+        } finally {
+            version.unref();
         }
+    }
 
-        synchronized (immMemtables) {
-            for (Memtable table : immMemtables) {
-                value = table.get(key);
-                if (value != null) {
-                    if (value.isEmpty()) return null;
-                    else return value;
+    /*
+     * Lazily merges every memtable and every table of one pinned version, the tables are entered at
+     * the block the sparse index gives for the start key. The version stays pinned until the scan is
+     * read to the end or closed.
+     */
+    @Override
+    public ScanIterator scan(byte[] startKey, byte[] endKey, int limit) {
+        Version version = acquireVersion();
+        List<SSTable.EntryIterator> ssTableIterators = new ArrayList<>();
+        try {
+            // newest first, the merge lets the first source win like a point lookup does
+            List<Iterator<MergeEntry>> sources = new ArrayList<>();
+            sources.add(version.mutable().entries(startKey));
+            for (Memtable table : version.immutables()) sources.add(table.entries(startKey));
+
+            for (int level = 0; level < version.tiers().size(); level++) {
+                for (SSTable sstable : version.tiers().get(level)) {
+                    if (!inRange(sstable, startKey, endKey)) continue;
+                    SparseIndex.Entry indexEntry = ssTableToBloomAndSparse.get(sstable).ele2().floor(startKey);
+                    SSTable.EntryIterator iterator = indexEntry == null ? sstable.entries() : sstable.entries(indexEntry);
+                    ssTableIterators.add(iterator);
+                    sources.add(iterator);
                 }
             }
+
+            return new RangeScan(version, ssTableIterators, new MergeIterator(sources), startKey, endKey, limit);
+        } catch (RuntimeException e) {
+            closeAll(ssTableIterators);
+            version.unref();
+            throw e;
+        }
+    }
+
+    private static void closeAll(List<SSTable.EntryIterator> iterators) {
+        for (SSTable.EntryIterator iterator : iterators) {
+            try {
+                iterator.close();
+            } catch (Exception e) {
+                log.warn("error closing sstable iterator", e);
+            }
+        }
+    }
+
+    private static class RangeScan implements ScanIterator {
+
+        private final Version version;
+        private final List<SSTable.EntryIterator> ssTableIterators;
+        private final MergeIterator merged;
+        private final byte[] startKey;
+        private final byte[] endKey;
+        private final int limit;
+
+        private int returned = 0;
+        private KeyValuePair next;
+        private boolean closed = false;
+
+        RangeScan(Version version, List<SSTable.EntryIterator> ssTableIterators, MergeIterator merged, byte[] startKey, byte[] endKey, int limit) {
+            this.version = version;
+            this.ssTableIterators = ssTableIterators;
+            this.merged = merged;
+            this.startKey = startKey;
+            this.endKey = endKey;
+            this.limit = limit;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next != null) return true;
+            if (closed) return false;
+
+            while (returned < limit && merged.hasNext()) {
+                MergeEntry entry = merged.next();
+                // tables are entered at the start of a block, before the start key
+                if (KeyComparator.compare(entry.key(), startKey) < 0) continue;
+                if (endKey != null && KeyComparator.compare(entry.key(), endKey) >= 0) break;
+                if (entry.isDeleted()) continue;
+                next = entry.toKeyValuePair();
+                return true;
+            }
+            close();
+            return false;
         }
 
-        synchronized (tieredSSTables) {
-            value = getFromSstable(key);
+        @Override
+        public KeyValuePair next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            KeyValuePair kvp = next;
+            next = null;
+            returned++;
+            return kvp;
         }
 
-        if (value == null || value.isEmpty()) return null;
-        else return value;
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            closeAll(ssTableIterators);
+            version.unref();
+        }
+    }
+
+    private Version acquireVersion() {
+        while (true) {
+            Version version = currentVersion.get();
+            if (version.tryRef()) return version;
+        }
+    }
+
+    // caller holds versionLock
+    private void installVersion(Version version) {
+        assignLevels(version.tiers());
+        currentVersion.getAndSet(version).unref();
+    }
+
+    /*
+     * Tables moved down by a compaction are unpinned, their metadata can be dropped from then on, and
+     * count the decompression of their blocks at their new level.
+     */
+    private void assignLevels(List<List<SSTable>> tiers) {
+        for (int level = 0; level < tiers.size(); level++) {
+            boolean pinned = level < config.pinnedMetadataLevels();
+            for (SSTable ssTable : tiers.get(level)) {
+                ssTable.setCompressionStats(compressionStats(level));
+                Pair<BloomFilter, SparseIndex> bloomAndSparse = ssTableToBloomAndSparse.get(ssTable);
+                if (bloomAndSparse == null) continue;
+                bloomAndSparse.ele1().setPinned(pinned);
+                bloomAndSparse.ele2().setPinned(pinned);
+            }
+        }
+    }
+
+    /*
+     * Called once no version references the table any more, by then no reader can be inside it.
+     */
+    private void releaseSsTable(SSTable ssTable) {
+        Pair<BloomFilter, SparseIndex> bloomAndSparse = ssTableToBloomAndSparse.remove(ssTable);
+        if (bloomAndSparse != null) {
+            metadataCache.remove(bloomAndSparse.ele1());
+            metadataCache.remove(bloomAndSparse.ele2());
+            bloomAndSparse.ele1().unload();
+            bloomAndSparse.ele2().unload();
+        }
+        if (!deleteSsTableFiles(ssTable)) log.warn("not all files of {} could be deleted", ssTable.getFileName());
     }
 
     @Override
-    public void delete(String key) {
-        mutWal.append("DEL", key, null);
-        mutMemtable.put(key, "");
+    public void delete(byte[] key) {
+        write(Command.DEL, key, null, true);
     }
 
-    public void flushMemtable() {
+    /*
+     * Queues a flush, called on every rotation and by the last writer leaving a sealed memtable.
+     */
+    private void requestFlush() {
+        if (!flushRequested.compareAndSet(false, true)) return;
         try {
+            memtableFlusher.execute(this::flushMemtables);
+        } catch (RejectedExecutionException e) {
+            flushRequested.set(false);
+        }
+    }
 
-            Memtable toBeFlushedMemtable = null;
-            Iterator<KeyValuePair> memtableIterator =  null;
+    /*
+     * Runs on the flusher thread, the only one starting and installing flushes. Every memtable that is
+     * ready gets its flush started, as long as fewer than flushThreads are in progress, and finished
+     * flushes are installed oldest memtable first: a flush that is done waits for the flushes of older
+     * memtables, so a newer table never ends up behind an older one in level 0. Finished flushes
+     * request this again. A finished flush waiting to be installed does not hold a thread, and the
+     * oldest memtable starts whatever the count, everything newer waits on it.
+     */
+    private void flushMemtables() {
+        flushRequested.set(false);
+        do {
+            startFlushes();
+        } while (installFlushes());
+    }
 
-            synchronized (immMemtables) {
-                toBeFlushedMemtable = immMemtables.peekLast();
-                if (toBeFlushedMemtable == null) return;
-                memtableIterator = toBeFlushedMemtable.iterator();
+    private void startFlushes() {
+        List<Memtable> immMemtables = currentVersion.get().immutables();
+        int running = 0;
+        for (Flush flush : flushing.values()) if (!flush.done().isDone()) running++;
+        for (int i = immMemtables.size() - 1; i >= 0; i--) {
+            Memtable memtable = immMemtables.get(i);
+            if (flushing.containsKey(memtable)) continue;
+            if (running >= config.flushThreads() && i < immMemtables.size() - 1) break;
+            // writers that entered before the rotation may still be adding to it, the last one to
+            // leave requests the flush again
+            if (!memtableSlots.get(memtable).isDrained()) continue;
+
+            List<byte[]> boundaries = flushBoundaries(memtable);
+            List<CompletableFuture<SSTable>> tables = new ArrayList<>();
+            try {
+                for (int r = 0; r <= boundaries.size(); r++) {
+                    byte[] startKey = r == 0 ? null : boundaries.get(r - 1);
+                    byte[] endKey = r < boundaries.size() ? boundaries.get(r) : null;
+                    tables.add(CompletableFuture.supplyAsync(() -> writeRange(memtable, startKey, endKey), flushPool));
+                }
+            } catch (RejectedExecutionException e) {
+                log.info("flush pool is shut down");
+                return;
             }
+            CompletableFuture<Void> done = CompletableFuture.allOf(tables.toArray(CompletableFuture<?>[]::new));
+            flushing.put(memtable, new Flush(tables, done));
+            running++;
+            done.whenComplete((result, failure) -> requestFlush());
+        }
+    }
 
-            String fileIdentifier = String.valueOf(sstableCount.incrementAndGet());
-            String newSsTableDir = DATA_DIR + SSTABLE_DIR.replace("{file_no}", fileIdentifier);
-            String ssTableFilePath = newSsTableDir + fileIdentifier + SSTABLE_FILE_POSTFIX;
-            String sparseIndexFilePath = newSsTableDir + fileIdentifier + SPARSE_INDEX_FILE_POSTFIX;
-            String bloomFilterFilePath = newSsTableDir + fileIdentifier + BLOOM_FILTER_FILE_POSTFIX;
-
-            SSTable ssTable = new SSTable(ssTableFilePath);
-            SSTable.SSTableWriter ssTableWriter = ssTable.getWriter();
-
-            SparseIndex sparseIndex = new SparseIndex(sparseIndexFilePath);
-            SparseIndex.SparseIndexWriter sparseIndexWriter = sparseIndex.getWriter();
-
-            BloomFilter bloomFilter = new BloomFilter(bloomFilterFilePath);
-            BloomFilter.BloomFilterWriter bloomFilterWriter = bloomFilter.getWriter();
-
-            int curKeyCount = 0;
-            int offset = 0;
-            try (ssTableWriter; sparseIndexWriter; bloomFilterWriter) {
-                while (memtableIterator.hasNext()) {
-                    KeyValuePair kvp = memtableIterator.next();
-                    if (curKeyCount % KEY_COUNT_FOR_SPARSE_INDEX == 0 || curKeyCount == 0) sparseIndexWriter.write(kvp.key(), offset);
-                    ssTableWriter.write(kvp);
-                    bloomFilterWriter.write(kvp.key());
-                    curKeyCount++;
-                    offset += 8;
-                    offset += kvp.key().getBytes().length;
-                    offset += kvp.value().getBytes().length;
+    /*
+     * True if a flush was installed. A failed flush drops its tables and leaves the memtable in place,
+     * it is flushed again on the next run.
+     */
+    private boolean installFlushes() {
+        boolean installed = false;
+        while (true) {
+            // flushes may have been started in any order, only the oldest memtable can go
+            List<Memtable> immMemtables = currentVersion.get().immutables();
+            if (immMemtables.isEmpty()) break;
+            Memtable memtable = immMemtables.get(immMemtables.size() - 1);
+            Flush flush = flushing.get(memtable);
+            if (flush == null || !flush.done().isDone()) break;
+            flushing.remove(memtable);
+
+            if (flush.done().isCompletedExceptionally()) {
+                log.error("error flushing memtable to sstable", flush.done().exceptionNow());
+                for (CompletableFuture<SSTable> table : flush.tables()) {
+                    if (!table.isCompletedExceptionally()) releaseSsTable(table.join());
                 }
+                break;
             }
 
-            synchronized (tieredSSTables) {
-                tieredSSTables.getFirst().addFirst(ssTable);
-                ssTableToBloomAndSparse.put(ssTable, new Pair<>(bloomFilter, sparseIndex));
+            List<SSTable> ssTables = flush.tables().stream().map(CompletableFuture::join).toList();
+            try {
+                synchronized (versionLock) {
+                    logAndInstall(manifestEdit(manifestTables(0, ssTables), List.of()),
+                            currentVersion.get().withFlushed(memtable, ssTables));
+                }
+            } catch (Exception e) {
+                log.error("error installing flushed memtable", e);
+                ssTables.forEach(this::releaseSsTable);
+                break;
             }
 
-            synchronized (immMemtables) {
-                immMemtables.pollLast();
+            memtableSlots.remove(memtable).wal().delete();
+            log.info("memtable flushed into {} SSTables", ssTables.size());
+            installed = true;
+            compaction();
+        }
+        return installed;
+    }
+
+    /*
+     * Start keys of the key ranges after the first one. A memtable of several flushSplitBytes is cut
+     * into ranges of about the same size, at most one per flush thread, written in parallel.
+     */
+    private List<byte[]> flushBoundaries(Memtable memtable) {
+        int ranges = (int) Math.min(config.flushThreads(), memtable.size() / Math.max(1, config.flushSplitBytes()));
+        if (ranges <= 1) return List.of();
+
+        long rangeBytes = memtable.size() / ranges;
+        List<byte[]> boundaries = new ArrayList<>();
+        long bytes = 0;
+        for (KeyValuePair kvp : memtable) {
+            if (bytes >= rangeBytes && boundaries.size() < ranges - 1) {
+                boundaries.add(kvp.key());
+                bytes = 0;
             }
+            bytes += kvp.key().length + kvp.value().length;
+        }
+        return boundaries;
+    }
 
-            memtableToWalfile.get(toBeFlushedMemtable).delete();
+    /*
+     * Writes the entries of the memtable in [startKey, endKey) into a new table, null bounds are open.
+     */
+    private SSTable writeRange(Memtable memtable, byte[] startKey, byte[] endKey) {
+        TableBuilder builder = newTableBuilder(0);
+        try {
+            Iterator<MergeEntry> entries = memtable.entries(startKey);
+            while (entries.hasNext()) {
+                MergeEntry entry = entries.next();
+                if (endKey != null && KeyComparator.compare(entry.key(), endKey) >= 0) break;
+                builder.add(entry);
+            }
+            return builder.finish();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
 
-            log.info("memtable flushed, new SSTable is {}", ssTable.getFileName());
+    // a memtable being flushed, one table per key range
+    private record Flush(List<CompletableFuture<SSTable>> tables, CompletableFuture<Void> done) {}
 
-        } catch (Exception e) {
-            log.error("error flushing memtable to sstable", e);
+    public byte[] getFromSstable(byte[] targetKey) {
+        Version version = acquireVersion();
+        try {
+            return getFromSstable(version, targetKey);
+        } finally {
+            version.unref();
         }
     }
 
-    public String getFromSstable(String targetKey) {
-        for (LinkedList<SSTable> tier: tieredSSTables) {
+    private byte[] getFromSstable(Version version, byte[] targetKey) {
+        // hashed on the first table whose key range holds the key, once for all of them
+        BloomFilter.KeyHash hash = null;
+        for (int level = 0; level < version.tiers().size(); level++) {
+            List<SSTable> tier = version.tiers().get(level);
+            if (compactionStrategy.isSorted(level)) tier = findTable(tier, targetKey);
             for (SSTable sstable : tier) {
+                if (!inRange(sstable, targetKey, targetKey)) continue;
+                if (hash == null) hash = BloomFilter.hash(targetKey);
                 Pair<BloomFilter, SparseIndex> pair = ssTableToBloomAndSparse.get(sstable);
-                if (!pair.ele1().check(targetKey)) continue;
-
-                List<Pair<String, Integer>> sparseTable = null;
-                sparseTable = pair.ele2().getSparseIndexTable();
-
-                int offset = -1;
-                int l = 0;
-                int r = sparseTable.size()-1;
-
-                while (l <= r) {
-                    int m = l + (r - l) / 2;
-                    Pair<String, Integer> kao = sparseTable.get(m);
-                    int cmp = kao.ele1().compareTo(targetKey);
-
-                    if (cmp == 0) {
-                        offset = kao.ele2();
-                        break;
-                    } else if (cmp < 0) {
-                        offset = kao.ele2();
-                        l = m + 1;
-                    } else {
-                        r = m - 1;
-                    }
-                }
+                if (!pair.ele1().check(hash)) continue;
 
-                if (offset == -1) continue;
+                SparseIndex.Entry indexEntry = pair.ele2().floor(targetKey);
+                if (indexEntry == null) continue;
 
-                try (SSTable.SSTableIterator itr = sstable.iterator(offset)) {
-                    while (itr.hasNext()) {
-                        KeyValuePair kvp = itr.next();
-                        if (kvp.key().equals(targetKey)) {
-                            return kvp.value().isEmpty() ? null : kvp.value();
-                        }
-
-                        if (kvp.key().compareTo(targetKey) > 0) {
-                            break;
-                        }
-                    }
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
+                KeyValuePair kvp = sstable.get(targetKey, indexEntry);
+                if (kvp != null) return kvp.isDeleted() ? null : kvp.value();
             }
         }
         return null;
     }
 
+    /*
+     * The tables of a sorted level do not overlap, at most one of them can hold the key: the first one
+     * whose last key is not below it.
+     */
+    private static List<SSTable> findTable(List<SSTable> level, byte[] key) {
+        int l = 0;
+        int r = level.size() - 1;
+        while (l <= r) {
+            int m = l + (r - l) / 2;
+            byte[] lastKey = level.get(m).lastKey();
+            if (lastKey == null || KeyComparator.compare(lastKey, key) < 0) l = m + 1;
+            else r = m - 1;
+        }
+        if (l == level.size() || !inRange(level.get(l), key, key)) return List.of();
+        return List.of(level.get(l));
+    }
+
+    /*
+     * True if the key range of the table overlaps [startKey, endKey], null bounds are open. The range
+     * comes from the manifest or the table properties, so pruning a table reads nothing of it.
+     */
+    private static boolean inRange(SSTable ssTable, byte[] startKey, byte[] endKey) {
+        byte[] firstKey = ssTable.firstKey();
+        if (firstKey == null) return false;
+        if (startKey != null && KeyComparator.compare(ssTable.lastKey(), startKey) < 0) return false;
+        return endKey == null || KeyComparator.compare(firstKey, endKey) <= 0;
+    }
+
+    /*
+     * Picks due jobs and hands the ones that do not conflict with a running job to the compaction
+     * pool, until every worker is busy. Runs on the periodic tick and whenever a job finishes, so a
+     * backlog of jobs is worked off without waiting for the tick.
+     */
     public void compaction() {
         try {
-            synchronized (tieredSSTables) {
-                int level = TIER_COUNT-1;
-                for (Iterator<LinkedList<SSTable>> it = tieredSSTables.descendingIterator(); it.hasNext(); ) {
-                    LinkedList<SSTable> tier = it.next();
-                    if (checkCompaction(tier, level)) {
-                        startCompaction(tier, level);
+            synchronized (runningCompactions) {
+                // bounded, a level that stays over its limit can not keep the scheduler busy forever
+                for (int round = 0; round < compactionStrategy.levelCount(); round++) {
+                    if (runningCompactions.size() >= config.compactionThreads()) return;
+                    CompactionJob job = nextCompaction();
+                    if (job == null) return;
+
+                    if (job.isTrivialMove()) {
+                        moveTable(job);
+                        compactionStrategy.scheduled(job);
+                        continue;
                     }
-                    level--;
+                    runningCompactions.add(job);
+                    compactingTables.addAll(job.sources());
+                    // keeps the job's tables open until the merge is done
+                    Version version = acquireVersion();
+                    try {
+                        compactionPool.execute(() -> runCompaction(job, version));
+                    } catch (RejectedExecutionException e) {
+                        version.unref();
+                        throw e;
+                    }
+                    compactionStrategy.scheduled(job);
                 }
             }
+        } catch (RejectedExecutionException e) {
+            log.info("compaction pool is shut down");
         } catch (Exception e) {
-            throw new RuntimeException(e);
+            log.error("error scheduling compaction", e);
         }
     }
 
-    private void startCompaction(LinkedList<SSTable> tier, int level) {
+    // caller holds runningCompactions
+    private CompactionJob nextCompaction() {
+        Version version = acquireVersion();
         try {
+            for (CompactionJob job : compactionStrategy.pick(version.tiers(), compactingTables)) {
+                if (runningCompactions.stream().noneMatch(job::conflictsWith)) return job;
+            }
+            return null;
+        } finally {
+            version.unref();
+        }
+    }
 
-            LinkedList<SSTable.SSTableIterator> ssTablesItr = new LinkedList<>();
-            for (SSTable ssTable : tier) ssTablesItr.add(ssTable.iterator());
+    private void moveTable(CompactionJob job) {
+        synchronized (versionLock) {
+            logAndInstall(compactionEdit(job, job.inputs()),
+                    currentVersion.get().withCompacted(job, job.inputs(), compactionStrategy.isSorted(job.outputLevel())));
+        }
+        log.info("moved {} from level {} to {}", job.inputs().get(0).getFileName(), job.level(), job.outputLevel());
+    }
 
-            String fileIdentifier = String.valueOf(sstableCount.incrementAndGet());
-            String newSsTableDir = DATA_DIR + SSTABLE_DIR.replace("{file_no}", fileIdentifier);
-            String ssTableFilePath = newSsTableDir + fileIdentifier + SSTABLE_FILE_POSTFIX;
-            String sparseIndexFilePath = newSsTableDir + fileIdentifier + SPARSE_INDEX_FILE_POSTFIX;
-            String bloomFilterFilePath = newSsTableDir + fileIdentifier + BLOOM_FILTER_FILE_POSTFIX;
+    private Manifest.Edit compactionEdit(CompactionJob job, List<SSTable> output) {
+        List<Manifest.Table> deleted = new ArrayList<>(manifestTables(job.level(), job.inputs()));
+        deleted.addAll(manifestTables(job.outputLevel(), job.outputLevelInputs()));
+        return manifestEdit(manifestTables(job.outputLevel(), output), deleted);
+    }
 
-            // create new sstable, bloom filter, sparse index
-            SSTable ssTableNew = new SSTable(ssTableFilePath);
-            BloomFilter bloomFilterNew = new BloomFilter(bloomFilterFilePath);
-            SparseIndex sparseIndexNew = new SparseIndex(sparseIndexFilePath);
+    /*
+     * The merge runs on a pinned version without holding any lock, only installing the result does. No
+     * other job takes the tables of this one, so nobody else removes them from their levels meanwhile.
+     */
+    private void runCompaction(CompactionJob job, Version version) {
+        List<SSTable> output = new ArrayList<>();
+        try {
+            List<byte[]> boundaries = subcompactionBoundaries(job);
+            List<Future<List<SSTable>>> subcompactions = new ArrayList<>();
+            for (int i = 0; i < boundaries.size(); i++) {
+                byte[] startKey = boundaries.get(i);
+                byte[] endKey = i + 1 < boundaries.size() ? boundaries.get(i + 1) : null;
+                subcompactions.add(subcompactionPool.submit(() -> mergeRange(job, startKey, endKey)));
+            }
 
-            // get sstable bloom filter, sparse index writer
-            SSTable.SSTableWriter ssTableWriter = ssTableNew.getWriter();
-            BloomFilter.BloomFilterWriter bloomFilterWriter = bloomFilterNew.getWriter();
-            SparseIndex.SparseIndexWriter sparseIndexWriter = sparseIndexNew.getWriter();
+            // the first range runs on this thread, every range is waited for even if one fails
+            Exception failure = null;
+            try {
+                output.addAll(mergeRange(job, null, boundaries.isEmpty() ? null : boundaries.get(0)));
+            } catch (Exception e) {
+                failure = e;
+            }
+            for (Future<List<SSTable>> subcompaction : subcompactions) {
+                try {
+                    output.addAll(subcompaction.get());
+                } catch (ExecutionException e) {
+                    if (failure == null) failure = e;
+                }
+            }
+            if (failure != null) throw failure;
 
-            int curKeyCount = 0;
-            int offset = 0;
+            // the compacted tables are deleted once the last reader still using them is done
+            synchronized (versionLock) {
+                logAndInstall(compactionEdit(job, output),
+                        currentVersion.get().withCompacted(job, output, compactionStrategy.isSorted(job.outputLevel())));
+            }
 
-            List<KeyValuePair> curItrVals = new LinkedList<>();
+            log.info("level {} compacted into level {}, {} tables merged into {} in {} ranges",
+                    job.level(), job.outputLevel(), job.sources().size(), output.size(), boundaries.size() + 1);
+        } catch (Exception e) {
+            log.error("error during compaction", e);
+            for (SSTable ssTable : output) releaseSsTable(ssTable);
+        } finally {
+            version.unref();
+            synchronized (runningCompactions) {
+                runningCompactions.remove(job);
+                job.sources().forEach(compactingTables::remove);
+            }
+        }
+        compaction();
+    }
 
-            while (true) {
-                KeyValuePair curSmallest = null;
-                Integer curSmalestIdx = null;
-                Set<Integer> curSmallestEq = new HashSet<>();
+    /*
+     * Start keys of the key ranges after the first one. The block index of every source says where
+     * its data lies, the ranges are cut so each gets about the same number of blocks.
+     */
+    private List<byte[]> subcompactionBoundaries(CompactionJob job) {
+        long bytes = 0;
+        for (SSTable ssTable : job.sources()) bytes += ssTable.getFileSize();
+        int ranges = (int) Math.min(config.maxSubcompactions(), bytes / Math.max(1, config.subcompactionMinBytes()));
+        if (ranges <= 1) return List.of();
+
+        List<byte[]> blockKeys = new ArrayList<>();
+        for (SSTable ssTable : job.sources()) {
+            SparseIndex sparseIndex = ssTableToBloomAndSparse.get(ssTable).ele2();
+            for (int i = 0; i < sparseIndex.size(); i++) blockKeys.add(sparseIndex.key(i));
+        }
+        blockKeys.sort(KeyComparator.BYTE_ORDER);
 
-                if (curItrVals.isEmpty()) for (int i = 0; i < ssTablesItr.size(); i++) curItrVals.addLast(null);
+        List<byte[]> boundaries = new ArrayList<>();
+        for (int i = 1; i < ranges; i++) {
+            byte[] key = blockKeys.get(i * blockKeys.size() / ranges);
+            if (boundaries.isEmpty() || KeyComparator.compare(key, boundaries.get(boundaries.size() - 1)) > 0) boundaries.add(key);
+        }
+        return boundaries;
+    }
 
-                // sorted run over the file keys
-                for (int i = ssTablesItr.size() - 1; i >= 0; i--) {
-                    if (curItrVals.get(i) == null) {
-                        if (ssTablesItr.get(i).hasNext()) curItrVals.set(i, ssTablesItr.get(i).next());
-                        else continue;
-                    }
+    /*
+     * Merges the keys in [startKey, endKey) of the job's sources newest first, so for a key in several
+     * tables the entry of the newest one is kept, and cuts the output into tables of the target size.
+     * Null bounds are open.
+     */
+    private List<SSTable> mergeRange(CompactionJob job, byte[] startKey, byte[] endKey) throws Exception {
+        List<SSTable.EntryIterator> ssTablesItr = new ArrayList<>();
+        List<SSTable> output = new ArrayList<>();
+        TableBuilder builder = null;
+        try {
+            for (SSTable ssTable : job.sources()) {
+                SparseIndex.Entry indexEntry = startKey == null ? null : ssTableToBloomAndSparse.get(ssTable).ele2().floor(startKey);
+                ssTablesItr.add(indexEntry == null ? ssTable.entries() : ssTable.entries(indexEntry));
+            }
 
-                    if (curSmallest == null) {
-                        curSmallest = curItrVals.get(i);
-                        curSmalestIdx = i;
-                        curSmallestEq.add(i);
-                        continue;
-                    }
+            MergeIterator merged = new MergeIterator(ssTablesItr, job.dropTombstones());
+            long unthrottled = 0;
+            while (merged.hasNext()) {
+                MergeEntry entry = merged.next();
+                // sources are entered at the start of a block, before the start key
+                if (startKey != null && KeyComparator.compare(entry.key(), startKey) < 0) continue;
+                if (endKey != null && KeyComparator.compare(entry.key(), endKey) >= 0) break;
+
+                if (builder == null) {
+                    builder = newTableBuilder(job.outputLevel());
+                    builder.coverSequences(job.sources());
+                }
+                builder.add(entry);
+                unthrottled += entry.key().length + entry.value().length;
+                if (compactionRateLimiter != null && unthrottled >= RATE_LIMIT_CHUNK) {
+                    compactionRateLimiter.acquire((int) unthrottled);
+                    unthrottled = 0;
+                }
+                if (builder.estimatedSize() >= job.targetFileSize()) {
+                    output.add(builder.finish());
+                    builder = null;
+                }
+            }
+            if (builder != null) output.add(builder.finish());
+            if (compactionRateLimiter != null && unthrottled > 0) compactionRateLimiter.acquire((int) unthrottled);
+            return output;
+        } catch (Exception e) {
+            for (SSTable ssTable : output) releaseSsTable(ssTable);
+            throw e;
+        } finally {
+            closeAll(ssTablesItr);
+        }
+    }
 
-                    int cmp = curItrVals.get(i).key().compareTo(curSmallest.key());
+    private TableBuilder newTableBuilder(int level) {
+        int fileNumber = sstableCount.incrementAndGet();
+        return new TableBuilder(
+                new SSTable(ssTableFilePath(fileNumber, SSTABLE_FILE_POSTFIX), config.sstableReadMode(), blockCache),
+                new BloomFilter(ssTableFilePath(fileNumber, BLOOM_FILTER_FILE_POSTFIX), metadataCache),
+                new SparseIndex(ssTableFilePath(fileNumber, SPARSE_INDEX_FILE_POSTFIX), metadataCache),
+                level);
+    }
 
-                    if (cmp < 0) {
-                        curSmallest = curItrVals.get(i);
-                        curSmalestIdx = i;
-                        curSmallestEq = new HashSet<>();
-                        curSmallestEq.add(i);
-                    } else if (cmp == 0) {
-                        curSmallestEq.add(i);
-                    }
-                }
+    private CompressionStats compressionStats(int level) {
+        return compressionStats.get(Math.min(level, compressionStats.size() - 1));
+    }
 
-                if (curSmalestIdx == null) {
-                    break;
-                }
+    private static String ssTableFilePath(int fileNumber, String postfix) {
+        String fileIdentifier = String.valueOf(fileNumber);
+        return DATA_DIR + SSTABLE_DIR.replace("{file_no}", fileIdentifier) + fileIdentifier + postfix;
+    }
 
-                if (!curSmallest.isDeleted()) {
-                    if (curKeyCount % KEY_COUNT_FOR_SPARSE_INDEX == 0 || curKeyCount == 0) sparseIndexWriter.write(curSmallest.key(), offset);
-                    ssTableWriter.write(curSmallest);
-                    bloomFilterWriter.write(curSmallest.key());
-                    curKeyCount++;
-                    offset += 4 + curSmallest.key().getBytes().length;
-                    offset += 4 + curSmallest.value().getBytes().length;
-                }
+    /*
+     * Writes a new table with its bloom filter and sparse index, the table is registered once finished.
+     */
+    private class TableBuilder {
+
+        private final SSTable ssTable;
+        private final BloomFilter bloomFilter;
+        private final SparseIndex sparseIndex;
+        private final SparseIndex.SparseIndexWriter sparseIndexWriter;
+        private final SSTable.SSTableWriter ssTableWriter;
+        private final BloomFilter.BloomFilterWriter bloomFilterWriter;
+
+        TableBuilder(SSTable ssTable, BloomFilter bloomFilter, SparseIndex sparseIndex, int level) {
+            this.ssTable = ssTable;
+            this.bloomFilter = bloomFilter;
+            this.sparseIndex = sparseIndex;
+            this.sparseIndexWriter = sparseIndex.getWriter();
+            this.ssTableWriter = ssTable.getWriter(sparseIndexWriter, config.indexIntervalBytes(level), config.blockCodec(level), compressionStats(level));
+            this.bloomFilterWriter = bloomFilter.getWriter(config.bloomBitsPerKey());
+        }
 
-                for (int i : curSmallestEq) {
-                    if (ssTablesItr.get(i).hasNext()) curItrVals.set(i, ssTablesItr.get(i).next());
-                    else curItrVals.set(i, null);
-                }
-            }
+        void add(MergeEntry entry) {
+            ssTableWriter.write(entry.key(), entry.value(), entry.sequence());
+            bloomFilterWriter.write(entry.key());
+        }
 
-            for (SSTable.SSTableIterator itr : ssTablesItr) {
-                itr.close();
+        /*
+         * Entries read back from tables have lost their sequence, the output of a merge covers the
+         * sequences of its sources.
+         */
+        void coverSequences(List<SSTable> sources) {
+            for (SSTable source : sources) {
+                SSTable.Properties properties = source.properties();
+                ssTableWriter.coverSequences(properties.minSequence(), properties.maxSequence());
             }
-            ssTableWriter.close();
-            bloomFilterWriter.close();
-            sparseIndexWriter.close();
+        }
 
-            if (level == TIER_COUNT - 1) tieredSSTables.get(TIER_COUNT - 1).addFirst(ssTableNew);
-            else tieredSSTables.get(level + 1).addFirst(ssTableNew);
+        long estimatedSize() {
+            return ssTableWriter.estimatedSize();
+        }
 
-            ssTableToBloomAndSparse.put(ssTableNew, new Pair<>(bloomFilterNew, sparseIndexNew));
+        /*
+         * The files and their directory are forced before the table can be logged to the manifest, the
+         * WAL segment or the compaction inputs it replaces are deleted right after that.
+         */
+        SSTable finish() throws Exception {
+            bloomFilterWriter.close();
+            // adds its last block to the sparse index
+            ssTableWriter.close();
+            sparseIndexWriter.close();
 
-            boolean filesDeleted = true;
-            for (SSTable ssTable : tier) {
-                ssTableToBloomAndSparse.remove(ssTable);
-                filesDeleted &= deleteSsTableFiles(ssTable.getFileName());
+            int fileNumber = fileNumber(ssTable);
+            for (String postfix : List.of(SSTABLE_FILE_POSTFIX, BLOOM_FILTER_FILE_POSTFIX, SPARSE_INDEX_FILE_POSTFIX)) {
+                force(Path.of(ssTableFilePath(fileNumber, postfix)));
             }
+            Path directory = Path.of(ssTable.getFileName()).getParent();
+            force(directory);
+            force(directory.getParent());
 
-            tier.clear();
-
-            log.info("tier {} compacted, new sstable is {}", level, ssTableNew.getFileName());
-        } catch (Exception e) {
-            log.error("error during compaction", e);
-            throw new RuntimeException(e);
+            ssTableToBloomAndSparse.put(ssTable, new Pair<>(bloomFilter, sparseIndex));
+            return ssTable;
         }
-
     }
 
-    private boolean checkCompaction(LinkedList<SSTable> tier, int level) {
-        long size = 0;
-        for (SSTable ssTable : tier) {
-            size += ssTable.getSize();
+    // works for directories too, fsync does not need a writable descriptor
+    private static void force(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            channel.force(true);
         }
-        return size > TIER_SIZE * Math.pow(TIER_MULTIPLE, level);
     }
 
-    private boolean deleteSsTableFiles(String fileName) {
+    private boolean deleteSsTableFiles(SSTable ssTable) {
+        ssTable.close();
+        return deleteTableDirectory(new File(Path.of(ssTable.getFileName()).getParent().toString()));
+    }
+
+    private static boolean deleteTableDirectory(File directory) {
         boolean fileDeleted = true;
-        File directory = new File(Path.of(fileName).getParent().toString());
         File[] files = directory.listFiles();
         if (files == null) return true;
         for (File file : files) {
@@ -431,8 +1321,76 @@ public class LSMTree implements KeyValueStore {
         return fileDeleted;
     }
 
+    /**
+     * Number of tables in every level of the current version.
+     */
+    public List<Integer> levelTableCounts() {
+        Version version = acquireVersion();
+        try {
+            return version.tiers().stream().map(List::size).toList();
+        } finally {
+            version.unref();
+        }
+    }
+
+    /**
+     * Bytes of bloom filters loaded in memory for the tables of every level of the current version.
+     */
+    public List<Long> bloomFilterBytes() {
+        Version version = acquireVersion();
+        try {
+            List<Long> bytes = new ArrayList<>();
+            for (List<SSTable> level : version.tiers()) {
+                long levelBytes = 0;
+                for (SSTable ssTable : level) levelBytes += ssTableToBloomAndSparse.get(ssTable).ele1().sizeInBytes();
+                bytes.add(levelBytes);
+            }
+            return bytes;
+        } finally {
+            version.unref();
+        }
+    }
+
+    public BlockCache.Stats blockCacheStats() {
+        return blockCache == null ? null : blockCache.stats();
+    }
+
+    public MetadataCache.Stats metadataCacheStats() {
+        return metadataCache.stats();
+    }
+
+    /**
+     * Compression ratio and codec time of every level, blocks written to the level and blocks read
+     * from tables while they were in it.
+     */
+    public List<CompressionStats.Stats> compressionStats() {
+        List<CompressionStats.Stats> stats = new ArrayList<>();
+        for (CompressionStats level : compressionStats) stats.add(level.stats());
+        return stats;
+    }
+
     public void stop() {
+        stopped = true;
+        synchronized (writeStallLock) {
+            writeStallLock.notifyAll();
+        }
         memtableFlusher.shutdownNow();
+        flushPool.shutdownNow();
         tableCompactor.shutdownNow();
+        compactionPool.shutdownNow();
+        subcompactionPool.shutdownNow();
+        if (walSyncer != null) walSyncer.shutdownNow();
+        mutSlot.get().wal().close();
+        // a flush or merge in progress still logs its result, the manifest is closed after them
+        try {
+            for (ExecutorService executor : List.of(memtableFlusher, flushPool, compactionPool, subcompactionPool)) {
+                executor.awaitTermination(10, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (versionLock) {
+            manifest.close();
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,273 @@
+package graveldb.datastore.lsmtree;
+
+import graveldb.datastore.bloomfilter.BloomFilter;
+import graveldb.datastore.compaction.CompactionStrategy;
+import graveldb.datastore.compaction.TieredCompactionStrategy;
+import graveldb.datastore.compression.BlockCodec;
+import graveldb.datastore.compression.BlockCodecs;
+import graveldb.datastore.sstable.SSTable;
+import graveldb.wal.WalDurability;
+
+/**
+ * Tunables of the {@link LSMTree}. Every setter returns the config so it can be chained,
+ * a fresh instance holds the defaults.
+ */
+public class LSMTreeConfig {
+
+    private WalDurability walDurability = WalDurability.NONE;
+    private long walSyncIntervalMs = 100;
+    private SSTable.ReadMode sstableReadMode = SSTable.ReadMode.MMAP;
+    private long blockCacheBytes = 64L * 1024 * 1024;
+    private boolean blockCacheOffHeap = false;
+    private CompactionStrategy compactionStrategy = new TieredCompactionStrategy();
+    private int compactionThreads = 2;
+    private int maxSubcompactions = 4;
+    private long subcompactionMinBytes = 4L * 1024 * 1024;
+    private long compactionBytesPerSecond = 0;
+    private long memtableBytes = 64L * 1024 * 1024;
+    private int flushThreads = 2;
+    private long flushSplitBytes = 4L * 1024 * 1024;
+    private int slowdownImmutableMemtables = 8;
+    private int maxImmutableMemtables = 16;
+    private int l0SlowdownTables = 20;
+    private int l0StopTables = 36;
+    private int bloomBitsPerKey = BloomFilter.DEFAULT_BITS_PER_KEY;
+    private long metadataCacheBytes = 256L * 1024 * 1024;
+    private int pinnedMetadataLevels = 2;
+    private int[] indexIntervalBytes = {SSTable.BLOCK_SIZE};
+    private BlockCodec[] blockCodecs = {BlockCodecs.LZ4, BlockCodecs.LZ4, BlockCodecs.DEFLATE};
+
+    public WalDurability walDurability() { return walDurability; }
+
+    public LSMTreeConfig walDurability(WalDurability walDurability) {
+        this.walDurability = walDurability;
+        return this;
+    }
+
+    public long walSyncIntervalMs() { return walSyncIntervalMs; }
+
+    public LSMTreeConfig walSyncIntervalMs(long walSyncIntervalMs) {
+        this.walSyncIntervalMs = walSyncIntervalMs;
+        return this;
+    }
+
+    public SSTable.ReadMode sstableReadMode() { return sstableReadMode; }
+
+    public LSMTreeConfig sstableReadMode(SSTable.ReadMode sstableReadMode) {
+        this.sstableReadMode = sstableReadMode;
+        return this;
+    }
+
+    public long blockCacheBytes() { return blockCacheBytes; }
+
+    /**
+     * Byte budget of the block cache, 0 disables it.
+     */
+    public LSMTreeConfig blockCacheBytes(long blockCacheBytes) {
+        this.blockCacheBytes = blockCacheBytes;
+        return this;
+    }
+
+    public boolean blockCacheOffHeap() { return blockCacheOffHeap; }
+
+    public LSMTreeConfig blockCacheOffHeap(boolean blockCacheOffHeap) {
+        this.blockCacheOffHeap = blockCacheOffHeap;
+        return this;
+    }
+
+    public CompactionStrategy compactionStrategy() { return compactionStrategy; }
+
+    /**
+     * {@link TieredCompactionStrategy} by default, see {@link graveldb.datastore.compaction.LeveledCompactionStrategy}
+     * for fewer tables per read.
+     */
+    public LSMTreeConfig compactionStrategy(CompactionStrategy compactionStrategy) {
+        this.compactionStrategy = compactionStrategy;
+        return this;
+    }
+
+    public int compactionThreads() { return compactionThreads; }
+
+    /**
+     * Number of compaction jobs that may run at the same time, jobs on overlapping key ranges of the
+     * same level never do.
+     */
+    public LSMTreeConfig compactionThreads(int compactionThreads) {
+        this.compactionThreads = compactionThreads;
+        return this;
+    }
+
+    public int maxSubcompactions() { return maxSubcompactions; }
+
+    /**
+     * A job is split into at most this many key ranges merged in parallel, 1 disables the split.
+     */
+    public LSMTreeConfig maxSubcompactions(int maxSubcompactions) {
+        this.maxSubcompactions = maxSubcompactions;
+        return this;
+    }
+
+    public long subcompactionMinBytes() { return subcompactionMinBytes; }
+
+    /**
+     * Input bytes below which a key range is not split any further.
+     */
+    public LSMTreeConfig subcompactionMinBytes(long subcompactionMinBytes) {
+        this.subcompactionMinBytes = subcompactionMinBytes;
+        return this;
+    }
+
+    public long compactionBytesPerSecond() { return compactionBytesPerSecond; }
+
+    /**
+     * Write bandwidth shared by all compactions, 0 for no limit. Flushes are not limited.
+     */
+    public LSMTreeConfig compactionBytesPerSecond(long compactionBytesPerSecond) {
+        this.compactionBytesPerSecond = compactionBytesPerSecond;
+        return this;
+    }
+
+    public long memtableBytes() { return memtableBytes; }
+
+    /**
+     * Bytes of entries a memtable takes before it is rotated and flushed, overwrites included.
+     */
+    public LSMTreeConfig memtableBytes(long memtableBytes) {
+        this.memtableBytes = memtableBytes;
+        return this;
+    }
+
+    public int flushThreads() { return flushThreads; }
+
+    /**
+     * Number of memtables flushed at the same time, their tables still go into level 0 in memtable order.
+     */
+    public LSMTreeConfig flushThreads(int flushThreads) {
+        this.flushThreads = flushThreads;
+        return this;
+    }
+
+    public long flushSplitBytes() { return flushSplitBytes; }
+
+    /**
+     * A memtable of at least twice this size is flushed into several tables by key range in parallel.
+     */
+    public LSMTreeConfig flushSplitBytes(long flushSplitBytes) {
+        this.flushSplitBytes = flushSplitBytes;
+        return this;
+    }
+
+    public int slowdownImmutableMemtables() { return slowdownImmutableMemtables; }
+
+    /**
+     * Number of memtables waiting for their flush from which writes are delayed, the more the closer
+     * it gets to {@link #maxImmutableMemtables(int)}.
+     */
+    public LSMTreeConfig slowdownImmutableMemtables(int slowdownImmutableMemtables) {
+        this.slowdownImmutableMemtables = slowdownImmutableMemtables;
+        return this;
+    }
+
+    public int maxImmutableMemtables() { return maxImmutableMemtables; }
+
+    /**
+     * Number of memtables waiting for their flush at which writes stop until one is flushed.
+     */
+    public LSMTreeConfig maxImmutableMemtables(int maxImmutableMemtables) {
+        this.maxImmutableMemtables = maxImmutableMemtables;
+        return this;
+    }
+
+    public int l0SlowdownTables() { return l0SlowdownTables; }
+
+    /**
+     * Number of tables in level 0 from which writes are delayed, the more the closer it gets to
+     * {@link #l0StopTables(int)}.
+     */
+    public LSMTreeConfig l0SlowdownTables(int l0SlowdownTables) {
+        this.l0SlowdownTables = l0SlowdownTables;
+        return this;
+    }
+
+    public int l0StopTables() { return l0StopTables; }
+
+    /**
+     * Number of tables in level 0 at which writes stop until compaction takes some of them.
+     */
+    public LSMTreeConfig l0StopTables(int l0StopTables) {
+        this.l0StopTables = l0StopTables;
+        return this;
+    }
+
+    public int bloomBitsPerKey() { return bloomBitsPerKey; }
+
+    /**
+     * Bits of bloom filter per key of a table, the filter of every new table is sized from its key
+     * count. 10 give about 1% false positives, every 5 more divide that by about 10.
+     */
+    public LSMTreeConfig bloomBitsPerKey(int bloomBitsPerKey) {
+        this.bloomBitsPerKey = bloomBitsPerKey;
+        return this;
+    }
+
+    public long metadataCacheBytes() { return metadataCacheBytes; }
+
+    /**
+     * Memory for the bloom filters and sparse indexes of the tables, loaded on first use. Over it the
+     * least recently used ones of unpinned levels are dropped and read again when needed, 0 keeps
+     * everything loaded.
+     */
+    public LSMTreeConfig metadataCacheBytes(long metadataCacheBytes) {
+        this.metadataCacheBytes = metadataCacheBytes;
+        return this;
+    }
+
+    public int pinnedMetadataLevels() { return pinnedMetadataLevels; }
+
+    /**
+     * Levels, from level 0, whose bloom filters and sparse indexes stay loaded once used. They count
+     * against {@link #metadataCacheBytes} but are never dropped.
+     */
+    public LSMTreeConfig pinnedMetadataLevels(int pinnedMetadataLevels) {
+        this.pinnedMetadataLevels = pinnedMetadataLevels;
+        return this;
+    }
+
+    /**
+     * Bytes of data per sparse index entry of the tables written to the level, the size of their
+     * blocks. Levels past the configured ones use the last value.
+     */
+    public int indexIntervalBytes(int level) {
+        return indexIntervalBytes[Math.min(level, indexIntervalBytes.length - 1)];
+    }
+
+    /**
+     * Bytes of data per sparse index entry by level, starting at level 0. Bigger blocks make a smaller
+     * index, which suits the large and cold bottom levels, at the cost of reading and decoding more
+     * per point lookup. 4 KiB for every level by default.
+     */
+    public LSMTreeConfig indexIntervalBytes(int... bytesPerLevel) {
+        if (bytesPerLevel.length == 0) throw new IllegalArgumentException("at least one interval is needed");
+        this.indexIntervalBytes = bytesPerLevel.clone();
+        return this;
+    }
+
+    /**
+     * Codec the data blocks of tables written to the level are compressed with. Levels past the
+     * configured ones use the last codec.
+     */
+    public BlockCodec blockCodec(int level) {
+        return blockCodecs[Math.min(level, blockCodecs.length - 1)];
+    }
+
+    /**
+     * Block codecs by level, starting at level 0. By default LZ4 for levels 0 and 1, which are
+     * rewritten often, and DEFLATE for the levels below, which hold most of the data. Custom codecs
+     * have to be registered with {@link BlockCodecs#register} to be read back.
+     */
+    public LSMTreeConfig blockCodecs(BlockCodec... codecsPerLevel) {
+        if (codecsPerLevel.length == 0) throw new IllegalArgumentException("at least one codec is needed");
+        this.blockCodecs = codecsPerLevel.clone();
+        return this;
+    }
+}
@@ -0,0 +1,250 @@
+package graveldb.datastore.lsmtree;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * Append only log of the changes to the set of SSTables, replayed on startup to restore the levels
+ * exactly as they were, without looking at the data directory.
+ *
+ * <p>Every flush and compaction appends one {@link Edit}: the tables it adds to and deletes from their
+ * levels, the next file number and the last sequence number. Edits are framed like WAL records,
+ * {@code <body length:int><crc32c of body:int><body>}, and forced to disk before the new version is
+ * installed, so an edit is either there completely or, cut short by a crash, ignored on replay. The
+ * body is a list of tagged fields:
+ * <ul>
+ *     <li>{@code <1><length:int><strategy>} compaction strategy that laid out the levels</li>
+ *     <li>{@code <2><next file number:long>}</li>
+ *     <li>{@code <3><last sequence:long>}</li>
+ *     <li>{@code <4><level:int><file number:int><first key><last key>} table added, keys as
+ *     {@code <length:int><bytes>}, length -1 for an empty table</li>
+ *     <li>{@code <5><level:int><file number:int>} table deleted</li>
+ * </ul>
+ * Added tables go in front of their level in the order of the edit, the same way versions are built.
+ *
+ * <p>After a replay the log is rewritten as a single edit holding the whole state (written to a
+ * temporary file that atomically replaces the manifest, the directory is synced after the rename),
+ * which also happens whenever it grows past {@link #MAX_SIZE}. Not thread safe, the tree appends under its version lock.
+ */
+class Manifest {
+
+    private static final Logger log = LoggerFactory.getLogger(Manifest.class);
+
+    static final long MAX_SIZE = 4L * 1024 * 1024;
+
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final byte TAG_STRATEGY = 1;
+    private static final byte TAG_NEXT_FILE_NUMBER = 2;
+    private static final byte TAG_LAST_SEQUENCE = 3;
+    private static final byte TAG_ADD = 4;
+    private static final byte TAG_DELETE = 5;
+
+    record Table(int level, int fileNumber, byte[] firstKey, byte[] lastKey) { }
+
+    /**
+     * Strategy is null in the edits of flushes and compactions, it is only written with the full state.
+     */
+    record Edit(String strategy, long nextFileNumber, long lastSequence, List<Table> added, List<Table> deleted) { }
+
+    /**
+     * The state the manifest describes, levels hold the tables front to back.
+     */
+    record State(String strategy, long nextFileNumber, long lastSequence, List<List<Table>> levels) { }
+
+    private final Path path;
+    private FileChannel channel;
+
+    Manifest(Path path) {
+        this.path = path;
+    }
+
+    boolean exists() {
+        return Files.exists(path);
+    }
+
+    State replay() {
+        String strategy = null;
+        long nextFileNumber = 0;
+        long lastSequence = 0;
+        List<List<Table>> levels = new ArrayList<>();
+        int edits = 0;
+
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+            while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+                int bodyLength = buffer.getInt();
+                int checksum = buffer.getInt();
+                if (bodyLength < 0 || bodyLength > buffer.remaining()) break;
+
+                ByteBuffer body = buffer.slice(buffer.position(), bodyLength);
+                CRC32C crc = new CRC32C();
+                crc.update(body.duplicate());
+                if ((int) crc.getValue() != checksum) break;
+                buffer.position(buffer.position() + bodyLength);
+
+                Edit edit = decode(body);
+                if (edit.strategy() != null) strategy = edit.strategy();
+                nextFileNumber = Math.max(nextFileNumber, edit.nextFileNumber());
+                lastSequence = Math.max(lastSequence, edit.lastSequence());
+                apply(levels, edit);
+                edits++;
+            }
+            if (buffer.hasRemaining()) log.warn("ignoring {} bytes at the end of the manifest, last edit was cut short", buffer.remaining());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        log.info("replayed {} manifest edits", edits);
+        return new State(strategy, nextFileNumber, lastSequence, levels);
+    }
+
+    private static void apply(List<List<Table>> levels, Edit edit) {
+        for (Table table : edit.deleted()) {
+            if (table.level() < levels.size()) levels.get(table.level()).removeIf(t -> t.fileNumber() == table.fileNumber());
+        }
+
+        List<List<Table>> added = new ArrayList<>();
+        for (Table table : edit.added()) {
+            while (added.size() <= table.level()) added.add(new ArrayList<>());
+            added.get(table.level()).add(table);
+        }
+        for (int level = 0; level < added.size(); level++) {
+            while (levels.size() <= level) levels.add(new ArrayList<>());
+            levels.get(level).addAll(0, added.get(level));
+        }
+    }
+
+    void append(Edit edit) {
+        try {
+            if (channel == null) channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            ByteBuffer record = encode(edit);
+            while (record.hasRemaining()) channel.write(record);
+            channel.force(false);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Replaces the log with the single edit, which has to describe the whole state.
+     */
+    void rewrite(Edit state) {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            try (FileChannel tempChannel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer record = encode(state);
+                while (record.hasRemaining()) tempChannel.write(record);
+                tempChannel.force(false);
+            }
+            close();
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            // the rename is only durable once the directory entry is
+            try (FileChannel directory = FileChannel.open(path.toAbsolutePath().getParent(), StandardOpenOption.READ)) {
+                directory.force(true);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    long size() {
+        try {
+            return channel != null ? channel.size() : Files.size(path);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    void close() {
+        try {
+            if (channel != null) channel.close();
+        } catch (IOException e) {
+            log.error("error closing manifest", e);
+        }
+        channel = null;
+    }
+
+    private static ByteBuffer encode(Edit edit) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream body = new DataOutputStream(bytes);
+        if (edit.strategy() != null) {
+            body.writeByte(TAG_STRATEGY);
+            writeBytes(body, edit.strategy().getBytes(StandardCharsets.UTF_8));
+        }
+        body.writeByte(TAG_NEXT_FILE_NUMBER);
+        body.writeLong(edit.nextFileNumber());
+        body.writeByte(TAG_LAST_SEQUENCE);
+        body.writeLong(edit.lastSequence());
+        for (Table table : edit.deleted()) {
+            body.writeByte(TAG_DELETE);
+            body.writeInt(table.level());
+            body.writeInt(table.fileNumber());
+        }
+        for (Table table : edit.added()) {
+            body.writeByte(TAG_ADD);
+            body.writeInt(table.level());
+            body.writeInt(table.fileNumber());
+            writeBytes(body, table.firstKey());
+            writeBytes(body, table.lastKey());
+        }
+
+        CRC32C crc = new CRC32C();
+        crc.update(bytes.toByteArray());
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + bytes.size());
+        record.putInt(bytes.size());
+        record.putInt((int) crc.getValue());
+        record.put(bytes.toByteArray());
+        return record.flip();
+    }
+
+    private static Edit decode(ByteBuffer body) {
+        String strategy = null;
+        long nextFileNumber = 0;
+        long lastSequence = 0;
+        List<Table> added = new ArrayList<>();
+        List<Table> deleted = new ArrayList<>();
+        while (body.hasRemaining()) {
+            byte tag = body.get();
+            switch (tag) {
+                case TAG_STRATEGY -> strategy = new String(readBytes(body), StandardCharsets.UTF_8);
+                case TAG_NEXT_FILE_NUMBER -> nextFileNumber = body.getLong();
+                case TAG_LAST_SEQUENCE -> lastSequence = body.getLong();
+                case TAG_ADD -> added.add(new Table(body.getInt(), body.getInt(), readBytes(body), readBytes(body)));
+                case TAG_DELETE -> deleted.add(new Table(body.getInt(), body.getInt(), null, null));
+                default -> throw new IllegalStateException("unknown manifest tag " + tag);
+            }
+        }
+        return new Edit(strategy, nextFileNumber, lastSequence, added, deleted);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,76 @@
+package graveldb.datastore.lsmtree;
+
+import graveldb.datastore.memtable.Memtable;
+import graveldb.wal.WriteAheadLog;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A memtable together with its WAL segment and the writers currently inside it.
+ *
+ * <p>Writers enter the slot before taking a sequence number and leave it once their WAL commit is
+ * done. The writer that sees the memtable full seals the slot and installs the next one, sealing
+ * only fails the writers that try to enter afterwards, they wait for the new slot. The flush waits
+ * until a sealed slot has no writers left, so every record of the WAL segment is in the memtable.
+ */
+class MemtableSlot {
+
+    private static final int SEALED = 1 << 31;
+
+    private final Memtable memtable;
+    private final WriteAheadLog wal;
+
+    // sealed bit and the number of writers inside
+    private final AtomicInteger state;
+
+    MemtableSlot(Memtable memtable, WriteAheadLog wal) {
+        this(memtable, wal, false);
+    }
+
+    MemtableSlot(Memtable memtable, WriteAheadLog wal, boolean sealed) {
+        this.memtable = memtable;
+        this.wal = wal;
+        this.state = new AtomicInteger(sealed ? SEALED : 0);
+    }
+
+    Memtable memtable() { return memtable; }
+
+    WriteAheadLog wal() { return wal; }
+
+    boolean tryEnter() {
+        while (true) {
+            int current = state.get();
+            if ((current & SEALED) != 0) return false;
+            if (state.compareAndSet(current, current + 1)) return true;
+        }
+    }
+
+    /**
+     * @return true for the last writer leaving a sealed slot, the memtable can be flushed from then on
+     */
+    boolean exit() {
+        return state.decrementAndGet() == SEALED;
+    }
+
+    /**
+     * @return true for the one caller that sealed the slot, that caller has to install the next one
+     */
+    boolean seal() {
+        while (true) {
+            int current = state.get();
+            if ((current & SEALED) != 0) return false;
+            if (state.compareAndSet(current, current | SEALED)) return true;
+        }
+    }
+
+    boolean isSealed() {
+        return (state.get() & SEALED) != 0;
+    }
+
+    /**
+     * Sealed and left by every writer, nothing will be added to the memtable or the WAL any more.
+     */
+    boolean isDrained() {
+        return state.get() == SEALED;
+    }
+}
@@ -0,0 +1,129 @@
+package graveldb.datastore.lsmtree;
+
+import graveldb.datastore.compaction.CompactionJob;
+import graveldb.datastore.memtable.Memtable;
+import graveldb.datastore.sstable.SSTable;
+import graveldb.util.KeyComparator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Immutable snapshot of everything a read has to look at: the mutable memtable, the immutable
+ * memtables (newest first) and the SSTable levels (newest first inside a level, or in key order for
+ * the sorted levels of a {@link graveldb.datastore.compaction.CompactionStrategy}).
+ *
+ * <p>Memtable rotation, flush and compaction never change a version, they build the next one and swap
+ * it in. Readers pin the current version with {@link #tryRef()} and read it without any lock. Every
+ * version holds a reference on each of its SSTables, once the last version containing a table is
+ * released the table is handed to the obsolete callback, so files are only deleted when no reader can
+ * still be in them. Memtables are counted the same way, the off heap memory of a flushed memtable is
+ * freed with the last version holding it.
+ */
+class Version {
+
+    private final Memtable mutable;
+    private final List<Memtable> immutables;
+    private final List<List<SSTable>> tiers;
+    private final Consumer<SSTable> onObsolete;
+
+    // the tree holds one reference as long as this is the current version
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    Version(Memtable mutable, List<Memtable> immutables, List<? extends List<SSTable>> tiers, Consumer<SSTable> onObsolete) {
+        this.mutable = mutable;
+        this.immutables = List.copyOf(immutables);
+        List<List<SSTable>> tiersCopy = new ArrayList<>(tiers.size());
+        for (List<SSTable> tier : tiers) tiersCopy.add(List.copyOf(tier));
+        this.tiers = Collections.unmodifiableList(tiersCopy);
+        this.onObsolete = onObsolete;
+
+        mutable.ref();
+        for (Memtable memtable : this.immutables) memtable.ref();
+        for (List<SSTable> tier : this.tiers) {
+            for (SSTable ssTable : tier) ssTable.ref();
+        }
+    }
+
+    Memtable mutable() { return mutable; }
+
+    List<Memtable> immutables() { return immutables; }
+
+    List<List<SSTable>> tiers() { return tiers; }
+
+    /**
+     * Pins the version, fails if it has already been released because a newer one replaced it.
+     */
+    boolean tryRef() {
+        while (true) {
+            int current = refs.get();
+            if (current == 0) return false;
+            if (refs.compareAndSet(current, current + 1)) return true;
+        }
+    }
+
+    void unref() {
+        if (refs.decrementAndGet() != 0) return;
+        // a flushed memtable is gone with the last version that still has it
+        if (mutable.unref()) mutable.free();
+        for (Memtable memtable : immutables) {
+            if (memtable.unref()) memtable.free();
+        }
+        for (List<SSTable> tier : tiers) {
+            for (SSTable ssTable : tier) {
+                if (ssTable.unref()) onObsolete.accept(ssTable);
+            }
+        }
+    }
+
+    /**
+     * The current mutable memtable becomes the newest immutable one.
+     */
+    Version withMutable(Memtable newMutable) {
+        List<Memtable> newImmutables = new ArrayList<>(immutables.size() + 1);
+        newImmutables.add(mutable);
+        newImmutables.addAll(immutables);
+        return new Version(newMutable, newImmutables, tiers, onObsolete);
+    }
+
+    /**
+     * The memtable is replaced by the tables it was flushed into, which go in front of level 0.
+     */
+    Version withFlushed(Memtable flushed, List<SSTable> ssTables) {
+        List<Memtable> newImmutables = new ArrayList<>(immutables);
+        newImmutables.remove(flushed);
+        List<List<SSTable>> newTiers = new ArrayList<>(tiers);
+        newTiers.set(0, prepend(ssTables, tiers.get(0)));
+        return new Version(mutable, newImmutables, newTiers, onObsolete);
+    }
+
+    /**
+     * Drops the merged tables from their levels, tables added to them in the meantime stay, and adds
+     * the output to the output level: in key order if the level is sorted, otherwise in front of it.
+     */
+    Version withCompacted(CompactionJob job, List<SSTable> output, boolean sortedOutput) {
+        List<List<SSTable>> newTiers = new ArrayList<>(tiers);
+        List<SSTable> remaining = new ArrayList<>(tiers.get(job.level()));
+        remaining.removeAll(job.inputs());
+        newTiers.set(job.level(), remaining);
+
+        List<SSTable> outputTier = new ArrayList<>(output);
+        for (SSTable ssTable : newTiers.get(job.outputLevel())) {
+            if (!job.outputLevelInputs().contains(ssTable)) outputTier.add(ssTable);
+        }
+        if (sortedOutput) outputTier.sort(Comparator.comparing(SSTable::firstKey, Comparator.nullsFirst(KeyComparator.BYTE_ORDER)));
+        newTiers.set(job.outputLevel(), outputTier);
+        return new Version(mutable, immutables, newTiers, onObsolete);
+    }
+
+    private static List<SSTable> prepend(List<SSTable> ssTables, List<SSTable> tier) {
+        List<SSTable> newTier = new ArrayList<>(tier.size() + ssTables.size());
+        newTier.addAll(ssTables);
+        newTier.addAll(tier);
+        return newTier;
+    }
+}
@@ -1,54 +1,164 @@
 package graveldb.datastore.memtable;
 
+import graveldb.datastore.ScanIterator;
 import graveldb.datastore.lsmtree.KeyValuePair;
+import graveldb.datastore.merge.MergeEntry;
+import graveldb.util.KeyComparator;
 
 import java.util.Iterator;
-import java.util.Map;
-import java.util.UUID;
-import java.util.concurrent.ConcurrentMap;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentNavigableMap;
 import java.util.concurrent.ConcurrentSkipListMap;
-
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keys and values live in a {@link MemtableArena}, the skip list only maps the address of the entry
+ * that first wrote a key to the address of its current entry. Lookups probe the skip list with the
+ * key bytes, so the index holds Longs and byte[] probes side by side.
+ */
 public class ConcurrentSkipListMemtable implements Memtable {
 
-    private final ConcurrentMap<String, String> concurrentMap;
-    private int size;
-    private final static int FLUSH_THRESHOLD = 1024 ;
+    public static final long DEFAULT_FLUSH_THRESHOLD = 64L * 1024 * 1024;
 
+    private final MemtableArena arena;
+    private final ConcurrentNavigableMap<Object, Long> index;
+    private final AtomicLong size;
+    private final long flushThreshold;
+    private final AtomicInteger refs = new AtomicInteger(0);
 
     public ConcurrentSkipListMemtable() {
-        this.concurrentMap = new ConcurrentSkipListMap<>();
-        this.size = 0;
+        this(DEFAULT_FLUSH_THRESHOLD);
+    }
+
+    /**
+     * @param flushThreshold bytes of entries after which the memtable is full
+     */
+    public ConcurrentSkipListMemtable(long flushThreshold) {
+        this.flushThreshold = flushThreshold;
+        this.arena = new MemtableArena((int) Math.min(MemtableArena.MAX_SLAB_SIZE, Math.max(4096, flushThreshold)));
+        this.index = new ConcurrentSkipListMap<>(this::compare);
+        this.size = new AtomicLong(0);
+    }
+
+    private int compare(Object a, Object b) {
+        if (a instanceof Long x) {
+            return b instanceof Long y ? arena.compareKeys(x, y) : arena.compareKey(x, (byte[]) b);
+        }
+        return b instanceof Long y ? -arena.compareKey(y, (byte[]) a) : KeyComparator.compare((byte[]) a, (byte[]) b);
     }
 
     @Override
     public boolean canFlush() {
-        return size > FLUSH_THRESHOLD;
+        return size.get() > flushThreshold;
     }
 
+    @Override
+    public long size() {
+        return size.get();
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value) {
+        put(key, value, 0);
+    }
 
+    // the sequence decides which of two racing writes of a key stays, the same way WAL replay does
     @Override
-    public void put(String key, String value) {
-        size += key.getBytes().length + value.getBytes().length + 4 + 4;
-        concurrentMap.put(key, value);
+    public void put(byte[] key, byte[] value, long sequence) {
+        long address = arena.add(key, value, sequence);
+        size.addAndGet(MemtableArena.HEADER_SIZE + key.length + value.length);
+        index.merge(address, address, (old, cur) -> arena.sequence(old) > arena.sequence(cur) ? old : cur);
     }
 
     @Override
-    public String get(String key) {return concurrentMap.get(key);}
+    public byte[] get(byte[] key) {
+        Long address = index.get(key);
+        return address == null ? null : arena.value(address);
+    }
 
     @Override
-    public void delete(String key) {concurrentMap.put(key,null);}
+    public void delete(byte[] key) {put(key, new byte[0]);}
 
     @Override
     public Iterator<KeyValuePair> iterator() {
-        return new MemtableIterator();
+        return new MemtableIterator(index.values().iterator());
+    }
+
+    @Override
+    public Iterator<MergeEntry> entries(byte[] startKey) {
+        Iterator<Long> itr = (startKey == null ? index : index.tailMap(startKey)).values().iterator();
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return itr.hasNext();
+            }
+
+            @Override
+            public MergeEntry next() {
+                long address = itr.next();
+                return new MergeEntry(arena.key(address), arena.value(address), arena.sequence(address));
+            }
+        };
+    }
+
+    @Override
+    public void ref() { refs.incrementAndGet(); }
+
+    @Override
+    public boolean unref() { return refs.decrementAndGet() == 0; }
+
+    @Override
+    public void free() { arena.free(); }
+
+    /*
+     * Tombstones are skipped here, unlike in entries(), the memtable is read on its own.
+     */
+    @Override
+    public ScanIterator scan(byte[] startKey, byte[] endKey, int limit) {
+        NavigableMap<Object, Long> range = index;
+        if (startKey != null) range = range.tailMap(startKey, true);
+        if (endKey != null) range = range.headMap(endKey, false);
+        Iterator<Long> itr = range.values().iterator();
+        return new ScanIterator() {
+            private KeyValuePair next = advance();
+            private int returned = 0;
+
+            private KeyValuePair advance() {
+                while (itr.hasNext()) {
+                    long address = itr.next();
+                    byte[] value = arena.value(address);
+                    if (value.length > 0) return new KeyValuePair(arena.key(address), value, false);
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null && returned < limit;
+            }
+
+            @Override
+            public KeyValuePair next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                KeyValuePair current = next;
+                returned++;
+                next = returned < limit ? advance() : null;
+                return current;
+            }
+
+            @Override
+            public void close() { }
+        };
     }
 
     public class MemtableIterator implements Iterator<KeyValuePair> {
 
-        Iterator<Map.Entry<String, String>> itr;
+        Iterator<Long> itr;
 
-        public MemtableIterator() {
-            itr = concurrentMap.entrySet().iterator();
+        public MemtableIterator(Iterator<Long> itr) {
+            this.itr = itr;
         }
 
         @Override
@@ -58,12 +168,9 @@ public class ConcurrentSkipListMemtable implements Memtable {
 
         @Override
         public KeyValuePair next() {
-            Map.Entry<String, String> entry = itr.next();
-            String key = entry.getKey();
-            String value = entry.getValue();
-            boolean isDeleted = entry.getValue().isEmpty();
-
-            return new KeyValuePair(key, value, isDeleted);
+            long address = itr.next();
+            byte[] value = arena.value(address);
+            return new KeyValuePair(arena.key(address), value, value.length == 0);
         }
     }
 }
@@ -2,9 +2,48 @@ package graveldb.datastore.memtable;
 
 import graveldb.datastore.KeyValueStore;
 import graveldb.datastore.lsmtree.KeyValuePair;
+import graveldb.datastore.merge.MergeEntry;
 
+import java.util.Iterator;
+
+/**
+ * {@link #get(byte[])} returns an empty value for a deleted key, so lookups can tell a tombstone from
+ * a key the memtable does not have.
+ */
 public interface Memtable extends KeyValueStore, Iterable<KeyValuePair> {
 
     boolean canFlush();
 
+    /**
+     * Bytes written to the memtable so far, overwritten entries included.
+     */
+    long size();
+
+    /**
+     * Thread safe put for concurrent writers, when the key is already present the write with the
+     * higher sequence wins whatever order the two calls happen in.
+     */
+    void put(byte[] key, byte[] value, long sequence);
+
+    /**
+     * Entries with a key greater or equal to the start key (all of them for null) in key order with
+     * their sequences, deleted keys included.
+     */
+    Iterator<MergeEntry> entries(byte[] startKey);
+
+    /**
+     * Counts the versions holding the memtable.
+     */
+    void ref();
+
+    /**
+     * @return true if this released the last reference
+     */
+    boolean unref();
+
+    /**
+     * Releases the memory of the entries, called once no version holds the memtable any more.
+     */
+    void free();
+
 }
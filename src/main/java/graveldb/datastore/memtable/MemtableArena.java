@@ -0,0 +1,141 @@
+package graveldb.datastore.memtable;
+
+import graveldb.util.DirectBuffers;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Append only off heap storage for the entries of a memtable. Entries are copied into direct buffers
+ * (slabs) and addressed by a long, slab index in the high and offset in the low 32 bits, so the
+ * memtable index only holds that long per entry instead of the key and value arrays.
+ *
+ * <p>An entry is {@code <sequence:long><key length:int><value length:int><key><value>}. Writers
+ * reserve space with a CAS on the position of the current slab, only the writer that finds it full
+ * takes the lock to add the next slab. The slabs are freed explicitly once the memtable is no longer
+ * read, otherwise direct memory would only be given back when the garbage collector gets to them.
+ */
+class MemtableArena {
+
+    static final int MAX_SLAB_SIZE = 1 << 20;
+    static final int HEADER_SIZE = 16;
+
+    private record Slab(int index, ByteBuffer buffer, AtomicInteger position) {}
+
+    private final int slabSize;
+    private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+    private volatile Slab current;
+
+    /**
+     * @param slabSize size of a slab, entries larger than that get a slab of their own
+     */
+    MemtableArena(int slabSize) {
+        this.slabSize = slabSize;
+        addSlab(null, 0);
+    }
+
+    /**
+     * @return the address of the entry
+     */
+    long add(byte[] key, byte[] value, long sequence) {
+        int size = HEADER_SIZE + key.length + value.length;
+        while (true) {
+            Slab slab = current;
+            int offset = slab.position().getAndAdd(size);
+            if (offset <= slab.buffer().capacity() - size) {
+                ByteBuffer buffer = slab.buffer();
+                buffer.putLong(offset, sequence);
+                buffer.putInt(offset + 8, key.length);
+                buffer.putInt(offset + 12, value.length);
+                buffer.put(offset + HEADER_SIZE, key);
+                buffer.put(offset + HEADER_SIZE + key.length, value);
+                return ((long) slab.index() << 32) | offset;
+            }
+            addSlab(slab, size);
+        }
+    }
+
+    private synchronized void addSlab(Slab full, int size) {
+        if (current != full) return;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(slabSize, size));
+        ByteBuffer[] grown = Arrays.copyOf(slabs, slabs.length + 1);
+        grown[slabs.length] = buffer;
+        slabs = grown;
+        current = new Slab(slabs.length - 1, buffer, new AtomicInteger());
+    }
+
+    /**
+     * Releases the slabs, nothing can be added or read afterwards.
+     */
+    synchronized void free() {
+        ByteBuffer[] freed = slabs;
+        slabs = new ByteBuffer[0];
+        current = null;
+        try {
+            for (ByteBuffer slab : freed) DirectBuffers.free(slab);
+        } catch (ReflectiveOperationException e) {
+            // left to the garbage collector
+        }
+    }
+
+    long sequence(long address) {
+        return slab(address).getLong(offset(address));
+    }
+
+    byte[] key(long address) {
+        ByteBuffer slab = slab(address);
+        int offset = offset(address);
+        byte[] key = new byte[slab.getInt(offset + 8)];
+        slab.get(offset + HEADER_SIZE, key);
+        return key;
+    }
+
+    byte[] value(long address) {
+        ByteBuffer slab = slab(address);
+        int offset = offset(address);
+        int keyLength = slab.getInt(offset + 8);
+        byte[] value = new byte[slab.getInt(offset + 12)];
+        slab.get(offset + HEADER_SIZE + keyLength, value);
+        return value;
+    }
+
+    /**
+     * Unsigned byte order of the key of the entry against the given key, the order of KeyComparator.
+     */
+    int compareKey(long address, byte[] key) {
+        ByteBuffer slab = slab(address);
+        int offset = offset(address);
+        int length = slab.getInt(offset + 8);
+        int start = offset + HEADER_SIZE;
+        int n = Math.min(length, key.length);
+        for (int i = 0; i < n; i++) {
+            int cmp = Byte.compareUnsigned(slab.get(start + i), key[i]);
+            if (cmp != 0) return cmp;
+        }
+        return Integer.compare(length, key.length);
+    }
+
+    int compareKeys(long a, long b) {
+        ByteBuffer slabA = slab(a);
+        ByteBuffer slabB = slab(b);
+        int offsetA = offset(a);
+        int offsetB = offset(b);
+        int lengthA = slabA.getInt(offsetA + 8);
+        int lengthB = slabB.getInt(offsetB + 8);
+        int n = Math.min(lengthA, lengthB);
+        for (int i = 0; i < n; i++) {
+            int cmp = Byte.compareUnsigned(slabA.get(offsetA + HEADER_SIZE + i), slabB.get(offsetB + HEADER_SIZE + i));
+            if (cmp != 0) return cmp;
+        }
+        return Integer.compare(lengthA, lengthB);
+    }
+
+    private ByteBuffer slab(long address) {
+        return slabs[(int) (address >>> 32)];
+    }
+
+    private static int offset(long address) {
+        return (int) address;
+    }
+}
@@ -0,0 +1,16 @@
+package graveldb.datastore.merge;
+
+import graveldb.datastore.lsmtree.KeyValuePair;
+
+/**
+ * An entry as the merge sees it, key and value bytes and the sequence of the write. An empty value is
+ * a tombstone. Entries read from SSTables have sequence 0, the tables do not keep it.
+ */
+public record MergeEntry(byte[] key, byte[] value, long sequence) {
+
+    public boolean isDeleted() { return value.length == 0; }
+
+    public KeyValuePair toKeyValuePair() {
+        return new KeyValuePair(key, value, isDeleted());
+    }
+}
@@ -0,0 +1,116 @@
+package graveldb.datastore.merge;
+
+import graveldb.util.KeyComparator;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * K-way merge of sorted entry iterators, used by flush, compaction and range scans.
+ *
+ * <p>The current heads of the sources sit in a loser tree: every inner node keeps the loser of the
+ * match played there and the overall winner is kept on top, so replacing the winner with the next
+ * entry of its source replays only the matches on its path to the root, log(k) comparisons of byte
+ * keys. For a key present in several sources only the entry of the source given first comes out, so
+ * sources are passed newest first. Sequences are not compared: a writer still inside an older memtable
+ * can take a higher sequence than a write already in a newer one, and point lookups, which stop at the
+ * first memtable or table holding the key, and flushed tables, which keep no sequence per entry, both
+ * go by memtable order. Tombstones come out like any other entry unless the merge is told to drop
+ * them.
+ */
+public class MergeIterator implements Iterator<MergeEntry> {
+
+    private final List<? extends Iterator<MergeEntry>> sources;
+    private final boolean dropTombstones;
+    private final int k;
+
+    // current entry of every source, null once the source is exhausted
+    private final MergeEntry[] heads;
+    // tree[0] is the winner, tree[1..k-1] the losers of the inner nodes
+    private final int[] tree;
+
+    private MergeEntry next;
+
+    public MergeIterator(List<? extends Iterator<MergeEntry>> sources) {
+        this(sources, false);
+    }
+
+    public MergeIterator(List<? extends Iterator<MergeEntry>> sources, boolean dropTombstones) {
+        this.sources = sources;
+        this.dropTombstones = dropTombstones;
+        this.k = sources.size();
+        this.heads = new MergeEntry[k];
+        this.tree = new int[Math.max(1, k)];
+
+        for (int i = 0; i < k; i++) heads[i] = sources.get(i).hasNext() ? sources.get(i).next() : null;
+
+        // every node starts out holding the sentinel k, which beats everyone, and the players are
+        // then added one by one
+        Arrays.fill(tree, k);
+        for (int i = k - 1; i >= 0; i--) replay(i);
+        if (k == 0) tree[0] = -1;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null) {
+            MergeEntry entry = pollWinner();
+            if (entry == null) return false;
+
+            // shadowed entries of the same key
+            while (tree[0] >= 0 && heads[tree[0]] != null && KeyComparator.compare(heads[tree[0]].key(), entry.key()) == 0) {
+                pollWinner();
+            }
+            if (!dropTombstones || !entry.isDeleted()) next = entry;
+        }
+        return true;
+    }
+
+    @Override
+    public MergeEntry next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        MergeEntry entry = next;
+        next = null;
+        return entry;
+    }
+
+    private MergeEntry pollWinner() {
+        int winner = tree[0];
+        if (winner < 0 || heads[winner] == null) return null;
+        MergeEntry entry = heads[winner];
+        Iterator<MergeEntry> source = sources.get(winner);
+        heads[winner] = source.hasNext() ? source.next() : null;
+        replay(winner);
+        return entry;
+    }
+
+    /*
+     * Walks from the leaf of the source up to the root, at every node the loser stays and the winner
+     * goes on.
+     */
+    private void replay(int source) {
+        int winner = source;
+        for (int node = (source + k) >>> 1; node > 0; node >>>= 1) {
+            if (beats(tree[node], winner)) {
+                int loser = winner;
+                winner = tree[node];
+                tree[node] = loser;
+            }
+        }
+        tree[0] = winner;
+    }
+
+    private boolean beats(int a, int b) {
+        if (a == k) return true;
+        if (b == k) return false;
+        MergeEntry x = heads[a];
+        MergeEntry y = heads[b];
+        if (x == null) return false;
+        if (y == null) return true;
+        int cmp = KeyComparator.compare(x.key(), y.key());
+        if (cmp != 0) return cmp < 0;
+        return a < b;
+    }
+}
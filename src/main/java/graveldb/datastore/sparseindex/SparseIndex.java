@@ -1,25 +1,80 @@
 package graveldb.datastore.sparseindex;
 
-import graveldb.datastore.lsmtree.KeyValuePair;
-import graveldb.util.Pair;
+import graveldb.datastore.cache.MetadataCache;
+import graveldb.util.KeyComparator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.*;
-
-public class SparseIndex {
+import java.util.Arrays;
+
+/**
+ * Index of the blocks of an SSTable, one entry per block with the first key of the block and where
+ * the block is. The index is one flat byte region, the same in the file and in memory:
+ * {@code <magic:int><count:int>} followed by a fixed size slot per block,
+ * {@code <block offset:long><block size:int><key end:int>}, and the first keys of the blocks back to
+ * back. The key of block i runs from the key end of block i - 1 to its own. Lookups binary search the
+ * slots and compare keys in place, nothing is created per entry.
+ *
+ * <p>Index files of the block format before it ({@code <magic><key length><key><block offset:long>
+ * <block size:int>} entries) and of tables in the old record format (no magic,
+ * {@code <key length><key><offset:int>} for every 500th record, read with a size of -1) are converted
+ * to the flat layout when they are loaded.
+ *
+ * <p>The region is read on first use and reported to the {@link MetadataCache}, which may drop it
+ * again when the index is not pinned.
+ */
+public class SparseIndex implements MetadataCache.Metadata {
 
     private static final Logger log = LoggerFactory.getLogger(SparseIndex.class);
 
+    private static final int BLOCK_INDEX_MAGIC = 0x47534932;
+    private static final int FLAT_INDEX_MAGIC = 0x47534933;
+    private static final int HEADER_SIZE = 4 + 4;
+    private static final int SLOT_SIZE = 8 + 4 + 4;
+
+    // the index region and a buffer over it for the slots
+    private record Flat(byte[] bytes, ByteBuffer slots, int count) {
+
+        Flat(byte[] bytes) {
+            this(bytes, ByteBuffer.wrap(bytes), ByteBuffer.wrap(bytes).getInt(4));
+        }
+
+        int keyStart(int i) {
+            int keys = HEADER_SIZE + count * SLOT_SIZE;
+            return i == 0 ? keys : keys + slots.getInt(HEADER_SIZE + (i - 1) * SLOT_SIZE + 12);
+        }
+
+        int keyEnd(int i) {
+            return HEADER_SIZE + count * SLOT_SIZE + slots.getInt(HEADER_SIZE + i * SLOT_SIZE + 12);
+        }
+
+        Entry entry(int i) {
+            int slot = HEADER_SIZE + i * SLOT_SIZE;
+            return new Entry(Arrays.copyOfRange(bytes, keyStart(i), keyEnd(i)), slots.getLong(slot), slots.getInt(slot + 8));
+        }
+    }
+
     private final String fileName;
-    List<Pair<String, Integer>> sparseTable = null;
+    private final MetadataCache cache;
+    private volatile Flat flat = null;
+    private volatile boolean pinned;
 
+    public record Entry(byte[] key, long offset, int size) { }
 
     public SparseIndex(String fileName) {
+        this(fileName, null);
+    }
+
+    /**
+     * @param cache accounts for the index while it is loaded, null to keep it once read
+     */
+    public SparseIndex(String fileName, MetadataCache cache) {
         this.fileName = fileName;
+        this.cache = cache;
         Path path = Path.of(fileName);
         if (!Files.exists(path)) {
             try {
@@ -33,70 +88,161 @@ public class SparseIndex {
 
     public SparseIndexWriter getWriter() { return new SparseIndexWriter(); }
 
-    public List<Pair<String, Integer>> getSparseIndexTable() {
-        if (sparseTable != null) return sparseTable;
+    /**
+     * The entry with the biggest key that is smaller or equal to the given key, that is the only
+     * place the key can be in. Null if the key is smaller than the first key of the table.
+     */
+    public Entry floor(byte[] key) {
+        Flat flat = flat();
+
+        int floor = -1;
+        int l = 0;
+        int r = flat.count() - 1;
+        while (l <= r) {
+            int m = l + (r - l) / 2;
+            int cmp = KeyComparator.compare(flat.bytes(), flat.keyStart(m), flat.keyEnd(m), key);
+
+            if (cmp == 0) {
+                floor = m;
+                break;
+            } else if (cmp < 0) {
+                floor = m;
+                l = m + 1;
+            } else {
+                r = m - 1;
+            }
+        }
+        return floor < 0 ? null : flat.entry(floor);
+    }
+
+    /**
+     * Number of blocks in the index.
+     */
+    public int size() { return flat().count(); }
+
+    /**
+     * First key of the i-th block.
+     */
+    public byte[] key(int i) {
+        Flat flat = flat();
+        return Arrays.copyOfRange(flat.bytes(), flat.keyStart(i), flat.keyEnd(i));
+    }
 
-        this.sparseTable = new ArrayList<>();
+    /**
+     * Bytes the index takes in memory, 0 while it is not loaded.
+     */
+    public long sizeInBytes() {
+        Flat flat = this.flat;
+        return flat == null ? 0 : flat.bytes().length;
+    }
 
-        try (RandomAccessFile fis = new RandomAccessFile(fileName, "r");) {
-            while (fis.getFilePointer() < fis.length()) {
-                byte[] keyLenByte = new byte[4];
-                fis.read(keyLenByte);
-                byte[] keyByte = new byte[byteArrayToInt(keyLenByte)];
-                fis.read(keyByte);
-                byte[] offsetByte = new byte[4];
-                fis.read(offsetByte);
+    public void setPinned(boolean pinned) { this.pinned = pinned; }
 
-                sparseTable.add(new Pair<>(new String(keyByte), byteArrayToInt(offsetByte)));
-            }
-            return sparseTable;
+    @Override
+    public boolean isPinned() { return pinned; }
+
+    @Override
+    public synchronized void unload() {
+        flat = null;
+    }
+
+    private Flat flat() {
+        Flat flat = this.flat;
+        if (flat != null) {
+            if (cache != null) cache.touch(this);
+            return flat;
+        }
+        return load();
+    }
+
+    private synchronized Flat load() {
+        if (flat != null) return flat;
+
+        try {
+            byte[] bytes = Files.readAllBytes(Path.of(fileName));
+            boolean flatLayout = bytes.length >= HEADER_SIZE && ByteBuffer.wrap(bytes).getInt() == FLAT_INDEX_MAGIC;
+            flat = new Flat(flatLayout ? bytes : convert(bytes));
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        if (cache != null) cache.loaded(this, flat.bytes().length);
+        return flat;
     }
 
-    public class SparseIndexWriter implements AutoCloseable {
+    private byte[] convert(byte[] bytes) throws IOException {
+        Builder builder = new Builder();
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(bytes));
+        long position = 0;
+        boolean blockIndex = bytes.length >= 4 && dis.readInt() == BLOCK_INDEX_MAGIC;
+        if (blockIndex) position += 4;
+        else dis = new DataInputStream(new ByteArrayInputStream(bytes));
+        log.debug("converting {} index {} to the flat layout", blockIndex ? "block" : "record", fileName);
+
+        while (position < bytes.length) {
+            byte[] keyByte = new byte[dis.readInt()];
+            dis.readFully(keyByte);
+            if (blockIndex) {
+                builder.add(keyByte, dis.readLong(), dis.readInt());
+                position += 4 + keyByte.length + 8 + 4;
+            } else {
+                builder.add(keyByte, dis.readInt(), -1);
+                position += 4 + keyByte.length + 4;
+            }
+        }
+        return builder.finish();
+    }
 
-        BufferedOutputStream bos;
+    /*
+     * Slots and keys grow separately, they are put together once the number of blocks is known.
+     */
+    private static final class Builder {
+
+        private final ByteArrayOutputStream slots = new ByteArrayOutputStream();
+        private final DataOutputStream slotsOut = new DataOutputStream(slots);
+        private final ByteArrayOutputStream keys = new ByteArrayOutputStream();
+        private int count = 0;
+
+        void add(byte[] key, long offset, int size) throws IOException {
+            keys.write(key);
+            slotsOut.writeLong(offset);
+            slotsOut.writeInt(size);
+            slotsOut.writeInt(keys.size());
+            count++;
+        }
 
-        public SparseIndexWriter() {
-            try {
-                bos = new BufferedOutputStream(new FileOutputStream(fileName));
-            } catch (Exception e) {
-                throw new RuntimeException(e);
-            }
+        byte[] finish() {
+            return ByteBuffer.allocate(HEADER_SIZE + slots.size() + keys.size())
+                    .putInt(FLAT_INDEX_MAGIC)
+                    .putInt(count)
+                    .put(slots.toByteArray())
+                    .put(keys.toByteArray())
+                    .array();
         }
+    }
+
+    public class SparseIndexWriter implements AutoCloseable {
+
+        private final Builder builder = new Builder();
 
-        public void write(String key, int offset) {
+        public void write(Entry entry) {
             try {
-                bos.write(intToByteArray(key.getBytes().length));
-                bos.write(key.getBytes());
-                bos.write(intToByteArray(offset));
-            } catch (Exception e) {
+                builder.add(entry.key(), entry.offset(), entry.size());
+            } catch (IOException e) {
                 throw new RuntimeException(e);
             }
         }
 
+        /*
+         * The index stays loaded, the table is usually read right after it is written.
+         */
         @Override
         public void close() throws Exception {
-            bos.flush();
-            bos.close();
+            byte[] bytes = builder.finish();
+            Files.write(Path.of(fileName), bytes);
+            synchronized (SparseIndex.this) {
+                flat = new Flat(bytes);
+            }
+            if (cache != null) cache.loaded(SparseIndex.this, bytes.length);
         }
     }
-
-    public static byte[] intToByteArray(int value) {
-        return new byte[] {
-                (byte) (value >>> 24), // Extracts the most significant byte
-                (byte) (value >>> 16), // Extracts the second most significant byte
-                (byte) (value >>> 8),  // Extracts the third most significant byte
-                (byte) value           // Extracts the least significant byte
-        };
-    }
-
-    private static int byteArrayToInt(byte[] bytes) {
-        return ((bytes[0] & 0xFF) << 24) |
-                ((bytes[1] & 0xFF) << 16) |
-                ((bytes[2] & 0xFF) << 8) |
-                (bytes[3] & 0xFF);
-    }
 }
@@ -0,0 +1,219 @@
+package graveldb.datastore.sstable;
+
+import graveldb.datastore.lsmtree.KeyValuePair;
+import graveldb.datastore.merge.MergeEntry;
+import graveldb.util.KeyComparator;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A data block of the block based SSTable format.
+ *
+ * <p>Entries are {@code <shared:varint><unshared:varint><value length:varint><key suffix><value>} where
+ * shared is the length of the prefix the key has in common with the previous key. Every
+ * {@link #RESTART_INTERVAL}th entry is a restart point and stores its full key, the block ends with
+ * the offsets of the restart points and their count as ints, so a lookup binary searches the restart
+ * points and then decodes at most one interval.
+ */
+public class Block {
+
+    public static final int RESTART_INTERVAL = 16;
+
+    private final ByteBuffer data;
+    private final int restartsOffset;
+    private final int restartCount;
+
+    /**
+     * @param data the block bytes from position to limit, is not copied
+     */
+    public Block(ByteBuffer data) {
+        this.data = data.slice();
+        this.restartCount = this.data.getInt(this.data.limit() - 4);
+        this.restartsOffset = this.data.limit() - 4 - restartCount * 4;
+    }
+
+    /**
+     * Returns the entry for the key or null if the block does not have it.
+     */
+    public KeyValuePair get(byte[] target) {
+        int left = 0;
+        int right = restartCount - 1;
+        int restart = 0;
+
+        // last restart point whose key is <= the target
+        while (left <= right) {
+            int mid = (left + right) >>> 1;
+            int cmp = KeyComparator.compare(restartKey(mid), target);
+            if (cmp == 0) {
+                restart = mid;
+                break;
+            } else if (cmp < 0) {
+                restart = mid;
+                left = mid + 1;
+            } else {
+                right = mid - 1;
+            }
+        }
+
+        BlockIterator itr = new BlockIterator(restartOffset(restart));
+        int end = restart + 1 < restartCount ? restartOffset(restart + 1) : restartsOffset;
+        while (itr.position < end) {
+            MergeEntry entry = itr.nextEntry();
+            int cmp = KeyComparator.compare(entry.key(), target);
+            if (cmp == 0) return entry.toKeyValuePair();
+            if (cmp > 0) return null;
+        }
+        return null;
+    }
+
+    public BlockIterator iterator() {
+        return new BlockIterator(0);
+    }
+
+    private int restartOffset(int index) {
+        return data.getInt(restartsOffset + index * 4);
+    }
+
+    private byte[] restartKey(int index) {
+        int position = restartOffset(index);
+        int[] header = new int[3];
+        position = readHeader(position, header);
+        byte[] keyBytes = new byte[header[1]];
+        data.get(position, keyBytes);
+        return keyBytes;
+    }
+
+    private int readHeader(int position, int[] header) {
+        for (int i = 0; i < 3; i++) {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data.get(position++);
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            header[i] = value;
+        }
+        return position;
+    }
+
+    public class BlockIterator implements Iterator<KeyValuePair> {
+
+        private int position;
+        private byte[] lastKey = new byte[0];
+        private final int[] header = new int[3];
+
+        private BlockIterator(int position) {
+            this.position = position;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return position < restartsOffset;
+        }
+
+        @Override
+        public KeyValuePair next() {
+            return nextEntry().toKeyValuePair();
+        }
+
+        /**
+         * The next entry with the sequence the merge needs, values are not copied twice.
+         */
+        public MergeEntry nextEntry() {
+            if (!hasNext()) throw new NoSuchElementException();
+            position = readHeader(position, header);
+            int shared = header[0];
+            int unshared = header[1];
+            int valueLength = header[2];
+
+            byte[] key = Arrays.copyOf(lastKey, shared + unshared);
+            data.get(position, key, shared, unshared);
+            position += unshared;
+            lastKey = key;
+
+            byte[] value = new byte[valueLength];
+            data.get(position, value);
+            position += valueLength;
+            return new MergeEntry(key, value, 0);
+        }
+    }
+
+    /**
+     * Accumulates sorted entries until the block is big enough to be written out.
+     */
+    public static class BlockBuilder {
+
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private int[] restarts = new int[16];
+        private int restartCount = 0;
+        private int entryCount = 0;
+        private byte[] lastKey = new byte[0];
+        private byte[] firstKey = null;
+
+        public void add(byte[] key, byte[] value) {
+            int shared = 0;
+            if (entryCount % RESTART_INTERVAL == 0) {
+                if (restartCount == restarts.length) restarts = Arrays.copyOf(restarts, restartCount * 2);
+                restarts[restartCount++] = buffer.size();
+            } else {
+                int max = Math.min(lastKey.length, key.length);
+                while (shared < max && lastKey[shared] == key[shared]) shared++;
+            }
+
+            writeVarint(shared);
+            writeVarint(key.length - shared);
+            writeVarint(value.length);
+            buffer.write(key, shared, key.length - shared);
+            buffer.write(value, 0, value.length);
+
+            if (firstKey == null) firstKey = key;
+            lastKey = key;
+            entryCount++;
+        }
+
+        /**
+         * Size the block will have on disk if it is finished now.
+         */
+        public int estimatedSize() {
+            return buffer.size() + restartCount * 4 + 4;
+        }
+
+        public boolean isEmpty() { return entryCount == 0; }
+
+        public byte[] firstKey() { return firstKey; }
+
+        public byte[] finish() {
+            for (int i = 0; i < restartCount; i++) writeInt(restarts[i]);
+            writeInt(restartCount);
+            byte[] block = buffer.toByteArray();
+
+            buffer.reset();
+            restartCount = 0;
+            entryCount = 0;
+            lastKey = new byte[0];
+            firstKey = null;
+            return block;
+        }
+
+        private void writeVarint(int value) {
+            while ((value & ~0x7F) != 0) {
+                buffer.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer.write(value);
+        }
+
+        private void writeInt(int value) {
+            buffer.write(value >>> 24);
+            buffer.write(value >>> 16);
+            buffer.write(value >>> 8);
+            buffer.write(value);
+        }
+    }
+}
@@ -1,23 +1,116 @@
 package graveldb.datastore.sstable;
 
+import graveldb.datastore.cache.BlockCache;
+import graveldb.datastore.compression.BlockCodec;
+import graveldb.datastore.compression.BlockCodecs;
+import graveldb.datastore.compression.CompressionStats;
 import graveldb.datastore.lsmtree.KeyValuePair;
+import graveldb.datastore.merge.MergeEntry;
+import graveldb.datastore.sparseindex.SparseIndex;
+import graveldb.util.DirectBuffers;
+import graveldb.util.KeyComparator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * An SSTable file. Tables are written in the block format:
+ * {@code <data block>...<data block><index><properties><footer>}, see {@link Block} for the block
+ * layout. The index holds {@code <key length><first key of block><block offset:long><block size:int>}
+ * per block behind an int count, the properties are the {@link Properties} of the table and the footer
+ * is {@code <index offset:long><index and properties size:int><version:int><magic:long>}.
+ *
+ * <p>Every data block is stored as {@code <payload><codec id:byte><raw size:int>}, the payload being
+ * the block compressed with the {@link BlockCodec} of that id. The writer compresses with the codec it
+ * is given and keeps a block uncompressed when that saves less than an eighth of it. The index points
+ * at stored blocks, the block cache holds them decompressed. Tables of version 3 have blocks without
+ * the trailer and tables of version 2 also have no properties.
+ *
+ * <p>Files written before the block format ({@code <key length><value length><key><value>} records,
+ * no footer) are still read, they are told apart by the missing magic.
+ *
+ * <p>Reads either go through positional reads on a channel that stays open for the lifetime of the
+ * table ({@link ReadMode#PREAD}) or through a mapping of the whole file made on first use
+ * ({@link ReadMode#MMAP}), in which case blocks are decoded in place from the mapped buffer. The
+ * mapping is released by {@link #close()}, nothing may read the table after that.
+ *
+ * <p>Blocks that have to be copied out of the file (positional reads) go through the shared
+ * {@link BlockCache} when the table has one, mapped blocks are already served from the page cache.
+ */
 public class SSTable {
 
     private static final Logger log = LoggerFactory.getLogger(SSTable.class);
 
+    public static final int BLOCK_SIZE = 4 * 1024;
+    private static final long MAGIC = 0x475256534254424CL;
+    private static final int FORMAT_VERSION = 4;
+    private static final int UNCOMPRESSED_VERSION = 3;
+    private static final int NO_PROPERTIES_VERSION = 2;
+    private static final int BLOCK_TRAILER_SIZE = 1 + 4;
+    private static final int FOOTER_SIZE = 8 + 4 + 4 + 8;
+
+    public enum ReadMode { PREAD, MMAP }
+
+    /**
+     * What the writer saw of the entries of a table. The sequences are 0 when the entries had none,
+     * the counts -1 for tables written before properties were kept.
+     */
+    public record Properties(byte[] firstKey, byte[] lastKey, long entryCount, long tombstoneCount, long minSequence, long maxSequence) { }
+
+    private static final AtomicLong idGenerator = new AtomicLong(0);
+
+    private final long id;
     private final String fileName;
+    private final ReadMode readMode;
+    private final BlockCache blockCache;
+    // the level the table is in, decompression of its blocks is counted there
+    private volatile CompressionStats compressionStats;
+
+    // number of tree versions containing the table
+    private final AtomicInteger refs = new AtomicInteger(0);
+
+    // opened on first read, format and block index are read from the footer at the same time and
+    // published by the volatile write of opened
+    private volatile boolean opened;
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+    private boolean blockFormat;
+    private boolean blockTrailers;
+    // the block index of the footer, offsets and sizes by block, only the first key of the table is kept
+    private long[] blockOffsets;
+    private int[] blockSizes;
+    private byte[] firstBlockKey;
+    private Properties properties;
+
+    // smallest and largest key, set by the writer or read on first use, published by keyRangeLoaded
+    private volatile boolean keyRangeLoaded;
+    private byte[] firstKey;
+    private byte[] lastKey;
 
 
     public SSTable(String fileName) {
+        this(fileName, ReadMode.PREAD, null);
+    }
+
+    public SSTable(String fileName, ReadMode readMode, BlockCache blockCache) {
+        this.id = idGenerator.incrementAndGet();
         this.fileName = fileName;
+        this.readMode = readMode;
+        this.blockCache = blockCache;
         if (!Files.exists(Path.of(fileName))) {
             try {
                 Files.createDirectories(Path.of(fileName).getParent());
@@ -44,29 +137,411 @@ public class SSTable {
         }
     }
 
+    /**
+     * Iterates from the block (or for old tables the record) the sparse index entry points at, that is
+     * where a seek for a key the entry is the floor of has to start.
+     */
+    public SSTableIterator iterator(SparseIndex.Entry start) {
+        try {
+            return new SSTableIterator(start);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Entries of the whole table as raw bytes, for the merge.
+     */
+    public EntryIterator entries() {
+        return new EntryIterator(iterator());
+    }
+
+    /**
+     * Entries as raw bytes starting at the block the sparse index entry points at, see
+     * {@link #iterator(SparseIndex.Entry)}.
+     */
+    public EntryIterator entries(SparseIndex.Entry start) {
+        return new EntryIterator(iterator(start));
+    }
+
     public String getFileName() {return fileName;}
 
-    public SSTableWriter getWriter() { return new SSTableWriter(); }
+    public void ref() { refs.incrementAndGet(); }
+
+    /**
+     * @return true if this released the last reference
+     */
+    public boolean unref() { return refs.decrementAndGet() == 0; }
+
+    public SSTableWriter getWriter(SparseIndex.SparseIndexWriter sparseIndexWriter) { return getWriter(sparseIndexWriter, BLOCK_SIZE); }
+
+    public SSTableWriter getWriter(SparseIndex.SparseIndexWriter sparseIndexWriter, int blockSize) {
+        return getWriter(sparseIndexWriter, blockSize, BlockCodecs.NONE, null);
+    }
+
+    /**
+     * @param blockSize bytes after which a block is finished, so also the bytes of data per sparse
+     *                  index entry
+     * @param stats counts the compression of the blocks, may be null
+     */
+    public SSTableWriter getWriter(SparseIndex.SparseIndexWriter sparseIndexWriter, int blockSize, BlockCodec codec, CompressionStats stats) {
+        return new SSTableWriter(sparseIndexWriter, blockSize, codec, stats);
+    }
+
+    public void setCompressionStats(CompressionStats compressionStats) { this.compressionStats = compressionStats; }
 
     public long getSize() {
         File directory = new File(Path.of(fileName).getParent().toString());
         return directory.length();
     }
 
+    public long getFileSize() {
+        return new File(fileName).length();
+    }
+
+    /**
+     * Smallest key in the table, null if the table is empty.
+     */
+    public byte[] firstKey() {
+        loadKeyRange();
+        return firstKey;
+    }
+
+    /**
+     * Largest key in the table, null if the table is empty.
+     */
+    public byte[] lastKey() {
+        loadKeyRange();
+        return lastKey;
+    }
+
+    /**
+     * Properties of the table, read with the footer. Tables without them get their key range and -1
+     * counts.
+     */
+    public Properties properties() {
+        open();
+        if (properties != null) return properties;
+        return new Properties(firstKey(), lastKey(), -1, -1, 0, 0);
+    }
+
+    /*
+     * The key range comes from the properties. Without them the first key comes from the block index and
+     * the last one from a read of the last block, tables in the record format have to be read to the
+     * end. Tables written by this process already know both.
+     */
+    private void loadKeyRange() {
+        if (keyRangeLoaded) return;
+        synchronized (this) {
+            if (keyRangeLoaded) return;
+            open();
+            if (properties != null) {
+                setKeyRange(properties.firstKey(), properties.lastKey());
+                return;
+            }
+            MergeEntry first = null;
+            MergeEntry last = null;
+            try {
+                if (blockFormat) {
+                    if (blockOffsets.length > 0) {
+                        first = new MergeEntry(firstBlockKey, new byte[0], 0);
+                        int lastBlock = blockOffsets.length - 1;
+                        Block.BlockIterator itr = new Block(readBlock(blockOffsets[lastBlock], blockSizes[lastBlock])).iterator();
+                        while (itr.hasNext()) last = itr.nextEntry();
+                    }
+                } else {
+                    try (SSTableIterator itr = iterator()) {
+                        while (itr.hasNext()) {
+                            last = itr.nextEntry();
+                            if (first == null) first = last;
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            setKeyRange(first == null ? null : first.key(), last == null ? null : last.key());
+        }
+    }
+
+    /**
+     * Key range known from elsewhere, the manifest, so the table does not have to be read for it.
+     */
+    public void setKeyRange(byte[] firstKey, byte[] lastKey) {
+        this.firstKey = firstKey;
+        this.lastKey = lastKey;
+        keyRangeLoaded = true;
+    }
+
+    /**
+     * Point lookup of a key in the block (or for old tables the record run) the sparse index entry
+     * points at. Block format tables need a single positional read of that one block.
+     */
+    public KeyValuePair get(byte[] key, SparseIndex.Entry entry) {
+        open();
+        if (!blockFormat) return getFromRecords(key, (int) entry.offset());
+
+        try {
+            return new Block(readBlock(entry.offset(), entry.size())).get(key);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Point lookups of keys given in ascending order with their sparse index entries, consecutive keys
+     * that fall into the same block share a single read and decode of it. Null for the keys not found.
+     */
+    public KeyValuePair[] get(List<byte[]> keys, List<SparseIndex.Entry> entries) {
+        open();
+        KeyValuePair[] found = new KeyValuePair[keys.size()];
+        Block block = null;
+        SparseIndex.Entry blockEntry = null;
+
+        try {
+            for (int i = 0; i < keys.size(); i++) {
+                SparseIndex.Entry entry = entries.get(i);
+                if (!blockFormat) {
+                    found[i] = getFromRecords(keys.get(i), (int) entry.offset());
+                    continue;
+                }
+                if (blockEntry == null || entry.offset() != blockEntry.offset()) {
+                    block = new Block(readBlock(entry.offset(), entry.size()));
+                    blockEntry = entry;
+                }
+                found[i] = block.get(keys.get(i));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return found;
+    }
+
+    private KeyValuePair getFromRecords(byte[] key, int offset) {
+        if (mapped != null) return getFromMappedRecords(key, offset);
+
+        try (SSTableIterator itr = iterator(offset)) {
+            while (itr.hasNext()) {
+                MergeEntry entry = itr.nextEntry();
+                int cmp = KeyComparator.compare(entry.key(), key);
+                if (cmp == 0) return entry.toKeyValuePair();
+                if (cmp > 0) break;
+            }
+            return null;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private KeyValuePair getFromMappedRecords(byte[] target, int offset) {
+        ByteBuffer records = mapped.duplicate().position(offset);
+        while (records.remaining() >= 8) {
+            int keyLength = records.getInt();
+            int valueLength = records.getInt();
+            byte[] keyBytes = new byte[keyLength];
+            records.get(keyBytes);
+
+            int cmp = KeyComparator.compare(keyBytes, target);
+            if (cmp > 0) break;
+            if (cmp < 0) {
+                records.position(records.position() + valueLength);
+                continue;
+            }
+
+            byte[] valueBytes = new byte[valueLength];
+            records.get(valueBytes);
+            return new KeyValuePair(keyBytes, valueBytes, valueLength == 0);
+        }
+        return null;
+    }
+
+    /*
+     * Uncompressed blocks of a mapped table are decoded in place, compressed ones go through the block
+     * cache like the blocks of positional reads.
+     */
+    private ByteBuffer readBlock(long offset, int size) throws IOException {
+        ByteBuffer stored = null;
+        if (mapped != null) {
+            stored = mapped.slice((int) offset, size);
+            if (!blockTrailers) return stored;
+            if (codecOf(stored) == BlockCodecs.NONE) return stored.slice(0, size - BLOCK_TRAILER_SIZE);
+        }
+
+        if (blockCache != null) {
+            ByteBuffer cached = blockCache.get(id, offset);
+            if (cached != null) return cached;
+        }
+
+        if (stored == null) {
+            stored = ByteBuffer.allocate(size);
+            while (stored.hasRemaining()) {
+                if (channel.read(stored, offset + stored.position()) < 0) throw new EOFException("block at " + offset + " is cut short in " + fileName);
+            }
+            stored.flip();
+        }
+        ByteBuffer block = blockTrailers ? decode(stored) : stored;
+
+        if (blockCache != null) blockCache.put(id, offset, block);
+        return block;
+    }
+
+    private static BlockCodec codecOf(ByteBuffer stored) {
+        return BlockCodecs.forId(stored.get(stored.limit() - BLOCK_TRAILER_SIZE));
+    }
+
+    private ByteBuffer decode(ByteBuffer stored) {
+        int payload = stored.limit() - BLOCK_TRAILER_SIZE;
+        BlockCodec codec = codecOf(stored);
+        if (codec == BlockCodecs.NONE) return stored.slice(0, payload);
+
+        long start = System.nanoTime();
+        byte[] raw = new byte[stored.getInt(payload + 1)];
+        codec.decompress(stored.slice(0, payload), raw);
+        CompressionStats stats = compressionStats;
+        if (stats != null) stats.read(raw.length, System.nanoTime() - start);
+        return ByteBuffer.wrap(raw);
+    }
+
+    private void open() {
+        if (opened) return;
+        synchronized (this) {
+            if (!opened) readFooter();
+        }
+    }
+
+    private void readFooter() {
+        try {
+            FileChannel fileChannel = FileChannel.open(Path.of(fileName), StandardOpenOption.READ);
+            long fileSize = fileChannel.size();
+            boolean index = false;
+
+            if (fileSize >= FOOTER_SIZE) {
+                ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+                fileChannel.read(footer, fileSize - FOOTER_SIZE);
+                footer.flip();
+                long indexOffset = footer.getLong();
+                int indexSize = footer.getInt();
+                int version = footer.getInt();
+                if (footer.getLong() == MAGIC) {
+                    if (version < NO_PROPERTIES_VERSION || version > FORMAT_VERSION) throw new IllegalStateException("unknown sstable version " + version + " in " + fileName);
+                    ByteBuffer indexBytes = ByteBuffer.allocate(indexSize);
+                    fileChannel.read(indexBytes, indexOffset);
+                    readIndex(indexBytes.flip());
+                    if (version >= UNCOMPRESSED_VERSION) properties = readProperties(indexBytes);
+                    blockTrailers = version == FORMAT_VERSION;
+                    index = true;
+                }
+            }
+
+            blockFormat = index;
+
+            if (readMode == ReadMode.MMAP && fileSize <= Integer.MAX_VALUE) {
+                mapped = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+                fileChannel.close();
+            } else {
+                if (readMode == ReadMode.MMAP) log.info("{} is too big for a single mapping, using positional reads", fileName);
+                channel = fileChannel;
+            }
+            opened = true;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void readIndex(ByteBuffer indexBytes) {
+        int count = indexBytes.getInt();
+        blockOffsets = new long[count];
+        blockSizes = new int[count];
+        for (int i = 0; i < count; i++) {
+            byte[] key = new byte[indexBytes.getInt()];
+            indexBytes.get(key);
+            if (i == 0) firstBlockKey = key;
+            blockOffsets[i] = indexBytes.getLong();
+            blockSizes[i] = indexBytes.getInt();
+        }
+    }
+
+    private static Properties readProperties(ByteBuffer bytes) {
+        long entryCount = bytes.getLong();
+        long tombstoneCount = bytes.getLong();
+        long minSequence = bytes.getLong();
+        long maxSequence = bytes.getLong();
+        byte[] firstKey = readKey(bytes);
+        byte[] lastKey = readKey(bytes);
+        return new Properties(firstKey, lastKey, entryCount, tombstoneCount, minSequence, maxSequence);
+    }
+
+    // -1 for no key, an empty table
+    private static byte[] readKey(ByteBuffer bytes) {
+        int length = bytes.getInt();
+        if (length < 0) return null;
+        byte[] key = new byte[length];
+        bytes.get(key);
+        return key;
+    }
+
+    public synchronized void close() {
+        try {
+            if (channel != null) channel.close();
+            // a mapping is otherwise only released when the buffer is garbage collected, which keeps the
+            // file of a deleted table around on disk
+            if (mapped != null) DirectBuffers.free(mapped);
+        } catch (Exception e) {
+            log.error("error closing sstable {}", fileName, e);
+        }
+        channel = null;
+        mapped = null;
+    }
+
     public class SSTableIterator implements Iterator<KeyValuePair>, AutoCloseable {
 
+        // old record format
         RandomAccessFile fis;
 
-        public SSTableIterator() throws FileNotFoundException { fis = new RandomAccessFile(fileName, "r"); }
+        // block format
+        int nextBlock = 0;
+        Block.BlockIterator blockIterator;
+
+        public SSTableIterator() throws IOException {
+            open();
+            if (!blockFormat) fis = new RandomAccessFile(fileName, "r");
+        }
+
         public SSTableIterator(int offset) throws IOException {
+            open();
+            if (blockFormat) throw new IllegalStateException("offset iteration is only supported for the record format");
             fis = new RandomAccessFile(fileName, "r");
             fis.seek(offset);
         }
 
+        public SSTableIterator(SparseIndex.Entry start) throws IOException {
+            open();
+            if (!blockFormat) {
+                fis = new RandomAccessFile(fileName, "r");
+                fis.seek(start.offset());
+                return;
+            }
+
+            // blocks are laid out in index order, so the index is sorted by offset as well
+            int block = Arrays.binarySearch(blockOffsets, start.offset());
+            if (block >= 0) {
+                nextBlock = block;
+                return;
+            }
+            throw new IllegalArgumentException("no block at offset " + start.offset() + " in " + fileName);
+        }
+
         @Override
         public boolean hasNext() {
             try {
-                return fis.getFilePointer() < fis.length();
+                if (fis != null) return fis.getFilePointer() < fis.length();
+
+                while (blockIterator == null || !blockIterator.hasNext()) {
+                    if (nextBlock >= blockOffsets.length) return false;
+                    blockIterator = new Block(readBlock(blockOffsets[nextBlock], blockSizes[nextBlock])).iterator();
+                    nextBlock++;
+                }
+                return true;
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
@@ -74,6 +549,15 @@ public class SSTable {
 
         @Override
         public KeyValuePair next() {
+            return nextEntry().toKeyValuePair();
+        }
+
+        public MergeEntry nextEntry() {
+            if (fis == null) {
+                if (!hasNext()) throw new NoSuchElementException();
+                return blockIterator.nextEntry();
+            }
+
             try {
                 byte[] keyLenBytes = new byte[4];
                 fis.read(keyLenBytes);
@@ -81,34 +565,63 @@ public class SSTable {
                 fis.read(valLenBytes);
                 byte[] keybytes = new byte[byteArrayToInt(keyLenBytes)];
                 fis.read(keybytes);
-                String value = "";
-                boolean isDeleted = true;
-                if (byteArrayToInt(valLenBytes) != 0) {
-                    byte[] valueBytes = new byte[byteArrayToInt(valLenBytes)];
-                    fis.read(valueBytes);
-                    value = new String(valueBytes);
-                    isDeleted = false;
-                }
-                return new KeyValuePair(
-                        new String(keybytes),
-                        value,
-                        isDeleted
-                );
+                byte[] valueBytes = new byte[byteArrayToInt(valLenBytes)];
+                fis.read(valueBytes);
+                return new MergeEntry(keybytes, valueBytes, 0);
             } catch (Exception e) {
                 throw new RuntimeException(e);
             }
         }
 
         @Override
-        public void close() throws Exception { fis.close(); }
+        public void close() throws Exception { if (fis != null) fis.close(); }
+    }
+
+    public static class EntryIterator implements Iterator<MergeEntry>, AutoCloseable {
+
+        private final SSTableIterator itr;
+
+        private EntryIterator(SSTableIterator itr) { this.itr = itr; }
+
+        @Override
+        public boolean hasNext() { return itr.hasNext(); }
+
+        @Override
+        public MergeEntry next() { return itr.nextEntry(); }
+
+        @Override
+        public void close() {
+            try {
+                itr.close();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
     }
 
     public class SSTableWriter implements AutoCloseable {
 
         BufferedOutputStream bos;
+        SparseIndex.SparseIndexWriter sparseIndexWriter;
+        final int blockSize;
+        final BlockCodec codec;
+        final CompressionStats stats;
+        Block.BlockBuilder blockBuilder = new Block.BlockBuilder();
+        List<SparseIndex.Entry> index = new ArrayList<>();
+        long offset = 0;
+        byte[] tableFirstKey;
+        byte[] tableLastKey;
+        long entryCount = 0;
+        long tombstoneCount = 0;
+        long minSequence = Long.MAX_VALUE;
+        long maxSequence = 0;
 
-        public SSTableWriter() {
+        public SSTableWriter(SparseIndex.SparseIndexWriter sparseIndexWriter, int blockSize, BlockCodec codec, CompressionStats stats) {
             try {
+                this.sparseIndexWriter = sparseIndexWriter;
+                this.blockSize = blockSize;
+                this.codec = codec;
+                this.stats = stats;
                 bos = new BufferedOutputStream(new FileOutputStream(fileName));
             } catch (Exception e) {
                 throw new RuntimeException(e);
@@ -116,27 +629,125 @@ public class SSTable {
         }
 
         public void write(KeyValuePair kvp) {
+            write(kvp.key(), kvp.value());
+        }
+
+        public void write(byte[] key, byte[] value) {
+            write(key, value, 0);
+        }
+
+        /**
+         * @param sequence of the write of the entry, 0 if it is not known
+         */
+        public void write(byte[] key, byte[] value, long sequence) {
+            if (tableFirstKey == null) tableFirstKey = key;
+            tableLastKey = key;
+            entryCount++;
+            if (value.length == 0) tombstoneCount++;
+            if (sequence > 0) coverSequences(sequence, sequence);
+            blockBuilder.add(key, value);
+            if (blockBuilder.estimatedSize() >= blockSize) finishBlock();
+        }
+
+        /**
+         * Widens the sequence range of the table, for entries written without their sequence.
+         */
+        public void coverSequences(long min, long max) {
+            if (max <= 0) return;
+            minSequence = Math.min(minSequence, min);
+            maxSequence = Math.max(maxSequence, max);
+        }
+
+        /**
+         * Bytes the table will take on disk so far, blocks written plus the block being built.
+         */
+        public long estimatedSize() {
+            return offset + blockBuilder.estimatedSize();
+        }
+
+        private void finishBlock() {
             try {
-                bos.write(intToByteArray(kvp.key().getBytes().length));
-                bos.write(intToByteArray(kvp.value().getBytes().length));
-                bos.write(kvp.key().getBytes());
-                bos.write(kvp.value().getBytes());
-            } catch (Exception e) {
-                throw new RuntimeException();
+                byte[] firstKey = blockBuilder.firstKey();
+                byte[] block = encode(blockBuilder.finish());
+                bos.write(block);
+
+                SparseIndex.Entry entry = new SparseIndex.Entry(firstKey, offset, block.length);
+                index.add(entry);
+                sparseIndexWriter.write(entry);
+                offset += block.length;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
             }
         }
 
+        private byte[] encode(byte[] raw) {
+            BlockCodec used = codec;
+            byte[] payload = raw;
+            long nanos = 0;
+            if (codec != BlockCodecs.NONE) {
+                long start = System.nanoTime();
+                byte[] compressed = codec.compress(raw);
+                nanos = System.nanoTime() - start;
+                if (compressed.length <= raw.length - raw.length / 8) payload = compressed;
+                else used = BlockCodecs.NONE;
+            }
+            if (stats != null) stats.written(raw.length, payload.length + BLOCK_TRAILER_SIZE, nanos);
+            return ByteBuffer.allocate(payload.length + BLOCK_TRAILER_SIZE)
+                    .put(payload)
+                    .put(used.id())
+                    .putInt(raw.length)
+                    .array();
+        }
+
         @Override
         public void close() {
             try {
+                if (!blockBuilder.isEmpty()) finishBlock();
+
+                ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+                DataOutputStream indexOut = new DataOutputStream(indexBytes);
+                indexOut.writeInt(index.size());
+                for (SparseIndex.Entry entry : index) {
+                    indexOut.writeInt(entry.key().length);
+                    indexOut.write(entry.key());
+                    indexOut.writeLong(entry.offset());
+                    indexOut.writeInt(entry.size());
+                }
+                Properties written = new Properties(tableFirstKey, tableLastKey, entryCount, tombstoneCount,
+                        maxSequence == 0 ? 0 : minSequence, maxSequence);
+                indexOut.writeLong(written.entryCount());
+                indexOut.writeLong(written.tombstoneCount());
+                indexOut.writeLong(written.minSequence());
+                indexOut.writeLong(written.maxSequence());
+                writeKey(indexOut, written.firstKey());
+                writeKey(indexOut, written.lastKey());
+                bos.write(indexBytes.toByteArray());
+
+                DataOutputStream footer = new DataOutputStream(bos);
+                footer.writeLong(offset);
+                footer.writeInt(indexBytes.size());
+                footer.writeInt(FORMAT_VERSION);
+                footer.writeLong(MAGIC);
+
                 bos.flush();
                 bos.close();
+                properties = written;
+                setKeyRange(tableFirstKey, tableLastKey);
             } catch (Exception e) {
                 throw new RuntimeException(e);
             }
         }
     }
 
+    private static void writeKey(DataOutputStream out, byte[] key) throws IOException {
+        if (key == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(key.length);
+        out.write(key);
+    }
+
     private static int byteArrayToInt(byte[] bytes) {
         return ((bytes[0] & 0xFF) << 24) |
                 ((bytes[1] & 0xFF) << 16) |
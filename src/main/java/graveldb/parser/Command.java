@@ -3,5 +3,8 @@ package graveldb.parser;
 public enum Command {
     SET,
     GET,
-    DEL
+    DEL,
+    MSET,
+    MGET,
+    SCAN
 }
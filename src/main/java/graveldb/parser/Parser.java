@@ -1,36 +1,95 @@
 package graveldb.parser;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * Turns the arguments of a command into a {@link Request}. Keys and values stay the bytes the client
+ * sent, only the command name, SCAN options and numbers are read as text.
+ */
 public class Parser {
 
     // TODO : Enumify the Command token
-    public Request parse(List<String> tokens) throws IllegalArgumentException {
+    public Request parse(List<byte[]> tokens) throws IllegalArgumentException {
         if (tokens.isEmpty()) {
             throw new IllegalArgumentException("Invalid command: No tokens found");
         }
 
-        Command command = Command.valueOf(tokens.get(0).toUpperCase());
+        String name = text(tokens.get(0));
+        Command command;
+        try {
+            command = Command.valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("unknown command '" + name + "'");
+        }
+        List<byte[]> args = tokens.subList(1, tokens.size());
         return switch (command) {
             case Command.SET -> {
-                if (tokens.size() != 3) {
+                if (args.size() != 2) {
                     throw new IllegalArgumentException("SET command requires exactly 2 arguments");
                 }
-                yield new Request(Command.SET, tokens.get(1), tokens.get(2));
+                yield new Request(Command.SET, List.of(args.get(0)), List.of(args.get(1)));
             }
             case Command.GET -> {
-                if (tokens.size() != 2) {
+                if (args.size() != 1) {
                     throw new IllegalArgumentException("GET command requires exactly 1 argument");
                 }
-                yield new Request(Command.GET, tokens.get(1), null);
+                yield new Request(Command.GET, List.of(args.get(0)), List.of());
             }
             case Command.DEL -> {
-                if (tokens.size() != 2) {
-                    throw new IllegalArgumentException("DEL command requires exactly 1 argument");
+                if (args.isEmpty()) {
+                    throw new IllegalArgumentException("DEL command requires at least 1 argument");
+                }
+                yield new Request(Command.DEL, List.copyOf(args), List.of());
+            }
+            case Command.MSET -> {
+                if (args.isEmpty() || args.size() % 2 != 0) {
+                    throw new IllegalArgumentException("MSET command requires key value pairs");
+                }
+                List<byte[]> keys = new ArrayList<>(args.size() / 2);
+                List<byte[]> values = new ArrayList<>(args.size() / 2);
+                for (int i = 0; i < args.size(); i += 2) {
+                    keys.add(args.get(i));
+                    values.add(args.get(i + 1));
                 }
-                yield new Request(Command.DEL, tokens.get(1), null);
+                yield new Request(Command.MSET, keys, values);
+            }
+            case Command.MGET -> {
+                if (args.isEmpty()) {
+                    throw new IllegalArgumentException("MGET command requires at least 1 argument");
+                }
+                yield new Request(Command.MGET, List.copyOf(args), List.of());
+            }
+            case Command.SCAN -> {
+                if (args.isEmpty() || args.size() % 2 != 1) {
+                    throw new IllegalArgumentException("SCAN command requires a cursor and option value pairs");
+                }
+                String cursor = text(args.get(0));
+                if (!cursor.equals("0") && !cursor.matches("([0-9a-f]{2})+")) {
+                    throw new IllegalArgumentException("invalid cursor");
+                }
+                byte[] pattern = {'*'};
+                String count = "10";
+                for (int i = 1; i < args.size(); i += 2) {
+                    String option = text(args.get(i));
+                    switch (option.toUpperCase()) {
+                        case "MATCH" -> pattern = args.get(i + 1);
+                        case "COUNT" -> {
+                            count = text(args.get(i + 1));
+                            if (!count.matches("[0-9]{1,9}") || Integer.parseInt(count) < 1) {
+                                throw new IllegalArgumentException("COUNT must be a positive integer");
+                            }
+                        }
+                        default -> throw new IllegalArgumentException("unknown SCAN option '" + option + "'");
+                    }
+                }
+                yield new Request(Command.SCAN, List.of(args.get(0)), List.of(pattern, count.getBytes(StandardCharsets.US_ASCII)));
             }
         };
     }
-}
 
+    private static String text(byte[] token) {
+        return new String(token, StandardCharsets.UTF_8);
+    }
+}
@@ -1,3 +1,14 @@
 package graveldb.parser;
 
-public record Request(Command command, String key, String value) { }
+import java.util.List;
+
+/**
+ * A parsed command, values line up with keys for the commands that carry them. For SCAN the key is
+ * the cursor and the values are the MATCH pattern and the COUNT.
+ */
+public record Request(Command command, List<byte[]> keys, List<byte[]> values) {
+
+    public byte[] key() { return keys.get(0); }
+
+    public byte[] value() { return values.isEmpty() ? null : values.get(0); }
+}
@@ -0,0 +1,20 @@
+package graveldb.util;
+
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+
+public class DirectBuffers {
+
+    private DirectBuffers() {}
+
+    /**
+     * Releases the memory of a direct or mapped buffer right away, otherwise that only happens when
+     * the buffer is garbage collected. The buffer must not be used afterwards.
+     */
+    public static void free(ByteBuffer buffer) throws ReflectiveOperationException {
+        Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+        Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+        theUnsafe.setAccessible(true);
+        unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(theUnsafe.get(null), buffer);
+    }
+}
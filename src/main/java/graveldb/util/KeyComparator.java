@@ -0,0 +1,26 @@
+package graveldb.util;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * The order of keys in the whole tree: unsigned lexicographic order of their bytes. For keys given as
+ * Strings that is the order of their UTF-8 encoding.
+ */
+public final class KeyComparator {
+
+    public static final Comparator<byte[]> BYTE_ORDER = KeyComparator::compare;
+
+    private KeyComparator() { }
+
+    public static int compare(byte[] a, byte[] b) {
+        return Arrays.compareUnsigned(a, b);
+    }
+
+    /**
+     * Compares the key in {@code a[aFrom, aTo)} with b, for keys stored back to back in one array.
+     */
+    public static int compare(byte[] a, int aFrom, int aTo, byte[] b) {
+        return Arrays.compareUnsigned(a, aFrom, aTo, b, 0, b.length);
+    }
+}
@@ -0,0 +1,13 @@
+package graveldb.wal;
+
+/**
+ * How hard a WAL commit tries to reach the disk before the writer is acknowledged.
+ */
+public enum WalDurability {
+    /** batch is written to the file, the OS decides when it hits the disk */
+    NONE,
+    /** every committed batch is followed by an fsync */
+    BATCH_FSYNC,
+    /** batches are written right away, a background task fsyncs the log on a fixed interval */
+    INTERVAL_FSYNC
+}
@@ -0,0 +1,30 @@
+package graveldb.wal;
+
+import graveldb.parser.Command;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * A single decoded WAL entry, value is null for DEL. Keys and values are raw bytes, records are equal
+ * when their contents are.
+ */
+public record WalRecord(long sequence, Command command, byte[] key, byte[] value) {
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof WalRecord other && sequence == other.sequence && command == other.command
+                && Arrays.equals(key, other.key) && Arrays.equals(value, other.value);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(sequence, command, Arrays.hashCode(key), Arrays.hashCode(value));
+    }
+
+    @Override
+    public String toString() {
+        return "WalRecord[sequence=" + sequence + ", command=" + command + ", key=" + Arrays.toString(key)
+                + ", value=" + Arrays.toString(value) + "]";
+    }
+}
@@ -1,16 +1,18 @@
 package graveldb.wal;
 
-import graveldb.parser.Request;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.*;
 
-public class WalRecovery implements Iterable<Request> {
+/**
+ * Finds the WAL segments left behind by the previous run. Has to run before the tree opens its own
+ * segment, every non empty file in the WAL directory belongs to a memtable that was never flushed.
+ */
+public class WalRecovery {
 
     private static final Logger log = LoggerFactory.getLogger(WalRecovery.class);
 
@@ -34,64 +36,21 @@ public class WalRecovery implements Iterable<Request> {
         File directory = new File(WAL_DIR);
         File[] files = directory.listFiles();
         if (files == null) return;
-
-        log.info("{} sstables found in the directory", files.length);
-
+        // text segments have no sequences of their own, their replay order is the order they were written in
         Arrays.sort(files, Comparator.comparingLong(File::lastModified));
 
-        for (int i=0; i<files.length-1; i++) {
-            walFiles.addLast(new WriteAheadLog(WAL_DIR + files[i].getName()));
+        for (File file : files) {
+            // segments set aside as unreadable stay where they are for a person to look at
+            if (!WriteAheadLog.isSegment(file.getName())) continue;
+            WriteAheadLog walFile = new WriteAheadLog(WAL_DIR + file.getName());
+            if (file.length() == 0) walFile.delete();
+            else walFiles.addLast(walFile);
         }
-    }
 
-    @Override
-    public Iterator<Request> iterator() {
-        return new WalFilesIterator();
+        log.info("{} wal segments found for recovery", walFiles.size());
     }
 
-    public void deleteFiles() {
-        boolean skipFirst = true;
-        for (Iterator<WriteAheadLog> it = walFiles.descendingIterator(); it.hasNext(); ) {
-            if (skipFirst) {
-                skipFirst = false;
-                continue;
-            }
-            it.next().delete();
-        }
-    }
-
-    public class WalFilesIterator implements Iterator<Request> {
-
-        Iterator<WriteAheadLog> walIteratorIterator;
-        Iterator<Request> curWalItr;
-
-        public WalFilesIterator() {
-            this.walIteratorIterator = walFiles.iterator();
-            this.curWalItr = null;
-        }
-
-        @Override
-        public boolean hasNext() {
-            if (curWalItr == null) {
-                if (walIteratorIterator.hasNext()) {
-                    curWalItr = walIteratorIterator.next().iterator();
-                    return curWalItr.hasNext();
-                } else return false;
-            } else {
-                if (curWalItr.hasNext()) {
-                    return true;
-                } else {
-                    if (walIteratorIterator.hasNext()) {
-                        curWalItr = walIteratorIterator.next().iterator();
-                        return curWalItr.hasNext();
-                    } else return false;
-                }
-            }
-        }
-
-        @Override
-        public Request next() {
-            return curWalItr.next();
-        }
+    public List<WriteAheadLog> getSegments() {
+        return walFiles;
     }
 }
@@ -1,30 +1,86 @@
 package graveldb.wal;
 
 import graveldb.parser.Command;
-import graveldb.parser.Request;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
 
-public class WriteAheadLog implements Iterable<Request> {
+/**
+ * One WAL segment. Appends from concurrent writers are collected in a shared pending buffer and
+ * written to a single open {@link FileChannel} as one batch (group commit). A writer enqueues its
+ * record with {@link #append} and then waits on the returned commit future with {@link #commit}.
+ * Whoever gets the commit lock first writes everything that is pending at that moment, so the
+ * writers that queued up behind it are usually acknowledged by the same write and fsync.
+ *
+ * <p>Records are binary and length prefixed:
+ * {@code <body length:int><crc32c of body:int><sequence:long><op:byte><key length:int><key>
+ * <value length:int><value>}, a DEL carries a value length of -1. A batch is a single record,
+ * {@code <sequence of the first entry><op=batch><entry count:int>} followed by
+ * {@code <op><key length><key><value length><value>} for every entry, the entries get consecutive
+ * sequences and the checksum makes the batch all or nothing. Reading stops at the first record that
+ * is cut short or fails its checksum, which is what a crash in the middle of a batch write leaves
+ * behind.
+ *
+ * <p>Segments written before the binary format hold {@code SET <key> <value>\n} and {@code DEL <key>\n}
+ * lines. They are told apart by their first bytes, which can not start a binary record (read as a body
+ * length they are far beyond {@link #MAX_RECORD_SIZE}), and replayed with consecutive sequences from 1.
+ * A line that can not be parsed fails the replay instead of being skipped.
+ */
+public class WriteAheadLog implements Iterable<WalRecord> {
 
     private static final Logger log = LoggerFactory.getLogger(WriteAheadLog.class);
 
     private static final String WAL_DIR = "./waldata/";
     private static final String FILE_POSTFIX = "_wal.data";
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 512 * 1024 * 1024;
+    private static final byte OP_SET = 1;
+    private static final byte OP_DEL = 2;
+    private static final byte OP_BATCH = 3;
+    private static final byte[] LEGACY_SET = "SET ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LEGACY_DEL = "DEL ".getBytes(StandardCharsets.US_ASCII);
+    private static final String UNREADABLE_POSTFIX = ".unreadable";
 
     private final Path walFile;
+    private final WalDurability durability;
+
+    private FileChannel channel;
+    private final ReentrantLock commitLock = new ReentrantLock();
+    private volatile boolean unsynced = false;
+
+    // guarded by this
+    private ByteBuffer pending = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private CompletableFuture<Void> pendingCommit = new CompletableFuture<>();
+
+    // guarded by commitLock, swapped with pending on every batch
+    private ByteBuffer spare = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
 
     public WriteAheadLog() {
+        this(WalDurability.NONE);
+    }
+
+    public WriteAheadLog(WalDurability durability) {
         this.walFile = Paths.get(WAL_DIR + UUID.randomUUID() + FILE_POSTFIX);
+        this.durability = durability;
         try {
             Files.createDirectories(walFile.getParent());
-            if (!Files.exists(walFile)) Files.createFile(walFile);
+            channel = FileChannel.open(walFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -32,14 +88,154 @@ public class WriteAheadLog implements Iterable<Request> {
 
     public WriteAheadLog(String fileName) {
         this.walFile = Paths.get(fileName);
+        this.durability = WalDurability.NONE;
+    }
+
+    /**
+     * Adds the record to the pending batch and returns the future that completes once the batch
+     * is written (and fsynced when the durability mode asks for it). Only a short critical section,
+     * the actual IO happens in {@link #commit}.
+     */
+    public CompletableFuture<Void> append(long sequence, Command command, byte[] key, byte[] value) {
+        ByteBuffer record = startRecord(8 + entrySize(key, value), sequence);
+        putEntry(record, command, key, value);
+        return enqueue(finishRecord(record));
+    }
+
+    /**
+     * Logs the records as one batch record, their sequences have to be consecutive. On replay either
+     * all of them come back or none.
+     */
+    public CompletableFuture<Void> append(List<WalRecord> records) {
+        int bodyLength = 8 + 1 + 4;
+        for (WalRecord walRecord : records) bodyLength += entrySize(walRecord.key(), walRecord.value());
+
+        ByteBuffer record = startRecord(bodyLength, records.get(0).sequence());
+        record.put(OP_BATCH);
+        record.putInt(records.size());
+        for (WalRecord walRecord : records) putEntry(record, walRecord.command(), walRecord.key(), walRecord.value());
+        return enqueue(finishRecord(record));
+    }
+
+    private CompletableFuture<Void> enqueue(byte[] recordBytes) {
+        synchronized (this) {
+            if (pending.remaining() < recordBytes.length) pending = grow(pending, recordBytes.length);
+            pending.put(recordBytes);
+            return pendingCommit;
+        }
+    }
+
+    private static int entrySize(byte[] keyBytes, byte[] valueBytes) {
+        return 1 + 4 + keyBytes.length + 4 + (valueBytes == null ? 0 : valueBytes.length);
+    }
+
+    private static ByteBuffer startRecord(int bodyLength, long sequence) {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + bodyLength);
+        record.putInt(bodyLength);
+        record.putInt(0);
+        record.putLong(sequence);
+        return record;
+    }
+
+    private static void putEntry(ByteBuffer record, Command command, byte[] keyBytes, byte[] valueBytes) {
+        record.put(switch (command) {
+            case SET -> OP_SET;
+            case DEL -> OP_DEL;
+            default -> throw new IllegalArgumentException("command " + command + " can not be logged");
+        });
+        record.putInt(keyBytes.length);
+        record.put(keyBytes);
+        if (valueBytes == null) {
+            record.putInt(-1);
+        } else {
+            record.putInt(valueBytes.length);
+            record.put(valueBytes);
+        }
+    }
+
+    private static byte[] finishRecord(ByteBuffer record) {
+        int bodyLength = record.capacity() - RECORD_HEADER_SIZE;
+        CRC32C crc = new CRC32C();
+        crc.update(record.array(), RECORD_HEADER_SIZE, bodyLength);
+        record.putInt(4, (int) crc.getValue());
+        return record.array();
     }
 
-    public synchronized void append(String operation, String key, String value) {
-        try (FileWriter writer = new FileWriter(walFile.toFile(), true)) {
-            String entry = operation + " " + key + (value != null ? " " + value : "") + "\n";
-            writer.write(entry);
+    /**
+     * Blocks until the given commit is durable. If no one is writing a batch the caller becomes the
+     * leader and writes everything pending, otherwise it waits for the current leader and checks again.
+     */
+    public void commit(CompletableFuture<Void> commit) {
+        while (!commit.isDone()) {
+            commitLock.lock();
+            try {
+                if (!commit.isDone()) writeBatch();
+            } finally {
+                commitLock.unlock();
+            }
+        }
+        commit.join();
+    }
+
+    private void writeBatch() {
+        ByteBuffer batch;
+        CompletableFuture<Void> batchCommit;
+        synchronized (this) {
+            batch = pending;
+            batchCommit = pendingCommit;
+            pending = spare;
+            pendingCommit = new CompletableFuture<>();
+        }
+
+        try {
+            if (channel == null) channel = FileChannel.open(walFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            batch.flip();
+            while (batch.hasRemaining()) channel.write(batch);
+            if (durability == WalDurability.BATCH_FSYNC) channel.force(false);
+            else if (durability == WalDurability.INTERVAL_FSYNC) unsynced = true;
+            batchCommit.complete(null);
+        } catch (Exception e) {
+            log.error("error writing wal batch to {}", walFile, e);
+            batchCommit.completeExceptionally(e);
+        } finally {
+            batch.clear();
+            spare = batch;
+        }
+    }
+
+    /**
+     * fsync whatever was written since the last sync, used by the interval durability mode.
+     */
+    public void sync() {
+        if (!unsynced) return;
+        commitLock.lock();
+        try {
+            unsynced = false;
+            if (channel != null && channel.isOpen()) channel.force(false);
+        } catch (Exception e) {
+            log.error("error syncing wal {}", walFile, e);
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /**
+     * Writes out anything still pending, syncs it unless durability is NONE and closes the channel.
+     */
+    public void close() {
+        commitLock.lock();
+        try {
+            boolean hasPending;
+            synchronized (this) { hasPending = pending.position() > 0; }
+            if (hasPending) writeBatch();
+            if (channel != null && channel.isOpen()) {
+                if (durability != WalDurability.NONE) channel.force(false);
+                channel.close();
+            }
         } catch (Exception e) {
             throw new RuntimeException(e);
+        } finally {
+            commitLock.unlock();
         }
     }
 
@@ -51,7 +247,26 @@ public class WriteAheadLog implements Iterable<Request> {
         }
     }
 
-    public synchronized void delete() {
+    /**
+     * Renames a segment that yielded no record out of the way, it is neither replayed again nor lost.
+     */
+    public void setAside() {
+        close();
+        try {
+            Path unreadable = walFile.resolveSibling(walFile.getFileName() + UNREADABLE_POSTFIX);
+            Files.move(walFile, unreadable, StandardCopyOption.ATOMIC_MOVE);
+            log.error("wal {} has no readable record, kept as {}", walFile, unreadable);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static boolean isSegment(String fileName) {
+        return fileName.endsWith(FILE_POSTFIX);
+    }
+
+    public void delete() {
+        close();
         try {
             Files.delete(walFile);
         } catch (Exception e) {
@@ -60,45 +275,206 @@ public class WriteAheadLog implements Iterable<Request> {
 
     }
 
+    private static ByteBuffer grow(ByteBuffer buffer, int needed) {
+        int capacity = buffer.capacity();
+        while (capacity - buffer.position() < needed) capacity *= 2;
+        ByteBuffer bigger = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+
+    public Path getPath() { return walFile; }
+
+    public long getSize() {
+        try {
+            return Files.size(walFile);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     @Override
-    public Iterator<Request> iterator() {
-        return new WALIterator();
+    public WALIterator iterator() {
+        try {
+            return new WALIterator();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
     }
 
-    public class WALIterator implements Iterator<Request> {
+    /**
+     * Streams the records of the segment through a fixed size read buffer, the segment is never
+     * loaded as a whole. Has to be closed if it is not read to the end.
+     */
+    public class WALIterator implements Iterator<WalRecord>, AutoCloseable {
 
-        Iterator<String> iterator;
+        private final FileChannel readChannel;
+        private ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private long recordOffset = 0;
+        private boolean endOfFile = false;
+        private WalRecord nextRecord;
+        // rest of the entries of the batch record read last
+        private final ArrayDeque<WalRecord> batched = new ArrayDeque<>();
+        // text lines of a segment from before the binary format
+        private final boolean legacy;
+        private long legacySequence = 0;
 
-        public WALIterator() {
-            try {
-                List<String> data = Files.readAllLines(walFile);
-                iterator = data.iterator();
-            } catch (Exception e) {
-                throw new RuntimeException(e);
-            }
+        public WALIterator() throws IOException {
+            readChannel = FileChannel.open(walFile, StandardOpenOption.READ);
+            buffer.flip();
+            legacy = fill(4) && (startsWith(LEGACY_SET) || startsWith(LEGACY_DEL));
+            if (legacy) log.info("wal {} is in the text format, replaying its lines", walFile);
+        }
+
+        private boolean startsWith(byte[] prefix) {
+            if (buffer.remaining() < prefix.length) return false;
+            return Arrays.equals(prefix, 0, prefix.length, buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.arrayOffset() + buffer.position() + prefix.length);
         }
 
         @Override
         public boolean hasNext() {
-            return iterator.hasNext();
+            if (nextRecord == null && readChannel.isOpen()) {
+                try {
+                    nextRecord = readRecord();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                if (nextRecord == null) close();
+            }
+            return nextRecord != null;
         }
 
         @Override
-        public Request next() {
-            String[] parts = iterator.next().split(" ");
-            Command command = Command.valueOf(parts[0]);
-            switch (command) {
-                case SET -> {
-                    return new Request(command, parts[1], parts[2]);
-                }
-                case DEL -> {
-                    return new Request(command, parts[1], null);
-                }
-                default -> {
-                    return null;
-                }
+        public WalRecord next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            WalRecord record = nextRecord;
+            nextRecord = null;
+            return record;
+        }
+
+        private WalRecord readRecord() throws IOException {
+            if (legacy) return readLine();
+            if (!batched.isEmpty()) return batched.poll();
+            if (!fill(RECORD_HEADER_SIZE)) return tornTail("truncated record header");
+
+            int bodyLength = buffer.getInt(buffer.position());
+            int checksum = buffer.getInt(buffer.position() + 4);
+            if (bodyLength < 8 + 1 + 4 + 4 || bodyLength > MAX_RECORD_SIZE) return tornTail("invalid record length " + bodyLength);
+            if (!fill(RECORD_HEADER_SIZE + bodyLength)) return tornTail("truncated record body");
+
+            buffer.position(buffer.position() + RECORD_HEADER_SIZE);
+            CRC32C crc = new CRC32C();
+            crc.update(buffer.slice(buffer.position(), bodyLength));
+            if ((int) crc.getValue() != checksum) return tornTail("checksum mismatch");
+
+            long sequence = buffer.getLong();
+            recordOffset += RECORD_HEADER_SIZE + bodyLength;
+            if (buffer.get(buffer.position()) != OP_BATCH) return readEntry(sequence);
+
+            buffer.get();
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) batched.add(readEntry(sequence + i));
+            return batched.poll();
+        }
+
+        private WalRecord readEntry(long sequence) {
+            byte op = buffer.get();
+            byte[] keyBytes = new byte[buffer.getInt()];
+            buffer.get(keyBytes);
+            int valueLength = buffer.getInt();
+            byte[] valueBytes = null;
+            if (valueLength >= 0) {
+                valueBytes = new byte[valueLength];
+                buffer.get(valueBytes);
+            }
+
+            Command command = op == OP_DEL ? Command.DEL : Command.SET;
+            return new WalRecord(sequence, command, keyBytes, valueBytes);
+        }
+
+        /*
+         * The value is the rest of the line, it may hold spaces. The old log wrote every line with a
+         * single write, so only a last line without its newline is a torn tail.
+         */
+        private WalRecord readLine() throws IOException {
+            int end;
+            while ((end = indexOf((byte) '\n')) < 0) {
+                if (!fill(buffer.remaining() + 1)) return tornTail("line without newline");
+            }
+
+            int start = buffer.position();
+            int length = end - start;
+            byte[] line = new byte[length];
+            buffer.get(line).get();
+            recordOffset += length + 1;
+
+            int keyEnd = indexOf(line, (byte) ' ', 4);
+            if (startsWith(line, LEGACY_DEL) && keyEnd < 0 && length > 4) {
+                return new WalRecord(++legacySequence, Command.DEL, Arrays.copyOfRange(line, 4, length), null);
+            }
+            if (startsWith(line, LEGACY_SET) && keyEnd > 4) {
+                return new WalRecord(++legacySequence, Command.SET, Arrays.copyOfRange(line, 4, keyEnd), Arrays.copyOfRange(line, keyEnd + 1, length));
+            }
+            throw new IllegalStateException("unreadable line at offset " + (recordOffset - length - 1) + " of wal " + walFile);
+        }
+
+        // absolute index of the byte in the buffered bytes, -1 if it is not buffered
+        private int indexOf(byte b) {
+            for (int i = buffer.position(); i < buffer.limit(); i++) {
+                if (buffer.get(i) == b) return i;
+            }
+            return -1;
+        }
+
+        private static int indexOf(byte[] bytes, byte b, int from) {
+            for (int i = from; i < bytes.length; i++) {
+                if (bytes[i] == b) return i;
+            }
+            return -1;
+        }
+
+        private static boolean startsWith(byte[] bytes, byte[] prefix) {
+            return bytes.length >= prefix.length && Arrays.equals(prefix, 0, prefix.length, bytes, 0, prefix.length);
+        }
+
+        /*
+         * Makes sure at least the given number of bytes are buffered, reading more of the file if
+         * needed. A record bigger than the read buffer gets a temporary buffer of its own.
+         */
+        private boolean fill(int needed) throws IOException {
+            if (buffer.remaining() >= needed) return true;
+            if (buffer.capacity() < needed) {
+                ByteBuffer bigger = ByteBuffer.allocate(needed);
+                bigger.put(buffer);
+                buffer = bigger;
+            } else {
+                buffer.compact();
+            }
+            while (buffer.position() < needed && !endOfFile) {
+                if (readChannel.read(buffer) < 0) endOfFile = true;
+            }
+            buffer.flip();
+            if (buffer.capacity() > READ_BUFFER_SIZE && buffer.remaining() <= READ_BUFFER_SIZE && needed <= READ_BUFFER_SIZE) {
+                buffer = ByteBuffer.allocate(READ_BUFFER_SIZE).put(buffer).flip();
+            }
+            return buffer.remaining() >= needed;
+        }
+
+        private WalRecord tornTail(String reason) throws IOException {
+            if (buffer.hasRemaining() || !endOfFile) {
+                log.warn("wal {} ends in a torn record at offset {} ({}), ignoring the rest of the segment", walFile, recordOffset, reason);
+            }
+            return null;
+        }
+
+        @Override
+        public void close() {
+            try {
+                readChannel.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
             }
         }
     }
 }
-
@@ -0,0 +1,62 @@
+package graveldb;
+
+import graveldb.datastore.cache.BlockCache;
+import org.junit.jupiter.api.*;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BlockCacheTest {
+
+    private static final int BLOCK_SIZE = 4096;
+
+    @Test
+    void test_cacheHitAndMiss() {
+        BlockCache cache = new BlockCache(16L * 1024 * 1024, true);
+        assertNull(cache.get(1, 0));
+
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+        block.putInt(0, 42);
+        cache.put(1, 0, block);
+
+        ByteBuffer cached = cache.get(1, 0);
+        assertNotNull(cached);
+        assertEquals(42, cached.getInt(0));
+        assertNull(cache.get(2, 0));
+
+        BlockCache.Stats stats = cache.stats();
+        assertEquals(1, stats.hits());
+        assertEquals(2, stats.misses());
+        assertEquals(BLOCK_SIZE, stats.usedBytes());
+    }
+
+    @Test
+    void test_cacheStaysInBudgetAndKeepsHotBlocks() {
+        long capacity = 4L * 1024 * 1024;
+        BlockCache cache = new BlockCache(capacity, false);
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+
+        // hot set well inside the budget, read a few times
+        for (int round = 0; round < 4; round++) {
+            for (long offset = 0; offset < 100; offset++) {
+                if (cache.get(1, offset * BLOCK_SIZE) == null) cache.put(1, offset * BLOCK_SIZE, block);
+            }
+        }
+
+        // one pass over far more blocks than fit
+        for (long offset = 0; offset < 20_000; offset++) {
+            if (cache.get(2, offset * BLOCK_SIZE) == null) cache.put(2, offset * BLOCK_SIZE, block);
+        }
+
+        BlockCache.Stats stats = cache.stats();
+        assertTrue(stats.usedBytes() <= capacity);
+        assertTrue(stats.evictions() > 0);
+
+        int hotHits = 0;
+        for (long offset = 0; offset < 100; offset++) {
+            if (cache.get(1, offset * BLOCK_SIZE) != null) hotHits++;
+        }
+        assertTrue(hotHits > 90, "hot blocks were flushed out by the scan, " + hotHits + " left");
+    }
+}
@@ -0,0 +1,76 @@
+package graveldb;
+
+import graveldb.datastore.compression.BlockCodec;
+import graveldb.datastore.compression.BlockCodecs;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BlockCodecTest {
+
+    private static final List<BlockCodec> CODECS = List.of(BlockCodecs.NONE, BlockCodecs.LZ4, BlockCodecs.DEFLATE);
+
+    @Test
+    void test_roundTrip() {
+        Random random = new Random(42);
+        List<byte[]> inputs = new ArrayList<>();
+        inputs.add(new byte[0]);
+        inputs.add("a".getBytes(StandardCharsets.UTF_8));
+        inputs.add("abcdefghijklm".getBytes(StandardCharsets.UTF_8));
+        // one long overlapping match and literal and match lengths past 15 + 255
+        inputs.add("x".repeat(5000).getBytes(StandardCharsets.UTF_8));
+        byte[] noise = new byte[4096];
+        random.nextBytes(noise);
+        inputs.add(noise);
+        inputs.add(json(200));
+        for (int i = 0; i < 200; i++) {
+            byte[] mixed = new byte[random.nextInt(8192)];
+            for (int j = 0; j < mixed.length; j++) mixed[j] = (byte) (random.nextInt(4) == 0 ? random.nextInt() : 'a' + random.nextInt(3));
+            inputs.add(mixed);
+        }
+
+        for (BlockCodec codec : CODECS) {
+            for (byte[] input : inputs) {
+                byte[] raw = new byte[input.length];
+                codec.decompress(ByteBuffer.wrap(codec.compress(input)), raw);
+                assertArrayEquals(input, raw, codec.name() + " of " + input.length + " bytes");
+            }
+        }
+    }
+
+    @Test
+    void test_compressesRepetitiveValues() {
+        byte[] input = json(100);
+        int lz4 = BlockCodecs.LZ4.compress(input).length;
+        int deflate = BlockCodecs.DEFLATE.compress(input).length;
+        assertTrue(lz4 < input.length / 3, "lz4 " + lz4 + " of " + input.length);
+        assertTrue(deflate < lz4, "deflate " + deflate + " against lz4 " + lz4);
+    }
+
+    @Test
+    void test_corruptBlockIsRejected() {
+        byte[] compressed = BlockCodecs.LZ4.compress(json(10));
+        assertThrows(IllegalStateException.class, () -> BlockCodecs.LZ4.decompress(ByteBuffer.wrap(compressed), new byte[5]));
+        assertThrows(IllegalStateException.class, () -> BlockCodecs.forId((byte) 99));
+    }
+
+    @Test
+    void test_codecsByName() {
+        for (BlockCodec codec : CODECS) assertSame(codec, BlockCodecs.forName(codec.name()));
+        assertThrows(IllegalArgumentException.class, () -> BlockCodecs.forName("zstd"));
+    }
+
+    private static byte[] json(int records) {
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; i < records; i++) {
+            json.append("{\"id\":").append(i).append(",\"name\":\"user ").append(i).append("\",\"active\":").append(i % 2 == 0).append("}");
+        }
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
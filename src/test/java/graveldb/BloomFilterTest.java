@@ -0,0 +1,115 @@
+package graveldb;
+
+import graveldb.datastore.bloomfilter.BloomFilter;
+import graveldb.datastore.cache.MetadataCache;
+import org.junit.jupiter.api.*;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BloomFilterTest {
+
+    private static final String TEST_DIR = "./bloomtest/";
+
+    @Test
+    void test_sizedFromKeyCount() throws Exception {
+        BloomFilter small = writeFilter(TEST_DIR + "small_filter.data", 1000, 10);
+        BloomFilter large = writeFilter(TEST_DIR + "large_filter.data", 100000, 10);
+        assertEquals(1000, small.keyCount());
+        // rounded up to whole 64 byte blocks
+        assertTrue(small.sizeInBytes() <= 1000 * 10 / 8 + 64, "small filter takes " + small.sizeInBytes());
+        assertTrue(large.sizeInBytes() >= 100000 * 10 / 8, "large filter takes " + large.sizeInBytes());
+
+        // read back from the file, no false negatives and about 1% false positives
+        BloomFilter reopened = new BloomFilter(TEST_DIR + "large_filter.data");
+        assertEquals(0, reopened.sizeInBytes());
+        for (int i = 0; i < 100000; i++) assertTrue(reopened.check(key(i)));
+        assertEquals(large.sizeInBytes(), reopened.sizeInBytes());
+        int falsePositives = 0;
+        for (int i = 100000; i < 200000; i++) if (reopened.check(key(i))) falsePositives++;
+        assertTrue(falsePositives < 2000, falsePositives + " false positives");
+    }
+
+    @Test
+    void test_moreBitsPerKeyFewerFalsePositives() throws Exception {
+        BloomFilter coarse = writeFilter(TEST_DIR + "coarse_filter.data", 20000, 4);
+        BloomFilter fine = writeFilter(TEST_DIR + "fine_filter.data", 20000, 16);
+        int coarseHits = 0;
+        int fineHits = 0;
+        for (int i = 20000; i < 60000; i++) {
+            if (coarse.check(key(i))) coarseHits++;
+            if (fine.check(key(i))) fineHits++;
+        }
+        assertTrue(fineHits < coarseHits / 10, fineHits + " against " + coarseHits);
+    }
+
+    @Test
+    void test_metadataCacheUnloadsUnpinnedFilters() throws Exception {
+        for (int f = 0; f < 4; f++) writeFilter(TEST_DIR + "cached_" + f + ".data", 10000, 10);
+
+        // room for about two of the four filters
+        MetadataCache cache = new MetadataCache(2 * 10000 * 10 / 8 + 256);
+        BloomFilter pinned = new BloomFilter(TEST_DIR + "cached_0.data", cache);
+        pinned.setPinned(true);
+        List<BloomFilter> filters = new ArrayList<>(List.of(pinned));
+        for (int f = 1; f < 4; f++) filters.add(new BloomFilter(TEST_DIR + "cached_" + f + ".data", cache));
+
+        for (BloomFilter filter : filters) assertTrue(filter.check(key(42)));
+        MetadataCache.Stats stats = cache.stats();
+        assertEquals(4, stats.loads());
+        assertEquals(2, stats.evictions());
+        assertTrue(stats.usedBytes() <= stats.capacityBytes(), stats.toString());
+        assertTrue(pinned.sizeInBytes() > 0);
+        // the least recently used ones were dropped and are read again on their next check
+        assertEquals(0, filters.get(1).sizeInBytes());
+        assertEquals(0, filters.get(2).sizeInBytes());
+        assertTrue(filters.get(1).check(key(42)));
+        assertEquals(5, cache.stats().loads());
+        assertTrue(pinned.sizeInBytes() > 0);
+    }
+
+    @Test
+    void test_blocksAreCacheLineAligned() throws Exception {
+        BloomFilter written = writeFilter(TEST_DIR + "aligned_filter.data", 5000, 10);
+        assertEquals(0, written.bitsAlignmentOffset());
+        BloomFilter reopened = new BloomFilter(TEST_DIR + "aligned_filter.data");
+        assertTrue(reopened.check(key(1)));
+        assertEquals(0, reopened.bitsAlignmentOffset());
+
+        // the blocked layout with a 24 byte header is copied to aligned memory when it is loaded
+        byte[] aligned = Files.readAllBytes(Path.of(TEST_DIR + "aligned_filter.data"));
+        ByteBuffer old = ByteBuffer.allocate(aligned.length - 64 + 24)
+                .putInt(0x47424C42)
+                .put(aligned, 4, 20)
+                .put(aligned, 64, aligned.length - 64);
+        Files.write(Path.of(TEST_DIR + "unaligned_filter.data"), old.array());
+        BloomFilter unaligned = new BloomFilter(TEST_DIR + "unaligned_filter.data");
+        for (int i = 0; i < 5000; i++) assertTrue(unaligned.check(key(i)));
+        assertEquals(5000, unaligned.keyCount());
+        assertEquals(0, unaligned.bitsAlignmentOffset());
+    }
+
+    private static BloomFilter writeFilter(String fileName, int keys, int bitsPerKey) throws Exception {
+        BloomFilter filter = new BloomFilter(fileName);
+        try (BloomFilter.BloomFilterWriter writer = filter.getWriter(bitsPerKey)) {
+            for (int i = 0; i < keys; i++) writer.write(key(i));
+        }
+        return filter;
+    }
+
+    private static byte[] key(int i) {
+        return ("key_" + i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @AfterAll
+    static void tearDown() {
+        LSMTreeTest.deleteDirectory(new File(TEST_DIR));
+    }
+}
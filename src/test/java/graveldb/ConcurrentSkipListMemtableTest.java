@@ -0,0 +1,95 @@
+package graveldb;
+
+import graveldb.datastore.ScanIterator;
+import graveldb.datastore.memtable.ConcurrentSkipListMemtable;
+import graveldb.datastore.merge.MergeEntry;
+import graveldb.util.KeyComparator;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConcurrentSkipListMemtableTest {
+
+    @Test
+    void test_concurrentWritesAcrossSlabs() throws Exception {
+        // 4 KiB slabs, the writers fill a few hundred of them
+        ConcurrentSkipListMemtable memtable = new ConcurrentSkipListMemtable(4096);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> writers = new ArrayList<>();
+        for (int w = 0; w < 4; w++) {
+            int writer = w;
+            writers.add(executor.submit(() -> {
+                for (int i = 0; i < 10000; i++) memtable.put(bytes("key_" + writer + "_" + i), bytes("value " + i), writer * 10000L + i);
+            }));
+        }
+        for (Future<?> future : writers) future.get();
+        executor.shutdown();
+
+        assertTrue(memtable.canFlush());
+        for (int w = 0; w < 4; w++) {
+            for (int i = 0; i < 10000; i++) assertEquals("value " + i, memtable.get("key_" + w + "_" + i));
+        }
+
+        int count = 0;
+        byte[] previous = null;
+        Iterator<MergeEntry> entries = memtable.entries(null);
+        while (entries.hasNext()) {
+            byte[] key = entries.next().key();
+            if (previous != null) assertTrue(KeyComparator.compare(previous, key) < 0);
+            previous = key;
+            count++;
+        }
+        assertEquals(40000, count);
+    }
+
+    @Test
+    void test_highestSequenceWinsInByteOrder() {
+        ConcurrentSkipListMemtable memtable = new ConcurrentSkipListMemtable(1024 * 1024);
+        memtable.put(bytes("b"), bytes("new"), 5);
+        memtable.put(bytes("b"), bytes("old"), 3);
+        memtable.put(bytes("😀"), bytes("emoji"), 1);
+        memtable.put(bytes("�"), bytes("replacement"), 2);
+        memtable.put(bytes("a"), new byte[0], 4);
+
+        assertEquals("new", memtable.get("b"));
+        assertEquals("", memtable.get("a"));
+        assertNull(memtable.get("c"));
+
+        // U+FFFD sorts before the emoji in UTF-8 byte order, unlike in String order
+        List<String> keys = new ArrayList<>();
+        Iterator<MergeEntry> entries = memtable.entries(bytes("b"));
+        while (entries.hasNext()) keys.add(new String(entries.next().key(), StandardCharsets.UTF_8));
+        assertEquals(List.of("b", "�", "😀"), keys);
+    }
+
+    @Test
+    void test_scanSkipsDeletedKeys() {
+        ConcurrentSkipListMemtable memtable = new ConcurrentSkipListMemtable(1024 * 1024);
+        for (String key : List.of("a", "b", "c", "d", "e")) memtable.put(key, "value " + key);
+        memtable.delete("c");
+
+        List<String> keys = new ArrayList<>();
+        try (ScanIterator scan = memtable.scan("b", "e", 10)) {
+            while (scan.hasNext()) keys.add(scan.next().keyString());
+        }
+        assertEquals(List.of("b", "d"), keys);
+
+        try (ScanIterator scan = memtable.scan("a", null, 2)) {
+            assertEquals("value a", scan.next().valueString());
+            assertEquals("b", scan.next().keyString());
+            assertFalse(scan.hasNext());
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
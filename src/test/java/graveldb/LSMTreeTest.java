@@ -1,16 +1,25 @@
 package graveldb;
 
+import graveldb.datastore.ScanIterator;
 import graveldb.datastore.lsmtree.LSMTree;
+import graveldb.datastore.lsmtree.LSMTreeConfig;
 import org.junit.jupiter.api.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.charset.StandardCharsets;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -42,7 +51,8 @@ class LSMTreeTest {
         for (int i = start; i < end; i++) {
             numbers.add(i);
         }
-        lsmTree = new LSMTree();
+        // small memtables so most of the keys are read from SSTables
+        lsmTree = new LSMTree(new LSMTreeConfig().memtableBytes(64 * 1024));
     }
 
     @Test
@@ -81,6 +91,76 @@ class LSMTreeTest {
         }
     }
 
+    @Test
+    @Order(4)
+    void test_dbConcurrentPut() throws Exception {
+        int threads = 8;
+        int perThread = 5000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < perThread; i++) lsmTree.put("concurrent_" + thread + "_" + i, String.valueOf(i));
+            }));
+        }
+        for (Future<?> future : futures) future.get();
+        executor.shutdown();
+
+        for (int t = 0; t < threads; t++) {
+            for (int i = 0; i < perThread; i++) {
+                assertEquals(String.valueOf(i), lsmTree.get("concurrent_" + t + "_" + i));
+            }
+        }
+    }
+
+    @Test
+    @Order(5)
+    void test_dbBatch() {
+        Map<String, String> entries = new LinkedHashMap<>();
+        for (int i = 0; i < 100; i++) entries.put("batch_" + i, "value " + i);
+        lsmTree.putAll(entries);
+        lsmTree.deleteAll(List.of(bytes("batch_5"), bytes("batch_50")));
+        // keys and values are stored as they are, they do not have to be UTF-8
+        byte[] binaryKey = {(byte) 0xFF, 0, (byte) 0xC3};
+        lsmTree.put(binaryKey, new byte[] {0, (byte) 0x80});
+
+        // keys already flushed to sstables, in the memtable, deleted and missing
+        List<byte[]> keys = new ArrayList<>();
+        for (String key : List.of("batch_99", "0", "batch_5", "batch_1", String.valueOf(end + 1), "49999", "batch_50")) keys.add(bytes(key));
+        List<String> values = new ArrayList<>();
+        for (byte[] value : lsmTree.getAll(keys)) values.add(value == null ? null : new String(value, StandardCharsets.UTF_8));
+        assertEquals(Arrays.asList("value 99", "0", null, "value 1", null, "49999", null), values);
+        assertArrayEquals(new byte[] {0, (byte) 0x80}, lsmTree.get(binaryKey));
+    }
+
+    @Test
+    @Order(6)
+    void test_dbScan() {
+        List<String> keys = new ArrayList<>();
+        try (ScanIterator scan = lsmTree.scan("batch_", "batch_2", 100)) {
+            while (scan.hasNext()) keys.add(scan.next().keyString());
+        }
+        List<String> expected = new ArrayList<>(List.of("batch_0", "batch_1"));
+        for (int i = 10; i < 20; i++) expected.add("batch_" + i);
+        assertEquals(expected, keys);
+
+        // a tombstone in the memtable hides the key flushed long ago
+        lsmTree.delete("49990");
+        keys.clear();
+        try (ScanIterator scan = lsmTree.scan("4999", "49991", 10)) {
+            while (scan.hasNext()) keys.add(scan.next().keyString());
+        }
+        assertEquals(List.of("4999"), keys);
+
+        try (ScanIterator scan = lsmTree.scan("1", null, 3)) {
+            assertEquals("1", scan.next().keyString());
+            assertEquals("10", scan.next().keyString());
+            assertEquals("100", scan.next().keyString());
+            assertFalse(scan.hasNext());
+        }
+    }
+
 //    @Test
 //    void test_dbPutAndGetAndDel() throws IOException {
 //        assertDoesNotThrow(() -> lsmTree.put("1","1"));
@@ -113,4 +193,8 @@ class LSMTreeTest {
         }
         return directoryToBeDeleted.delete();
     }
-}
\ No newline at end of file
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
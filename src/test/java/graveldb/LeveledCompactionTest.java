@@ -0,0 +1,207 @@
+package graveldb;
+
+import graveldb.datastore.ScanIterator;
+import graveldb.datastore.compaction.CompactionJob;
+import graveldb.datastore.compaction.LeveledCompactionStrategy;
+import graveldb.datastore.lsmtree.LSMTree;
+import graveldb.datastore.lsmtree.LSMTreeConfig;
+import graveldb.datastore.sstable.SSTable;
+import org.junit.jupiter.api.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LeveledCompactionTest {
+
+    @Test
+    void test_leveledReadsAfterCompaction() throws Exception {
+        // small levels so the data goes down a few levels, jobs run in parallel and split into ranges
+        LSMTreeConfig config = new LSMTreeConfig()
+                .memtableBytes(4 * 1024)
+                .compactionStrategy(new LeveledCompactionStrategy(4, 4, 16 * 1024, 4, 8 * 1024))
+                .compactionThreads(3)
+                .maxSubcompactions(4)
+                .subcompactionMinBytes(4 * 1024);
+        LSMTree tree = new LSMTree(config);
+        try {
+            Map<String, String> expected = new HashMap<>();
+            Random random = new Random(7);
+            for (int i = 0; i < 40000; i++) {
+                String key = "key_" + random.nextInt(10000);
+                if (i % 10 == 0) {
+                    tree.delete(key);
+                    expected.remove(key);
+                } else {
+                    tree.put(key, "value " + i);
+                    expected.put(key, "value " + i);
+                }
+            }
+
+            // let flushes and compactions catch up
+            Thread.sleep(3000);
+
+            for (int i = 0; i < 10000; i++) {
+                String key = "key_" + i;
+                assertEquals(expected.get(key), tree.get(key), key);
+            }
+
+            int scanned = 0;
+            try (ScanIterator scan = tree.scan("key_", null, Integer.MAX_VALUE)) {
+                while (scan.hasNext()) {
+                    String key = scan.next().keyString();
+                    assertTrue(expected.containsKey(key), key);
+                    scanned++;
+                }
+            }
+            assertEquals(expected.size(), scanned);
+        } finally {
+            tree.stop();
+            Thread.sleep(1000);
+            LSMTreeTest.deleteDirectory(new File("./waldata"));
+            LSMTreeTest.deleteDirectory(new File("./dbdata"));
+        }
+    }
+
+    @Test
+    void test_levelsSurviveRestart() throws Exception {
+        LSMTreeConfig config = new LSMTreeConfig()
+                .memtableBytes(4 * 1024)
+                .compactionStrategy(new LeveledCompactionStrategy(4, 4, 16 * 1024, 4, 8 * 1024));
+        Map<String, String> expected = new HashMap<>();
+        LSMTree tree = new LSMTree(config);
+        try {
+            for (int i = 0; i < 2000; i++) {
+                String key = "key_" + (i * 7919) % 1000;
+                tree.put(key, "value " + i);
+                expected.put(key, "value " + i);
+            }
+            Thread.sleep(4000);
+        } finally {
+            tree.stop();
+        }
+        List<Integer> levels = tree.levelTableCounts();
+
+        // the manifest puts every table back in its level instead of starting over from level 0
+        tree = new LSMTree(config);
+        try {
+            // the memtable left in the WAL may have been flushed to level 0 already
+            List<Integer> reopened = tree.levelTableCounts();
+            assertEquals(levels.subList(1, levels.size()), reopened.subList(1, reopened.size()));
+            assertTrue(reopened.get(0) >= levels.get(0));
+            for (Map.Entry<String, String> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), tree.get(entry.getKey()), entry.getKey());
+            }
+        } finally {
+            tree.stop();
+            Thread.sleep(1000);
+            LSMTreeTest.deleteDirectory(new File("./waldata"));
+            LSMTreeTest.deleteDirectory(new File("./dbdata"));
+        }
+    }
+
+    @Test
+    void test_reopenAfterCutShortManifestEdit() throws Exception {
+        LSMTreeConfig config = new LSMTreeConfig()
+                .memtableBytes(4 * 1024)
+                .compactionStrategy(new LeveledCompactionStrategy(4, 4, 16 * 1024, 4, 8 * 1024));
+        Map<String, String> expected = new HashMap<>();
+        LSMTree tree = new LSMTree(config);
+        try {
+            for (int i = 0; i < 2000; i++) {
+                tree.put("key_" + i, "value " + i);
+                expected.put("key_" + i, "value " + i);
+            }
+            Thread.sleep(2000);
+        } finally {
+            tree.stop();
+        }
+
+        // a flush that wrote its table and crashed while logging the edit
+        int lastFileNumber = 0;
+        for (File dir : new File("./dbdata").listFiles(file -> file.getName().startsWith("sstable_"))) {
+            lastFileNumber = Math.max(lastFileNumber, Integer.parseInt(dir.getName().substring("sstable_".length())));
+        }
+        File orphan = new File("./dbdata/sstable_" + (lastFileNumber + 1));
+        assertTrue(orphan.mkdirs());
+        Files.write(orphan.toPath().resolve("leftover.data"), new byte[] {1, 2, 3});
+        Files.write(Path.of("./dbdata/MANIFEST"), new byte[] {0, 0, 1, 0, 7, 7, 7, 7, 2, 0}, StandardOpenOption.APPEND);
+
+        tree = new LSMTree(config);
+        try {
+            assertFalse(new File(orphan, "leftover.data").exists());
+            for (Map.Entry<String, String> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), tree.get(entry.getKey()), entry.getKey());
+            }
+            // the file numbers of the orphan are used again
+            for (int i = 2000; i < 3000; i++) {
+                tree.put("key_" + i, "value " + i);
+                expected.put("key_" + i, "value " + i);
+            }
+            Thread.sleep(2000);
+        } finally {
+            tree.stop();
+        }
+
+        tree = new LSMTree(config);
+        try {
+            for (Map.Entry<String, String> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), tree.get(entry.getKey()), entry.getKey());
+            }
+        } finally {
+            tree.stop();
+            Thread.sleep(1000);
+            LSMTreeTest.deleteDirectory(new File("./waldata"));
+            LSMTreeTest.deleteDirectory(new File("./dbdata"));
+        }
+    }
+
+    @Test
+    void test_compactPointerMovesOnlyForScheduledJobs() {
+        LeveledCompactionStrategy strategy = new LeveledCompactionStrategy(3, 4, 100, 10, 64);
+        try {
+            List<List<SSTable>> levels = List.of(List.of(), List.of(table("a", "b"), table("c", "d"), table("e", "f")), List.of());
+
+            // a job the caller skips, for a conflict with a running one, is picked again
+            CompactionJob skipped = strategy.pick(levels, Set.of()).get(0);
+            assertEquals("a", firstKey(skipped));
+            CompactionJob job = strategy.pick(levels, Set.of()).get(0);
+            assertEquals("a", firstKey(job));
+
+            strategy.scheduled(job);
+            job = strategy.pick(levels, Set.of()).get(0);
+            assertEquals("c", firstKey(job));
+            strategy.scheduled(job);
+            assertEquals("e", firstKey(strategy.pick(levels, Set.of()).get(0)));
+        } finally {
+            LSMTreeTest.deleteDirectory(new File("./dbdata"));
+        }
+    }
+
+    // a level 1 table that only has a key range and a size
+    private static SSTable table(String first, String last) {
+        return new SSTable("./dbdata/strategy/" + first + "_ssfile.data") {
+            @Override
+            public byte[] firstKey() { return first.getBytes(StandardCharsets.UTF_8); }
+
+            @Override
+            public byte[] lastKey() { return last.getBytes(StandardCharsets.UTF_8); }
+
+            @Override
+            public long getFileSize() { return 100; }
+        };
+    }
+
+    private static String firstKey(CompactionJob job) {
+        return new String(job.inputs().get(0).firstKey(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,152 @@
+package graveldb;
+
+import graveldb.datastore.ScanIterator;
+import graveldb.datastore.lsmtree.LSMTree;
+import graveldb.datastore.lsmtree.LSMTreeConfig;
+import org.junit.jupiter.api.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MemtableFlushTest {
+
+    @Test
+    void test_oldestMemtableFlushesAfterNewerOnes() throws Exception {
+        LSMTreeConfig config = new LSMTreeConfig()
+                .memtableBytes(4 * 1024)
+                .flushThreads(1)
+                .slowdownImmutableMemtables(4)
+                .maxImmutableMemtables(4);
+        LSMTree tree = new LSMTree(config);
+        try {
+            // a batch that stays inside the oldest memtable until it is let go
+            CountDownLatch release = new CountDownLatch(1);
+            List<byte[]> heldKeys = new AbstractList<>() {
+                @Override
+                public byte[] get(int index) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    return bytes("held");
+                }
+
+                @Override
+                public int size() { return 1; }
+            };
+            CompletableFuture<Void> held = CompletableFuture.runAsync(() -> tree.putAll(heldKeys, List.of(bytes("oldest"))));
+            Thread.sleep(200);
+
+            // newer memtables rotate and flush while the oldest one cannot, until writes stop
+            int writes = 20000;
+            CompletableFuture<Void> writer = CompletableFuture.runAsync(() -> {
+                for (int i = 0; i < writes; i++) tree.put("key_" + i, "value " + i);
+            });
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (!tree.isWriteStalled() && System.currentTimeMillis() < deadline) Thread.sleep(10);
+            assertTrue(tree.isWriteStalled());
+            // writers that must not wait are turned away instead
+            assertTrue(tree.writeDelayNanos() > 0);
+            assertFalse(tree.tryPut(bytes("refused"), bytes("value")));
+            assertFalse(tree.tryPutAll(List.of(bytes("refused")), List.of(bytes("value"))));
+            assertFalse(tree.tryDeleteAll(List.of(bytes("held"))));
+
+            // the last writer leaving the oldest memtable has to get its flush started
+            release.countDown();
+            held.get(30, TimeUnit.SECONDS);
+            writer.get(30, TimeUnit.SECONDS);
+
+            assertEquals("oldest", tree.get("held"));
+            assertNull(tree.get("refused"));
+            assertTrue(tree.tryPut(bytes("accepted"), bytes("value")));
+            assertEquals("value", tree.get("accepted"));
+            for (int i = 0; i < writes; i++) assertEquals("value " + i, tree.get("key_" + i));
+        } finally {
+            tree.stop();
+            Thread.sleep(1000);
+            LSMTreeTest.deleteDirectory(new File("./waldata"));
+            LSMTreeTest.deleteDirectory(new File("./dbdata"));
+        }
+    }
+
+    @Test
+    void test_readsAgreeOnWritesRacingAcrossMemtables() throws Exception {
+        LSMTree tree = new LSMTree(new LSMTreeConfig().memtableBytes(4 * 1024));
+        try {
+            // a batch that enters the memtable and takes its sequence only when it is let go
+            CountDownLatch release = new CountDownLatch(1);
+            AtomicInteger sizeCalls = new AtomicInteger();
+            List<byte[]> heldKeys = new AbstractList<>() {
+                @Override
+                public byte[] get(int index) { return bytes("raced"); }
+
+                @Override
+                public int size() {
+                    // the first call is the empty check before the writer enters
+                    if (sizeCalls.incrementAndGet() == 2) {
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                    return 1;
+                }
+            };
+            CompletableFuture<Void> held = CompletableFuture.runAsync(() -> tree.putAll(heldKeys, List.of(bytes("older memtable"))));
+            while (sizeCalls.get() < 2) Thread.sleep(1);
+
+            // the memtable of the held batch is rotated, the newer write takes the lower sequence
+            for (int i = 0; i < 200; i++) tree.put("filler_" + i, "value " + i);
+            tree.put("raced", "newer memtable");
+            release.countDown();
+            held.get(30, TimeUnit.SECONDS);
+
+            assertEquals("newer memtable", tree.get("raced"));
+            assertEquals("newer memtable", scanValue(tree, "raced"));
+            // flushed tables keep the same order
+            Thread.sleep(2000);
+            assertEquals("newer memtable", tree.get("raced"));
+            assertEquals("newer memtable", scanValue(tree, "raced"));
+        } finally {
+            tree.stop();
+            Thread.sleep(1000);
+            LSMTreeTest.deleteDirectory(new File("./waldata"));
+            LSMTreeTest.deleteDirectory(new File("./dbdata"));
+        }
+    }
+
+    @Test
+    void test_opensBeyondDirectMemoryLimit() throws Exception {
+        // all memtables full would be far more than any JVM allows, only the slabs in use count
+        LSMTree tree = new LSMTree(new LSMTreeConfig().memtableBytes(1L << 40));
+        try {
+            tree.put("key", "value");
+            assertEquals("value", tree.get("key"));
+        } finally {
+            tree.stop();
+            Thread.sleep(1000);
+            LSMTreeTest.deleteDirectory(new File("./waldata"));
+            LSMTreeTest.deleteDirectory(new File("./dbdata"));
+        }
+    }
+
+    private static String scanValue(LSMTree tree, String key) {
+        try (ScanIterator scan = tree.scan(key, key + "\0", 1)) {
+            return scan.hasNext() ? scan.next().valueString() : null;
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,69 @@
+package graveldb;
+
+import graveldb.datastore.merge.MergeEntry;
+import graveldb.datastore.merge.MergeIterator;
+import org.junit.jupiter.api.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MergeIteratorTest {
+
+    @Test
+    void test_newestSourceWins() {
+        List<Iterator<MergeEntry>> sources = List.of(
+                // the source given first wins, whatever the sequences
+                List.of(entry("a", "new", 1), entry("c", "new", 7)).iterator(),
+                List.of(entry("a", "old", 5), entry("b", "", 6), entry("c", "old", 2)).iterator(),
+                List.of(entry("d", "first", 0)).iterator(),
+                List.of(entry("b", "old", 3), entry("d", "second", 0)).iterator(),
+                List.<MergeEntry>of().iterator());
+
+        assertEquals(List.of("a=new", "b=", "c=new", "d=first"), drain(new MergeIterator(sources)));
+    }
+
+    @Test
+    void test_dropTombstones() {
+        List<Iterator<MergeEntry>> sources = List.of(
+                List.of(entry("a", "", 4), entry("b", "live", 4)).iterator(),
+                List.of(entry("a", "shadowed", 1), entry("c", "live", 1)).iterator());
+
+        assertEquals(List.of("b=live", "c=live"), drain(new MergeIterator(sources, true)));
+    }
+
+    @Test
+    void test_manySourcesInByteOrder() {
+        TreeMap<String, String> expected = new TreeMap<>();
+        List<Iterator<MergeEntry>> sources = new ArrayList<>();
+        for (int s = 0; s < 13; s++) {
+            List<MergeEntry> source = new ArrayList<>();
+            for (int i = s; i < 1000; i += 1 + s) {
+                String key = String.format("key-%04d", i);
+                source.add(entry(key, "s" + s, 100 - s));
+                expected.putIfAbsent(key, key + "=s" + s);
+            }
+            sources.add(source.iterator());
+        }
+
+        assertEquals(new ArrayList<>(expected.values()), drain(new MergeIterator(sources)));
+        assertFalse(new MergeIterator(List.of()).hasNext());
+    }
+
+    private static MergeEntry entry(String key, String value, long sequence) {
+        return new MergeEntry(key.getBytes(StandardCharsets.UTF_8), value.getBytes(StandardCharsets.UTF_8), sequence);
+    }
+
+    private static List<String> drain(MergeIterator merged) {
+        List<String> out = new ArrayList<>();
+        while (merged.hasNext()) {
+            MergeEntry entry = merged.next();
+            out.add(new String(entry.key(), StandardCharsets.UTF_8) + "=" + new String(entry.value(), StandardCharsets.UTF_8));
+        }
+        return out;
+    }
+}
@@ -0,0 +1,79 @@
+package graveldb;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.DecoderException;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RespDecoderTest {
+
+    @Test
+    void test_pipelinedCommandsInOneRead() {
+        RespDecoder decoder = new RespDecoder();
+        ByteBuf in = Unpooled.copiedBuffer(
+                "*3\r\n$3\r\nSET\r\n$1\r\nk\r\n$11\r\nhello world\r\n*2\r\n$3\r\nGET\r\n$1\r\nk\r\nGET k\r\n",
+                StandardCharsets.UTF_8);
+
+        List<Object> out = new ArrayList<>();
+        decoder.decode(null, in, out);
+
+        assertEquals(List.of(List.of("SET", "k", "hello world"), List.of("GET", "k"), List.of("GET", "k")), strings(out));
+        assertFalse(in.isReadable());
+    }
+
+    @Test
+    void test_commandSplitOverReads() {
+        RespDecoder decoder = new RespDecoder();
+        byte[] request = "*3\r\n$3\r\nSET\r\n$4\r\nk\r\nv\r\n$5\r\nvalue\r\n".getBytes(StandardCharsets.UTF_8);
+
+        // one byte per read, the decoder must wait for each piece without losing what it has
+        ByteBuf in = Unpooled.buffer();
+        List<Object> out = new ArrayList<>();
+        for (byte b : request) {
+            in.writeByte(b);
+            decoder.decode(null, in, out);
+        }
+
+        assertEquals(List.of(List.of("SET", "k\r\nv", "value")), strings(out));
+    }
+
+    @Test
+    void test_bulkStringsAreBinarySafe() {
+        RespDecoder decoder = new RespDecoder();
+        ByteBuf in = Unpooled.buffer();
+        in.writeBytes("*2\r\n$3\r\nGET\r\n$3\r\n".getBytes(StandardCharsets.US_ASCII));
+        in.writeBytes(new byte[] {(byte) 0xFF, 0, (byte) 0xC3});
+        in.writeBytes("\r\n".getBytes(StandardCharsets.US_ASCII));
+
+        List<Object> out = new ArrayList<>();
+        decoder.decode(null, in, out);
+
+        @SuppressWarnings("unchecked")
+        List<byte[]> args = (List<byte[]>) out.get(0);
+        assertArrayEquals(new byte[] {(byte) 0xFF, 0, (byte) 0xC3}, args.get(1));
+    }
+
+    @Test
+    void test_invalidFrame() {
+        RespDecoder decoder = new RespDecoder();
+        ByteBuf in = Unpooled.copiedBuffer("*1\r\n:3\r\n", StandardCharsets.UTF_8);
+        assertThrows(DecoderException.class, () -> decoder.decode(null, in, new ArrayList<>()));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<List<String>> strings(List<Object> commands) {
+        List<List<String>> decoded = new ArrayList<>();
+        for (Object command : commands) {
+            List<String> args = new ArrayList<>();
+            for (byte[] arg : (List<byte[]>) command) args.add(new String(arg, StandardCharsets.UTF_8));
+            decoded.add(args);
+        }
+        return decoded;
+    }
+}
@@ -0,0 +1,206 @@
+package graveldb;
+
+import graveldb.datastore.compression.BlockCodec;
+import graveldb.datastore.compression.BlockCodecs;
+import graveldb.datastore.compression.CompressionStats;
+import graveldb.datastore.lsmtree.KeyValuePair;
+import graveldb.datastore.sparseindex.SparseIndex;
+import graveldb.datastore.sstable.SSTable;
+import org.junit.jupiter.api.*;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SSTableTest {
+
+    private static final String TEST_DIR = "./sstabletest/";
+
+    @Test
+    void test_blockFormatGetAndIterate() throws Exception {
+        for (SSTable.ReadMode readMode : SSTable.ReadMode.values()) {
+            testBlockFormat(readMode);
+        }
+    }
+
+    private void testBlockFormat(SSTable.ReadMode readMode) throws Exception {
+        String dir = TEST_DIR + "block_" + readMode + "/";
+        SSTable ssTable = new SSTable(dir + "1_ssfile.data", readMode, null);
+        SparseIndex sparseIndex = new SparseIndex(dir + "1_index.data");
+
+        List<KeyValuePair> written = new ArrayList<>();
+        try (SparseIndex.SparseIndexWriter indexWriter = sparseIndex.getWriter();
+             SSTable.SSTableWriter writer = ssTable.getWriter(indexWriter)) {
+            for (int i = 0; i < 5000; i++) {
+                byte[] key = String.format("key-%06d", i).getBytes(StandardCharsets.UTF_8);
+                KeyValuePair kvp = i % 7 == 0
+                        ? new KeyValuePair(key, new byte[0], true)
+                        : new KeyValuePair(key, ("value " + i).getBytes(StandardCharsets.UTF_8), false);
+                writer.write(kvp);
+                written.add(kvp);
+            }
+        }
+
+        assertTrue(sparseIndex.size() > 1);
+
+        for (KeyValuePair kvp : written) {
+            assertEquals(kvp, ssTable.get(kvp.key(), sparseIndex.floor(kvp.key())));
+        }
+        assertNull(sparseIndex.floor("a".getBytes(StandardCharsets.UTF_8)));
+        byte[] missing = "key-000001x".getBytes(StandardCharsets.UTF_8);
+        assertNull(ssTable.get(missing, sparseIndex.floor(missing)));
+
+        List<KeyValuePair> read = new ArrayList<>();
+        try (SSTable.SSTableIterator itr = ssTable.iterator()) {
+            while (itr.hasNext()) read.add(itr.next());
+        }
+        assertEquals(written, read);
+        ssTable.close();
+    }
+
+    @Test
+    void test_indexIntervalAndReopenedFlatIndex() throws Exception {
+        int[] entries = new int[2];
+        int[] blockSizes = {SSTable.BLOCK_SIZE, 4 * SSTable.BLOCK_SIZE};
+        for (int b = 0; b < blockSizes.length; b++) {
+            String dir = TEST_DIR + "interval_" + blockSizes[b] + "/";
+            SSTable ssTable = new SSTable(dir + "1_ssfile.data");
+            try (SparseIndex.SparseIndexWriter indexWriter = new SparseIndex(dir + "1_index.data").getWriter();
+                 SSTable.SSTableWriter writer = ssTable.getWriter(indexWriter, blockSizes[b])) {
+                for (int i = 0; i < 5000; i++) writer.write(String.format("key-%06d", i).getBytes(StandardCharsets.UTF_8), ("value " + i).getBytes(StandardCharsets.UTF_8));
+            }
+
+            // read back from the file
+            SparseIndex sparseIndex = new SparseIndex(dir + "1_index.data");
+            entries[b] = sparseIndex.size();
+            assertArrayEquals("key-000000".getBytes(StandardCharsets.UTF_8), sparseIndex.key(0));
+            for (int i = 0; i < 5000; i += 37) {
+                byte[] key = String.format("key-%06d", i).getBytes(StandardCharsets.UTF_8);
+                assertEquals("value " + i, ssTable.get(key, sparseIndex.floor(key)).valueString());
+            }
+            ssTable.close();
+        }
+        assertTrue(entries[1] * 3 < entries[0], entries[1] + " entries against " + entries[0]);
+    }
+
+    @Test
+    void test_propertiesInFooter() throws Exception {
+        String dir = TEST_DIR + "properties/";
+        SSTable written = new SSTable(dir + "1_ssfile.data");
+        try (SparseIndex.SparseIndexWriter indexWriter = new SparseIndex(dir + "1_index.data").getWriter();
+             SSTable.SSTableWriter writer = written.getWriter(indexWriter)) {
+            for (int i = 0; i < 1000; i++) {
+                byte[] value = i % 10 == 0 ? new byte[0] : ("value " + i).getBytes(StandardCharsets.UTF_8);
+                writer.write(String.format("key-%06d", i).getBytes(StandardCharsets.UTF_8), value, 100 + i);
+            }
+            // entries merged from older tables come without their sequence
+            writer.coverSequences(40, 60);
+        }
+
+        // read back from the footer, without the key range the manifest would give
+        SSTable ssTable = new SSTable(dir + "1_ssfile.data");
+        SSTable.Properties properties = ssTable.properties();
+        assertArrayEquals("key-000000".getBytes(StandardCharsets.UTF_8), properties.firstKey());
+        assertArrayEquals("key-000999".getBytes(StandardCharsets.UTF_8), properties.lastKey());
+        assertArrayEquals(properties.lastKey(), ssTable.lastKey());
+        assertEquals(1000, properties.entryCount());
+        assertEquals(100, properties.tombstoneCount());
+        assertEquals(40, properties.minSequence());
+        assertEquals(1099, properties.maxSequence());
+        ssTable.close();
+        written.close();
+    }
+
+    @Test
+    void test_compressedBlocks() throws Exception {
+        for (SSTable.ReadMode readMode : SSTable.ReadMode.values()) {
+            for (BlockCodec codec : List.of(BlockCodecs.LZ4, BlockCodecs.DEFLATE)) {
+                String dir = TEST_DIR + "compressed_" + codec.name() + "_" + readMode + "/";
+                CompressionStats stats = new CompressionStats();
+                SSTable written = new SSTable(dir + "1_ssfile.data");
+                SparseIndex sparseIndex = new SparseIndex(dir + "1_index.data");
+                try (SparseIndex.SparseIndexWriter indexWriter = sparseIndex.getWriter();
+                     SSTable.SSTableWriter writer = written.getWriter(indexWriter, SSTable.BLOCK_SIZE, codec, stats)) {
+                    for (int i = 0; i < 5000; i++) writer.write(String.format("key-%06d", i).getBytes(StandardCharsets.UTF_8), ("{\"id\":" + i + ",\"status\":\"active\"}").getBytes(StandardCharsets.UTF_8));
+                }
+                assertTrue(stats.stats().ratio() > 2, codec.name() + " ratio " + stats.stats().ratio());
+
+                SSTable ssTable = new SSTable(dir + "1_ssfile.data", readMode, null);
+                ssTable.setCompressionStats(stats);
+                for (int i = 0; i < 5000; i += 13) {
+                    byte[] key = String.format("key-%06d", i).getBytes(StandardCharsets.UTF_8);
+                    assertEquals("{\"id\":" + i + ",\"status\":\"active\"}", ssTable.get(key, sparseIndex.floor(key)).valueString());
+                }
+                int count = 0;
+                try (SSTable.SSTableIterator itr = ssTable.iterator()) {
+                    while (itr.hasNext()) {
+                        itr.next();
+                        count++;
+                    }
+                }
+                assertEquals(5000, count);
+                assertTrue(stats.stats().decompressedBytes() > 0);
+                ssTable.close();
+                written.close();
+            }
+        }
+    }
+
+    @Test
+    void test_recordFormatStillReadable() throws Exception {
+        for (SSTable.ReadMode readMode : SSTable.ReadMode.values()) {
+            testRecordFormat(readMode);
+        }
+    }
+
+    private void testRecordFormat(SSTable.ReadMode readMode) throws Exception {
+        String ssTableFile = TEST_DIR + "record/1_ssfile.data";
+        String sparseIndexFile = TEST_DIR + "record/1_index.data";
+        new File(TEST_DIR + "record").mkdirs();
+
+        List<KeyValuePair> written = new ArrayList<>();
+        try (DataOutputStream table = new DataOutputStream(new FileOutputStream(ssTableFile));
+             DataOutputStream index = new DataOutputStream(new FileOutputStream(sparseIndexFile))) {
+            int offset = 0;
+            for (int i = 0; i < 1200; i++) {
+                byte[] key = String.format("key-%06d", i).getBytes(StandardCharsets.UTF_8);
+                byte[] value = ("value-" + i).getBytes(StandardCharsets.UTF_8);
+                if (i % 500 == 0) {
+                    index.writeInt(key.length);
+                    index.write(key);
+                    index.writeInt(offset);
+                }
+                table.writeInt(key.length);
+                table.writeInt(value.length);
+                table.write(key);
+                table.write(value);
+                offset += 8 + key.length + value.length;
+                written.add(new KeyValuePair(key, value, false));
+            }
+        }
+
+        SSTable ssTable = new SSTable(ssTableFile, readMode, null);
+        SparseIndex sparseIndex = new SparseIndex(sparseIndexFile);
+        assertEquals(3, sparseIndex.size());
+        for (KeyValuePair kvp : written) {
+            assertEquals(kvp, ssTable.get(kvp.key(), sparseIndex.floor(kvp.key())));
+        }
+
+        List<KeyValuePair> read = new ArrayList<>();
+        try (SSTable.SSTableIterator itr = ssTable.iterator()) {
+            while (itr.hasNext()) read.add(itr.next());
+        }
+        assertEquals(written, read);
+        ssTable.close();
+    }
+
+    @AfterAll
+    static void tearDown() {
+        LSMTreeTest.deleteDirectory(new File(TEST_DIR));
+    }
+}
@@ -0,0 +1,109 @@
+package graveldb;
+
+import graveldb.parser.Command;
+import graveldb.wal.WalDurability;
+import graveldb.wal.WalRecord;
+import graveldb.wal.WriteAheadLog;
+import org.junit.jupiter.api.*;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WriteAheadLogTest {
+
+    @Test
+    void test_walRoundTrip() {
+        WriteAheadLog wal = new WriteAheadLog(WalDurability.BATCH_FSYNC);
+        try {
+            wal.commit(wal.append(1, Command.SET, bytes("key 1"), bytes("value with spaces")));
+            wal.commit(wal.append(2, Command.DEL, bytes("key 1"), null));
+            wal.commit(wal.append(3, Command.SET, bytes("key2"), bytes("")));
+            wal.commit(wal.append(List.of(
+                    new WalRecord(4, Command.SET, bytes("batch 1"), bytes("1")),
+                    new WalRecord(5, Command.DEL, bytes("key2"), null))));
+            wal.close();
+
+            List<WalRecord> records = new ArrayList<>();
+            for (WalRecord record : wal) records.add(record);
+
+            assertEquals(List.of(
+                    new WalRecord(1, Command.SET, bytes("key 1"), bytes("value with spaces")),
+                    new WalRecord(2, Command.DEL, bytes("key 1"), null),
+                    new WalRecord(3, Command.SET, bytes("key2"), bytes("")),
+                    new WalRecord(4, Command.SET, bytes("batch 1"), bytes("1")),
+                    new WalRecord(5, Command.DEL, bytes("key2"), null)
+            ), records);
+        } finally {
+            wal.delete();
+        }
+    }
+
+    @Test
+    void test_walStopsAtTornTail() throws Exception {
+        WriteAheadLog wal = new WriteAheadLog();
+        try {
+            wal.commit(wal.append(1, Command.SET, bytes("a"), bytes("1")));
+            wal.commit(wal.append(2, Command.SET, bytes("b"), bytes("2")));
+            wal.close();
+
+            // half written record, as left behind by a crash in the middle of a batch
+            long size = Files.size(wal.getPath());
+            Files.write(wal.getPath(), new byte[] {0, 0, 0, 40, 1, 2, 3}, StandardOpenOption.APPEND);
+
+            List<WalRecord> records = new ArrayList<>();
+            for (WalRecord record : wal) records.add(record);
+            assertEquals(2, records.size());
+
+            // flipped byte in the last record fails its checksum
+            try (FileChannel channel = FileChannel.open(wal.getPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(size);
+                channel.write(ByteBuffer.wrap(new byte[] {'x'}), size - 1);
+            }
+            records.clear();
+            for (WalRecord record : wal) records.add(record);
+            assertEquals(List.of(new WalRecord(1, Command.SET, bytes("a"), bytes("1"))), records);
+        } finally {
+            wal.delete();
+        }
+    }
+
+    @Test
+    void test_legacyTextSegmentIsReplayed() throws Exception {
+        Path segment = Path.of("./waltest/legacy_wal.data");
+        Files.createDirectories(segment.getParent());
+        try {
+            // as written by the text log before the binary format, the last line torn by a crash
+            Files.write(segment, bytes("SET a 1\nSET b value with spaces\nDEL a\nSET ключ значение\nSET c 3"));
+            List<WalRecord> records = new ArrayList<>();
+            for (WalRecord record : new WriteAheadLog(segment.toString())) records.add(record);
+            assertEquals(List.of(
+                    new WalRecord(1, Command.SET, bytes("a"), bytes("1")),
+                    new WalRecord(2, Command.SET, bytes("b"), bytes("value with spaces")),
+                    new WalRecord(3, Command.DEL, bytes("a"), null),
+                    new WalRecord(4, Command.SET, bytes("ключ"), bytes("значение"))
+            ), records);
+
+            // a line that is not a command fails the replay instead of dropping the rest
+            Files.write(segment, bytes("SET a 1\nGET a\n"));
+            Iterator<WalRecord> itr = new WriteAheadLog(segment.toString()).iterator();
+            assertEquals(new WalRecord(1, Command.SET, bytes("a"), bytes("1")), itr.next());
+            assertThrows(IllegalStateException.class, itr::next);
+        } finally {
+            LSMTreeTest.deleteDirectory(new File("./waltest"));
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}